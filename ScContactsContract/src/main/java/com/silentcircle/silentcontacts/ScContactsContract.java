@@ -3769,7 +3769,8 @@ public final class ScContactsContract {
         public static final int STATUS_NO_ACCOUNTS_NO_CONTACTS = 4;
 
         /**
-         * Additional data associated with the status.
+         * Additional data associated with the status. For {@link #STATUS_UPGRADING} it
+         * contains the progress of the upgrade in percent.
          *
          * @hide
          */
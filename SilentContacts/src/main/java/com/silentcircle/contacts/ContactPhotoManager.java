@@ -75,8 +75,10 @@ import android.support.v4.util.LruCache;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.TypedValue;
+import android.view.View;
 import android.widget.ImageView;
 
+import com.silentcircle.contacts.providers.ScContactsProvider;
 import com.silentcircle.contacts.utils.MemoryUtils;
 import com.silentcircle.contacts.R;
 import com.silentcircle.silentcontacts.ScContactsContract;
@@ -84,18 +86,23 @@ import com.silentcircle.silentcontacts.ScContactsContract.CommonDataKinds.Photo;
 import com.silentcircle.silentcontacts.ScContactsContract.Data;
 import com.silentcircle.silentcontacts.ScContactsContract.Directory;
 import com.silentcircle.silentcontacts.ScContactsContract.RawContacts;
+import com.silentcircle.contacts.utils.BitmapPool;
 import com.silentcircle.contacts.utils.BitmapUtil;
+import com.silentcircle.contacts.utils.LongArray;
+import com.silentcircle.contacts.utils.LongHashSet;
 import com.silentcircle.contacts.utils.UriUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -273,6 +280,15 @@ public abstract class ContactPhotoManager implements ComponentCallbacks {
      */
     public abstract void preloadPhotosInBackground();
 
+    /**
+     * Loads the thumbnails into the cache without displaying them, for example for the rows a
+     * list is going to show next. The loader thread does this after it loaded the photos of
+     * all pending requests. A later call replaces thumbnails that were not loaded yet.
+     *
+     * @param photoIds the photo ids, 0 entries are ignored
+     */
+    public abstract void prefetchThumbnails(long[] photoIds);
+
     // ComponentCallbacks
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
@@ -306,9 +322,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private static final int MESSAGE_PHOTOS_LOADED = 2;
 
-    private static final String[] EMPTY_STRING_ARRAY = new String[0];
+    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO, Data.DATA_VERSION };
 
-    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
+    private static final String[] VERSION_COLUMNS = new String[] { Photo._ID, Data.DATA_VERSION };
 
     /**
      * Maintains the state of a particular photo.
@@ -322,6 +338,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         Reference<Bitmap> bitmapRef;
         int decodedSampleSize;
 
+        /** The bitmap of bitmapRef was decoded by us and may go back to the bitmap pool */
+        boolean reusable;
+
         public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
             this.bytes = bytes;
             this.fresh = true;
@@ -329,6 +348,18 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Use count of a bitmap that may go back to the bitmap pool.
+     */
+    private static class ReusableBitmap {
+        final BitmapHolder holder;
+        int users;
+
+        ReusableBitmap(BitmapHolder holder) {
+            this.holder = holder;
+        }
+    }
+
     private final Context mContext;
 
     /**
@@ -355,6 +386,34 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private final LruCache<Object, Bitmap> mBitmapCache;
 
+    /**
+     * Encrypted on-disk cache of thumbnail bytes, keyed by photo id and data version. Survives
+     * process restarts and {@link #clear()}, the loader thread checks it before it reads the
+     * thumbnails from the database.
+     */
+    private final PhotoDiskCache mDiskCache;
+
+    /**
+     * Pool of decoded thumbnails that are neither displayed nor in {@link #mBitmapCache}
+     * anymore. The decoder reuses them instead of allocating new bitmaps.
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * The bitmaps of the pool that are in use, with the number of users: each ImageView that
+     * references the bitmap and {@link #mBitmapCache}. A bitmap goes back to the pool if the
+     * number of users drops to zero. Weak keys (Bitmap uses identity equality): a bitmap
+     * whose view was garbage collected without a release never goes back to the pool but also
+     * doesn't stay in this map.
+     */
+    private final WeakHashMap<Bitmap, ReusableBitmap> mReusableBitmaps =
+            new WeakHashMap<Bitmap, ReusableBitmap>();
+
+    /**
+     * The reusable bitmaps the drawable of an ImageView references, set by this manager.
+     */
+    private final WeakHashMap<ImageView, Bitmap[]> mViewBitmaps = new WeakHashMap<ImageView, Bitmap[]>();
+
     /**
      * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request.
      * The request may swapped out before the photo loading request is started.
@@ -391,12 +450,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     private static final int LARGE_RAM_THRESHOLD = 640 * 1024 * 1024;
 
+    /** Size of {@link #mBitmapPool} relative to the size of {@link #mBitmapCache} */
+    private static final float BITMAP_POOL_SIZE_FACTOR = 0.25f;
+
+    /** Size limit of {@link #mDiskCache} */
+    private static final long DISK_CACHE_SIZE = 8 * 1024 * 1024;
+
     /** For debug: How many times we had to reload cached photo for a stale entry */
     private final AtomicInteger mStaleCacheOverwrite = new AtomicInteger();
 
     /** For debug: How many times we had to reload cached photo for a fresh entry.  Should be 0. */
     private final AtomicInteger mFreshCacheOverwrite = new AtomicInteger();
 
+    /** For debug: How many requests were dropped before loading because their view got a new request */
+    private final AtomicInteger mCancelledRequests = new AtomicInteger();
+
+    /** For debug: How many thumbnails were loaded by prefetching */
+    private final AtomicInteger mPrefetchedPhotos = new AtomicInteger();
+
     public ContactPhotoManagerImpl(Context context) {
         mContext = context;
 
@@ -411,6 +482,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
             @Override 
             protected void entryRemoved(boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
+                releaseBitmap(oldValue);
                 if (DEBUG) 
                     dumpStats();
             }
@@ -427,6 +499,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
         };
         mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
+        mBitmapPool = new BitmapPool((int) (bitmapCacheSize * BITMAP_POOL_SIZE_FACTOR));
+        mDiskCache = new PhotoDiskCache(context, DISK_CACHE_SIZE);
         Log.i(TAG, "Cache adj: " + cacheSizeAdjustment);
         if (DEBUG) {
             Log.d(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize()) + " + " + btk(mBitmapCache.maxSize()));
@@ -489,6 +563,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     + ", avg: " + btk(safeDiv(bitmapBytes, numBitmaps)));
             // We don't get from L2 cache, so L2 stats is meaningless.
         }
+        Log.d(TAG, "Requests: cancelled=" + mCancelledRequests.get() + ", prefetched=" + mPrefetchedPhotos.get());
+        Log.d(TAG, "Pool Stats: " + mBitmapPool + ", " + mReusableBitmaps.size() + " in use");
+        Log.d(TAG, "Disk Stats: " + mDiskCache.getStats());
     }
 
 //    @Override
@@ -506,12 +583,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         mLoaderThread.requestPreloading();
     }
 
+    @Override
+    public void prefetchThumbnails(long[] photoIds) {
+        if (mPaused || photoIds == null || photoIds.length == 0) {
+            return;
+        }
+        ensureLoaderThread();
+        mLoaderThread.requestPrefetch(photoIds);
+    }
+
     @Override
     public void loadThumbnail(ImageView view, long photoId, boolean darkTheme, DefaultImageProvider defaultProvider) {
         if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoId);
         if (photoId == 0) {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, -1, darkTheme);
+            trackViewBitmaps(view, null, null, null);
             mPendingRequests.remove(view);
         } else {
             loadPhotoByIdOrUri(view, Request.createFromThumbnailId(photoId, darkTheme, defaultProvider));
@@ -526,6 +613,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         if (photoUri == null) {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme);
+            trackViewBitmaps(view, null, null, null);
             mPendingRequests.remove(view);
         } else {
             loadPhotoByIdOrUri(view, Request.createFromUri(photoUri, requestedExtent, darkTheme, defaultProvider));
@@ -549,6 +637,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     @Override
     public void removePhoto(ImageView view) {
         view.setImageDrawable(null);
+        trackViewBitmaps(view, null, null, null);
         mPendingRequests.remove(view);
     }
 
@@ -575,11 +664,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         if (holder == null) {
             // The bitmap has not been loaded ==> show default avatar
             request.applyDefaultImage(view);
+            trackViewBitmaps(view, null, null, null);
             return false;
         }
 
         if (holder.bytes == null) {
             request.applyDefaultImage(view);
+            trackViewBitmaps(view, null, null, null);
             return holder.fresh;
         }
 
@@ -594,11 +685,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 // This is bigger data. Let's send that back to the Loader so that we can
                 // inflate this in the background
                 request.applyDefaultImage(view);
+                trackViewBitmaps(view, null, null, null);
                 return false;
             }
         }
 
         final Drawable previousDrawable = view.getDrawable();
+        Bitmap keptBitmap = null;
         if (fadeIn && previousDrawable != null) {
             final Drawable[] layers = new Drawable[2];
             // Prevent cascade of TransitionDrawables.
@@ -610,6 +703,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             } else {
                 layers[0] = previousDrawable;
             }
+            if (layers[0] instanceof BitmapDrawable) {
+                keptBitmap = ((BitmapDrawable) layers[0]).getBitmap();
+            }
             layers[1] = new BitmapDrawable(mContext.getResources(), cachedBitmap);
             TransitionDrawable drawable = new TransitionDrawable(layers);
             view.setImageDrawable(drawable);
@@ -617,12 +713,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         } else {
             view.setImageBitmap(cachedBitmap);
         }
+        trackViewBitmaps(view, keptBitmap, cachedBitmap, holder);
 
         // Put the bitmap in the LRU cache. But only do this for images that are small enough
         // (we require that at least six of those can be cached at the same time)
         int byteCount = (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR1) ?
                 cachedBitmap.getRowBytes() * cachedBitmap.getHeight() : cachedBitmap.getByteCount();
         if (byteCount < mBitmapCache.maxSize() / 6) {
+            acquireBitmap(cachedBitmap, null);
             mBitmapCache.put(request.getKey(), cachedBitmap);
         }
         holder.bitmap = null;       // Soften the reference
@@ -635,7 +733,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * bitmap is held either by {@link #mBitmapCache} or by a soft reference in
      * the holder, it will not be necessary to decode the bitmap.
      */
-    private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+    private void inflateBitmap(BitmapHolder holder, int requestedExtent) {
         final int sampleSize =
                 BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
         byte[] bytes = holder.bytes;
@@ -643,25 +741,34 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             return;
         }
 
-        if (sampleSize == holder.decodedSampleSize) {
-            // Check the soft reference.  If will be retained if the bitmap is also
-            // in the LRU cache, so we don't need to check the LRU cache explicitly.
-            if (holder.bitmapRef != null) {
-                holder.bitmap = holder.bitmapRef.get();
-                if (holder.bitmap != null) {
-                    return;
+        // Synchronized with releaseBitmap(), which takes the bitmap away from the holder before it
+        // goes back to the pool
+        synchronized (holder) {
+            if (sampleSize == holder.decodedSampleSize) {
+                // Check the soft reference.  If will be retained if the bitmap is also
+                // in the LRU cache, so we don't need to check the LRU cache explicitly.
+                if (holder.bitmapRef != null) {
+                    holder.bitmap = holder.bitmapRef.get();
+                    if (holder.bitmap != null) {
+                        return;
+                    }
                 }
             }
         }
 
         try {
-            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
+            Bitmap bitmap = mBitmapPool.decodeBitmapFromBytes(bytes, sampleSize);
+            if (bitmap == null) {
+                return;
+            }
+            boolean reusable = true;
 
             // make bitmap mutable and draw size onto it
             if (DEBUG_SIZES) {
                 Bitmap original = bitmap;
                 bitmap = bitmap.copy(bitmap.getConfig(), true);
                 original.recycle();
+                reusable = false;
                 Canvas canvas = new Canvas(bitmap);
                 Paint paint = new Paint();
                 paint.setTextSize(16);
@@ -673,9 +780,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 canvas.drawText(bitmap.getWidth() + "/" + sampleSize, 0, 15, paint);
             }
 
-            holder.decodedSampleSize = sampleSize;
-            holder.bitmap = bitmap;
-            holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            synchronized (holder) {
+                holder.decodedSampleSize = sampleSize;
+                holder.bitmap = bitmap;
+                holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+                holder.reusable = reusable;
+            }
             if (DEBUG) {
                 int bCount = (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR1) ?
                         bitmap.getRowBytes() * bitmap.getHeight() : bitmap.getByteCount();
@@ -693,6 +803,89 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         mPendingRequests.clear();
         mBitmapHolderCache.evictAll();
         mBitmapCache.evictAll();
+        mBitmapPool.clear();
+    }
+
+    /**
+     * Records the reusable bitmaps the drawable of the view references after the view got a new
+     * image and releases the bitmaps it doesn't reference anymore.
+     *
+     * @param view the view
+     * @param keptBitmap bitmap of the previous drawable that the new drawable still shows, for
+     *     example the first layer of a fade-in transition
+     * @param shownBitmap the new bitmap
+     * @param holder the holder of the new bitmap
+     */
+    private void trackViewBitmaps(ImageView view, Bitmap keptBitmap, Bitmap shownBitmap, BitmapHolder holder) {
+        // Acquire the new bitmap first, it may be the one the view showed before
+        Bitmap shown = null;
+        if (shownBitmap != null && holder != null && holder.reusable) {
+            acquireBitmap(shownBitmap, holder);
+            shown = shownBitmap;
+        }
+        Bitmap kept = null;
+        final Bitmap[] previous = mViewBitmaps.remove(view);
+        if (previous != null) {
+            for (Bitmap bitmap : previous) {
+                if (bitmap == null) {
+                    continue;
+                }
+                if (bitmap == keptBitmap && kept == null) {
+                    kept = bitmap;
+                }
+                else {
+                    releaseBitmap(bitmap);
+                }
+            }
+        }
+        if (kept != null || shown != null) {
+            mViewBitmaps.put(view, new Bitmap[] { kept, shown });
+        }
+    }
+
+    /**
+     * Adds a user to a reusable bitmap. If the holder is {@code null} the bitmap is only
+     * acquired if it is already in use.
+     */
+    private void acquireBitmap(Bitmap bitmap, BitmapHolder holder) {
+        synchronized (mReusableBitmaps) {
+            ReusableBitmap reusable = mReusableBitmaps.get(bitmap);
+            if (reusable == null) {
+                if (holder == null) {
+                    return;
+                }
+                reusable = new ReusableBitmap(holder);
+                mReusableBitmaps.put(bitmap, reusable);
+            }
+            reusable.users++;
+        }
+    }
+
+    /**
+     * Removes a user from a reusable bitmap. The bitmap goes back to the pool if it was the last
+     * user. Does nothing for a bitmap that is not in use as reusable bitmap.
+     */
+    private void releaseBitmap(Bitmap bitmap) {
+        final BitmapHolder holder;
+        synchronized (mReusableBitmaps) {
+            final ReusableBitmap reusable = mReusableBitmaps.get(bitmap);
+            if (reusable == null || --reusable.users > 0) {
+                return;
+            }
+            mReusableBitmaps.remove(bitmap);
+            holder = reusable.holder;
+        }
+        synchronized (holder) {
+            if (holder.bitmap == bitmap) {
+                // Just inflated again to be displayed - keep it out of the pool
+                return;
+            }
+            if (holder.bitmapRef != null && holder.bitmapRef.get() == bitmap) {
+                holder.bitmapRef = null;
+                holder.decodedSampleSize = 0;
+            }
+        }
+        mBitmapPool.put(bitmap);
     }
 
     @Override
@@ -704,6 +897,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void resume() {
         mPaused = false;
         if (DEBUG) dumpStats();
+
+        // The list resumes photo loading when a scroll starts and when it ends
+        if (DEBUG && mBitmapPool.hasSessionActivity()) {
+            Log.v(TAG, "Scroll session bitmaps: " + mBitmapPool.takeSessionStats());
+        }
         if (!mPendingRequests.isEmpty()) {
             requestLoading();
         }
@@ -731,6 +929,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             case MESSAGE_REQUEST_LOADING: {
                 mLoadingRequested = false;
                 if (!mPaused) {
+                    updateRequestVisibility();
                     ensureLoaderThread();
                     mLoaderThread.requestLoading();
                 }
@@ -755,6 +954,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Marks the pending requests whose view is not attached to a visible window, for example list
+     * rows in the recycler. The loader thread loads these after the visible ones.
+     */
+    private void updateRequestVisibility() {
+        for (Map.Entry<ImageView, Request> entry : mPendingRequests.entrySet()) {
+            final ImageView view = entry.getKey();
+            entry.getValue().setVisible(view.getParent() != null && view.getWindowVisibility() == View.VISIBLE);
+        }
+    }
+
     /**
      * Goes over pending loading requests and displays loaded photos.  If some of the
      * photos still haven't been loaded, sends another request for image loading.
@@ -831,15 +1041,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     /**
-     * Populates an array of photo IDs that need to be loaded. Also decodes bitmaps that we have
-     * already loaded
+     * Collects the pending requests that need to be loaded, requests of visible views first.
+     * Also decodes bitmaps that we have already loaded.
      */
-    private void obtainPhotoIdsAndUrisToLoad(Set<Long> photoIds, Set<String> photoIdsAsStrings, Set<Request> uris) {
-        photoIds.clear();
-        photoIdsAsStrings.clear();
-        uris.clear();
+    private void obtainRequestsToLoad(ArrayList<ImageView> views, ArrayList<Request> requests) {
+        views.clear();
+        requests.clear();
 
         boolean jpegsDecoded = false;
+        int visibleCount = 0;
 
         /*
          * Since the call is made from the loader thread, the map could be
@@ -849,9 +1059,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          * concurrent change, we will need to check the map again once loading
          * is complete.
          */
-        Iterator<Request> iterator = mPendingRequests.values().iterator();
-        while (iterator.hasNext()) {
-            Request request = iterator.next();
+        for (Map.Entry<ImageView, Request> entry : mPendingRequests.entrySet()) {
+            final Request request = entry.getValue();
             final BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
             if (holder != null && holder.bytes != null && holder.fresh &&
                     (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
@@ -860,11 +1069,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 jpegsDecoded = true;
             } else {
                 if (holder == null || !holder.fresh) {
-                    if (request.isUriRequest()) {
-                        uris.add(request);
+                    if (request.isVisible()) {
+                        views.add(visibleCount, entry.getKey());
+                        requests.add(visibleCount, request);
+                        visibleCount++;
                     } else {
-                        photoIds.add(request.getId());
-                        photoIdsAsStrings.add(String.valueOf(request.mId));
+                        views.add(entry.getKey());
+                        requests.add(request);
                     }
                 }
             }
@@ -880,6 +1091,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         private static final int BUFFER_SIZE = 1024*16;
         private static final int MESSAGE_PRELOAD_PHOTOS = 0;
         private static final int MESSAGE_LOAD_PHOTOS = 1;
+        private static final int MESSAGE_PREFETCH_PHOTOS = 2;
+
+        /**
+         * Number of requests loaded with one query. The loader thread checks before each batch
+         * whether the requests are still current.
+         */
+        private static final int LOAD_BATCH = 16;
 
         /**
          * A pause between preload batches that yields to the UI thread.
@@ -899,10 +1117,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         private final ContentResolver mResolver;
         private final StringBuilder mStringBuilder = new StringBuilder();
-        private final Set<Long> mPhotoIds = new HashSet<Long>();
-        private final Set<String> mPhotoIdsAsStrings = new HashSet<String>();
+        private final LongHashSet mPhotoIds = new LongHashSet();
         private final Set<Request> mPhotoUris = new HashSet<Request>();
-        private final List<Long> mPreloadPhotoIds = new ArrayList<Long>();
+
+        /** Requests to load with their views, requests of visible views first */
+        private final ArrayList<ImageView> mLoadViews = new ArrayList<ImageView>();
+        private final ArrayList<Request> mLoadRequests = new ArrayList<Request>();
+
+        /** Photo ids to prefetch, a newer prefetch window replaces this one */
+        private volatile long[] mPrefetchPhotoIds;
+
+        /** Photo ids to preload in query order, mPreloadPosition is the next one to preload */
+        private final LongArray mPreloadPhotoIds = new LongArray();
+        private int mPreloadPosition;
+
+        /** Photo ids of the preload queue that were loaded on request, preloading skips them */
+        private final LongHashSet mLoadedPhotoIds = new LongHashSet();
 
         private Handler mLoaderThreadHandler;
         private byte mBuffer[];
@@ -956,6 +1186,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
         }
 
+        /**
+         * Sends a message to this thread to prefetch the thumbnails.
+         */
+        public void requestPrefetch(long[] photoIds) {
+            mPrefetchPhotoIds = photoIds;
+            ensureHandler();
+            if (!mLoaderThreadHandler.hasMessages(MESSAGE_PREFETCH_PHOTOS)) {
+                mLoaderThreadHandler.sendEmptyMessage(MESSAGE_PREFETCH_PHOTOS);
+            }
+        }
+
         /**
          * Receives the above message, loads photos and then sends a message
          * to the main thread to process them.
@@ -969,6 +1210,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 case MESSAGE_LOAD_PHOTOS:
                     loadPhotosInBackground();
                     break;
+                case MESSAGE_PREFETCH_PHOTOS:
+                    prefetchPhotosInBackground();
+                    break;
             }
             return true;
         }
@@ -1001,23 +1245,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
 
             mPhotoIds.clear();
-            mPhotoIdsAsStrings.clear();
 
             int count = 0;
-            int preloadSize = mPreloadPhotoIds.size();
-            while(preloadSize > 0 && mPhotoIds.size() < PRELOAD_BATCH) {
-                preloadSize--;
+            final int preloadSize = mPreloadPhotoIds.size();
+            while (mPreloadPosition < preloadSize && mPhotoIds.size() < PRELOAD_BATCH) {
+                long photoId = mPreloadPhotoIds.get(mPreloadPosition++);
+                if (mLoadedPhotoIds.contains(photoId)) {
+                    continue;
+                }
                 count++;
-                Long photoId = mPreloadPhotoIds.get(preloadSize);
                 mPhotoIds.add(photoId);
-                mPhotoIdsAsStrings.add(photoId.toString());
-                mPreloadPhotoIds.remove(preloadSize);
             }
 
             loadThumbnails(true);
 
-            if (preloadSize == 0) {
+            if (mPreloadPosition >= preloadSize) {
                 mPreloadStatus = PRELOAD_STATUS_DONE;
+                mPreloadPhotoIds.clear();
+                mLoadedPhotoIds.clear();
             }
             Log.v(TAG, "Preloaded " + count + " photos.  Cached bytes: " + mBitmapHolderCache.size());
 
@@ -1039,9 +1284,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
                 if (cursor != null) {
                     while (cursor.moveToNext()) {
-                        // Insert them in reverse order, because we will be taking
-                        // them from the end of the list for loading.
-                        mPreloadPhotoIds.add(0, cursor.getLong(0));
+                        mPreloadPhotoIds.add(cursor.getLong(0));
                     }
                 }
             } finally {
@@ -1051,54 +1294,115 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
         }
 
+        /**
+         * Loads the pending requests in batches, visible ones first. A request whose view got a
+         * new request in the meantime is dropped before its query. If the UI thread requested
+         * loading again, the remaining requests are left to the next round, which sees the
+         * current visibility.
+         */
         private void loadPhotosInBackground() {
-            obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoIdsAsStrings, mPhotoUris);
-            loadThumbnails(false);
-            loadUriBasedPhotos();
+            obtainRequestsToLoad(mLoadViews, mLoadRequests);
+            final int count = mLoadRequests.size();
+            int position = 0;
+            while (position < count) {
+                if (position > 0 && mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+                    break;
+                }
+                mPhotoIds.clear();
+                mPhotoUris.clear();
+                while (position < count && mPhotoIds.size() + mPhotoUris.size() < LOAD_BATCH) {
+                    final ImageView view = mLoadViews.get(position);
+                    final Request request = mLoadRequests.get(position);
+                    position++;
+                    if (!request.equals(mPendingRequests.get(view))) {
+                        mCancelledRequests.incrementAndGet();
+                        continue;
+                    }
+                    if (request.isUriRequest()) {
+                        mPhotoUris.add(request);
+                    } else {
+                        mPhotoIds.add(request.getId());
+                    }
+                }
+                loadThumbnails(false);
+                loadUriBasedPhotos();
+            }
+            mLoadViews.clear();
+            mLoadRequests.clear();
             requestPreloading();
         }
 
+        /**
+         * Loads the thumbnails of the current prefetch window that are not cached yet. Photos
+         * to display come first, thus this waits for pending load messages.
+         */
+        private void prefetchPhotosInBackground() {
+            if (mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+                mLoaderThreadHandler.sendEmptyMessage(MESSAGE_PREFETCH_PHOTOS);
+                return;
+            }
+            final long[] photoIds = mPrefetchPhotoIds;
+            mPrefetchPhotoIds = null;
+            if (photoIds == null) {
+                return;
+            }
+            mPhotoIds.clear();
+            for (long id : photoIds) {
+                if (id == 0) {
+                    continue;
+                }
+                final BitmapHolder holder = mBitmapHolderCache.get(id);
+                if (holder == null || !holder.fresh) {
+                    mPhotoIds.add(id);
+                }
+            }
+            if (!mPhotoIds.isEmpty()) {
+                mPrefetchedPhotos.addAndGet(mPhotoIds.size());
+                loadThumbnails(true);
+            }
+        }
+
         /** Loads thumbnail photos with ids */
         private void loadThumbnails(boolean preloading) {
             if (mPhotoIds.isEmpty()) {
                 return;
             }
 
-            // Remove loaded photos from the preload queue: we don't want
+            long[] photoIds = mPhotoIds.toArray();
+
+            // Mark loaded photos in the preload queue: we don't want
             // the preloading process to load them again.
             if (!preloading && mPreloadStatus == PRELOAD_STATUS_IN_PROGRESS) {
-                for (Long id : mPhotoIds) {
-                    mPreloadPhotoIds.remove(id);
-                }
-                if (mPreloadPhotoIds.isEmpty()) {
-                    mPreloadStatus = PRELOAD_STATUS_DONE;
+                for (long id : photoIds) {
+                    mLoadedPhotoIds.add(id);
                 }
             }
 
-            mStringBuilder.setLength(0);
-            mStringBuilder.append(Photo._ID + " IN(");
-            for (int i = 0; i < mPhotoIds.size(); i++) {
-                if (i != 0) {
-                    mStringBuilder.append(',');
+            // Thumbnails from the disk cache need only a cheap query for the data versions
+            if (loadThumbnailsFromDiskCache(photoIds, preloading)) {
+                if (mPhotoIds.isEmpty()) {
+                    mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                    return;
                 }
-                mStringBuilder.append('?');
+                photoIds = mPhotoIds.toArray();
             }
-            mStringBuilder.append(')');
 
+            final String[] selectionArgs = buildIdSelection(photoIds);
             Cursor cursor = null;
             try {
-                if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
-                cursor = mResolver.query(Data.CONTENT_URI,
+                if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", selectionArgs));
+                cursor = mResolver.query(ScContactsProvider.PHOTO_THUMBNAILS_URI,
                         COLUMNS,
                         mStringBuilder.toString(),
-                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
+                        selectionArgs,
                         null);
 
                 if (cursor != null) {
                     while (cursor.moveToNext()) {
-                        Long id = cursor.getLong(0);
+                        long id = cursor.getLong(0);
                         byte[] bytes = cursor.getBlob(1);
                         cacheBitmap(id, bytes, preloading, -1);
+                        mDiskCache.put(id, cursor.getLong(2), bytes);
                         mPhotoIds.remove(id);
                     }
                 }
@@ -1109,13 +1413,69 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
 
             // Remaining photos were not found in the contacts database (but might be in profile).
-            for (Long id : mPhotoIds) {
+            for (long id : mPhotoIds.toArray()) {
                 // Not found - mark the cache accordingly
                 cacheBitmap(id, null, preloading, -1);
             }
             mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
         }
 
+        /**
+         * Reads the data versions of the photos and loads the thumbnails that the disk cache
+         * holds for these versions. Removes the loaded photos from {@link #mPhotoIds}.
+         *
+         * @return {@code true} if at least one thumbnail was found in the disk cache
+         */
+        private boolean loadThumbnailsFromDiskCache(long[] photoIds, boolean preloading) {
+            final String[] selectionArgs = buildIdSelection(photoIds);
+            boolean found = false;
+            Cursor cursor = null;
+            try {
+                cursor = mResolver.query(ScContactsProvider.PHOTO_THUMBNAILS_URI,
+                        VERSION_COLUMNS,
+                        mStringBuilder.toString(),
+                        selectionArgs,
+                        null);
+
+                if (cursor != null) {
+                    while (cursor.moveToNext()) {
+                        long id = cursor.getLong(0);
+                        byte[] bytes = mDiskCache.get(id, cursor.getLong(1));
+                        if (bytes != null) {
+                            cacheBitmap(id, bytes, preloading, -1);
+                            mPhotoIds.remove(id);
+                            found = true;
+                        }
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Sets up {@link #mStringBuilder} with the selection for the given photo ids.
+         *
+         * @return the selection arguments
+         */
+        private String[] buildIdSelection(long[] photoIds) {
+            final String[] selectionArgs = new String[photoIds.length];
+            mStringBuilder.setLength(0);
+            mStringBuilder.append(Photo._ID + " IN(");
+            for (int i = 0; i < photoIds.length; i++) {
+                if (i != 0) {
+                    mStringBuilder.append(',');
+                }
+                mStringBuilder.append('?');
+                selectionArgs[i] = String.valueOf(photoIds[i]);
+            }
+            mStringBuilder.append(')');
+            return selectionArgs;
+        }
+
         /**
          * Loads photos referenced with Uris. Those can be remote thumbnails
          * (from directory searches), display photos etc
@@ -1128,6 +1488,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
                 try {
                     if (DEBUG) Log.d(TAG, "Loading " + uri);
+                    // Display photos of our own provider come straight from the mapped photo file
+                    ByteBuffer mapped = ScContactsProvider.mapDisplayPhoto(uri);
+                    if (mapped != null) {
+                        byte[] bytes = new byte[mapped.remaining()];
+                        mapped.get(bytes);
+                        cacheBitmap(uri, bytes, false, uriRequest.getRequestedExtent());
+                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                        continue;
+                    }
                     InputStream is = mResolver.openInputStream(uri);
                     if (is != null) {
                         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -1164,6 +1533,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         private final int mRequestedExtent;
         private final DefaultImageProvider mDefaultProvider;
 
+        /** Set by the UI thread, the loader thread loads requests of visible views first */
+        private volatile boolean mVisible = true;
+
         private Request(long id, Uri uri, int requestedExtent, boolean darkTheme,
                 DefaultImageProvider defaultProvider) {
             mId = id;
@@ -1198,6 +1570,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             return mRequestedExtent;
         }
 
+        public boolean isVisible() {
+            return mVisible;
+        }
+
+        public void setVisible(boolean visible) {
+            mVisible = visible;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
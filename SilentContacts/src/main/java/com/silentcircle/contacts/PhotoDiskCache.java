@@ -0,0 +1,389 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may
+      be used to endorse or promote products derived from this software
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.silentcircle.contacts;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.util.Log;
+
+import com.silentcircle.keymngrsupport.KeyManagerSupport;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Second level cache for contact thumbnails in the app's private cache directory.
+ *
+ * The thumbnails are stored encrypted, one file per photo id. A file contains the data version
+ * of the photo row, the IV, the AES/CBC encrypted thumbnail bytes and a HMAC-SHA256 over photo id,
+ * version, IV and cipher text. A thumbnail is returned only if the version matches the version
+ * the caller got from the database, thus an updated photo replaces the cached one.
+ *
+ * The key data is an own key entry of the key manager. If the key manager is not ready or is
+ * locked the cache behaves as if it were empty.
+ *
+ * The size of the cache is limited, if it grows beyond the limit the least recently used files
+ * are removed.
+ */
+class PhotoDiskCache implements KeyManagerSupport.KeyManagerListener {
+    private static final String TAG = "PhotoDiskCache";
+
+    private static final String DIRECTORY_NAME = "photo_thumbnails";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String KEY_TAG = "contactphotocache";
+    private static final int KEY_DATA_LENGTH = 64;
+
+    private static final int AES_KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final int HEADER_LENGTH = 8 + IV_LENGTH;
+
+    /** Largest thumbnail we accept from a file, protects against garbage */
+    private static final int MAX_FILE_LENGTH = 256 * 1024;
+
+    private final ContentResolver mResolver;
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    private SecretKeySpec mCipherKey;
+    private SecretKeySpec mMacKey;
+    private Cipher mCipher;
+    private Mac mMac;
+
+    /** Sum of all file sizes, -1 until the directory was scanned once */
+    private long mTotalSize = -1;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mStaleCount = new AtomicInteger();
+    private final AtomicInteger mWriteCount = new AtomicInteger();
+
+    PhotoDiskCache(Context context, long maxSize) {
+        mResolver = context.getContentResolver();
+        mDirectory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        mMaxSize = maxSize;
+        KeyManagerSupport.addListener(this);
+    }
+
+    /**
+     * Returns the cached thumbnail for the photo or {@code null} if the cache has no thumbnail for
+     * this version of the photo.
+     */
+    synchronized byte[] get(long photoId, long version) {
+        if (!ensureKeys()) {
+            return null;
+        }
+        final File file = getFile(photoId);
+        final long length = file.length();
+        if (length == 0) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        if (length < HEADER_LENGTH + MAC_LENGTH || length > MAX_FILE_LENGTH) {
+            removeFile(file);
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        final byte[] data = new byte[(int)length];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(data);
+        } catch (IOException e) {
+            mMissCount.incrementAndGet();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        if (readLong(data) != version) {
+            removeFile(file);
+            mStaleCount.incrementAndGet();
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        try {
+            final int macOffset = data.length - MAC_LENGTH;
+            final byte[] mac = computeMac(photoId, data, macOffset);
+            if (!MessageDigest.isEqual(mac, Arrays.copyOfRange(data, macOffset, data.length))) {
+                Log.w(TAG, "Wrong MAC, removing cached thumbnail " + photoId);
+                removeFile(file);
+                mMissCount.incrementAndGet();
+                return null;
+            }
+            mCipher.init(Cipher.DECRYPT_MODE, mCipherKey, new IvParameterSpec(data, 8, IV_LENGTH));
+            final byte[] bytes = mCipher.doFinal(data, HEADER_LENGTH, macOffset - HEADER_LENGTH);
+            file.setLastModified(System.currentTimeMillis());
+            mHitCount.incrementAndGet();
+            return bytes;
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Cannot decrypt cached thumbnail " + photoId + ": " + e);
+            removeFile(file);
+            mMissCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the thumbnail of the given photo version, replaces a previously stored version.
+     */
+    synchronized void put(long photoId, long version, byte[] bytes) {
+        if (bytes == null || !ensureKeys()) {
+            return;
+        }
+        if (mTotalSize < 0) {
+            mTotalSize = computeTotalSize();
+        }
+        final File file = getFile(photoId);
+        final File tmpFile = new File(mDirectory, photoId + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            final byte[] iv = new byte[IV_LENGTH];
+            mRandom.nextBytes(iv);
+            mCipher.init(Cipher.ENCRYPT_MODE, mCipherKey, new IvParameterSpec(iv));
+            final byte[] cipherText = mCipher.doFinal(bytes);
+
+            final byte[] data = new byte[HEADER_LENGTH + cipherText.length + MAC_LENGTH];
+            writeLong(data, version);
+            System.arraycopy(iv, 0, data, 8, IV_LENGTH);
+            System.arraycopy(cipherText, 0, data, HEADER_LENGTH, cipherText.length);
+            final int macOffset = data.length - MAC_LENGTH;
+            System.arraycopy(computeMac(photoId, data, macOffset), 0, data, macOffset, MAC_LENGTH);
+
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                Log.w(TAG, "Cannot create cache directory");
+                return;
+            }
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.write(data);
+            out.close();
+            out = null;
+
+            final long oldLength = file.length();
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                return;
+            }
+            mTotalSize += data.length - oldLength;
+            mWriteCount.incrementAndGet();
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Cannot encrypt thumbnail " + photoId + ": " + e);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write thumbnail " + photoId + ": " + e);
+            tmpFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+        if (mTotalSize > mMaxSize) {
+            trim(mMaxSize * 3 / 4);
+        }
+    }
+
+    /**
+     * Removes all cached thumbnails.
+     */
+    synchronized void clear() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mTotalSize = 0;
+    }
+
+    String getStats() {
+        final int hits = mHitCount.get();
+        final int requests = hits + mMissCount.get();
+        return "hits=" + hits + ", misses=" + (requests - hits) + ", hit rate="
+                + (requests == 0 ? 0 : hits * 100 / requests) + "%, stale=" + mStaleCount.get()
+                + ", writes=" + mWriteCount.get() + ", size=" + ((mTotalSize + 1023) / 1024) + "K";
+    }
+
+    /**
+     * Gets the key data from the key manager and sets up cipher and MAC.
+     *
+     * @return {@code true} if the keys are available
+     */
+    private boolean ensureKeys() {
+        if (mCipherKey != null) {
+            return true;
+        }
+        byte[] data = KeyManagerSupport.getPrivateKeyData(mResolver, KEY_TAG);
+        if (data == null) {             // is not yet available - create one
+            data = KeyManagerSupport.randomPrivateKeyData(mResolver, KEY_TAG, KEY_DATA_LENGTH);
+        }
+        if (data == null) {             // key manager not ready yet
+            return false;
+        }
+        try {
+            final byte[] keys = MessageDigest.getInstance("SHA-512").digest(data);
+            mCipherKey = new SecretKeySpec(keys, 0, AES_KEY_LENGTH, "AES");
+            mMacKey = new SecretKeySpec(keys, AES_KEY_LENGTH, keys.length - AES_KEY_LENGTH, "HmacSHA256");
+            Arrays.fill(keys, (byte) 0);
+            if (mCipher == null) {
+                mCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                mMac = Mac.getInstance("HmacSHA256");
+            }
+            mMac.init(mMacKey);
+            return true;
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Cannot initialize thumbnail cache encryption: " + e);
+            mCipherKey = null;
+            mMacKey = null;
+            return false;
+        } finally {
+            Arrays.fill(data, (byte) 0);
+        }
+    }
+
+    private byte[] computeMac(long photoId, byte[] data, int length) {
+        final byte[] id = new byte[8];
+        writeLong(id, photoId);
+        mMac.update(id);
+        mMac.update(data, 0, length);
+        return mMac.doFinal();
+    }
+
+    private File getFile(long photoId) {
+        return new File(mDirectory, Long.toString(photoId));
+    }
+
+    private void removeFile(File file) {
+        final long length = file.length();
+        if (file.delete() && mTotalSize >= 0) {
+            mTotalSize -= length;
+        }
+    }
+
+    private long computeTotalSize() {
+        final File[] files = mDirectory.listFiles();
+        long size = 0;
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes the least recently used files until the cache size is below the given size.
+     */
+    private void trim(long targetSize) {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final long l = lastModified[lhs];
+                final long r = lastModified[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        long size = computeTotalSize();
+        int removed = 0;
+        for (int i = 0; i < order.length && size > targetSize; i++) {
+            final File file = files[order[i]];
+            final long length = file.length();
+            if (file.delete()) {
+                size -= length;
+                removed++;
+            }
+        }
+        mTotalSize = size;
+        if (ContactPhotoManager.DEBUG) Log.d(TAG, "Trimmed " + removed + " thumbnails, size now " + size);
+    }
+
+    private static long readLong(byte[] data) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] data, long value) {
+        for (int i = 7; i >= 0; i--) {
+            data[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /*
+     * Key manager callbacks. If the key manager gets locked we forget the keys, they are read
+     * again on the next access after the key manager was unlocked.
+     */
+    @Override
+    public void onKeyDataRead() {}
+
+    @Override
+    public synchronized void onKeyManagerUnlockRequest() {}
+
+    @Override
+    public synchronized void onKeyManagerLockRequest() {
+        mCipherKey = null;
+        mMacKey = null;
+    }
+}
@@ -204,6 +204,11 @@ public class EmailAddressListAdapter extends ScContactEntryListAdapter {
         view.showDisplayName(cursor, EmailQuery.EMAIL_DISPLAY_NAME, getContactNameDisplayOrder());
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return EmailQuery.EMAIL_PHOTO_ID;
+    }
+
     protected void bindPhoto(final ContactListItemView view, Cursor cursor) {
         long photoId = 0;
         if (!cursor.isNull(EmailQuery.EMAIL_PHOTO_ID)) {
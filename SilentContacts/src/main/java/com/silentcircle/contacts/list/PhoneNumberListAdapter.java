@@ -328,6 +328,11 @@ public class PhoneNumberListAdapter extends ScContactEntryListAdapter {
         view.hideDisplayName();
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return PhoneQuery.PHONE_PHOTO_ID;
+    }
+
     protected void bindPhoto(final ContactListItemView view, Cursor cursor) {
         long photoId = 0;
         if (!cursor.isNull(PhoneQuery.PHONE_PHOTO_ID)) {
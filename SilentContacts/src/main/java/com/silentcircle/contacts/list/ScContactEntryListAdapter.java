@@ -645,6 +645,45 @@ public abstract class ScContactEntryListAdapter extends IndexerListAdapter {
         }
     }
 
+    /**
+     * Returns the thumbnail photo id of the entry at the given position. Returns 0 if the entry
+     * has no photo, if the adapter does not display photos or if it doesn't know the photo id
+     * column.
+     */
+    public long getPhotoId(int position) {
+        final int photoIdColumn = getPhotoIdColumnIndex();
+        if (!mDisplayPhotos || photoIdColumn < 0) {
+            return 0;
+        }
+        final int partition = getPartitionForPosition(position);
+        if (partition < 0 || !isPhotoSupported(partition)) {
+            return 0;
+        }
+        final Cursor partitionCursor = getCursor(partition);
+        if (partitionCursor == null) {
+            return 0;
+        }
+        // Save the old cursor position - the call to getItem() may modify the cursor position.
+        final int offset = partitionCursor.getPosition();
+        long photoId = 0;
+        final Cursor cursor = (Cursor) getItem(position);
+        if (cursor != null) {
+            if (!cursor.isNull(photoIdColumn)) {
+                photoId = cursor.getLong(photoIdColumn);
+            }
+            cursor.moveToPosition(offset);
+        }
+        return photoId;
+    }
+
+    /**
+     * Returns the index of the thumbnail photo id column in the cursors of this adapter, -1 if
+     * the cursors don't have such a column.
+     */
+    protected int getPhotoIdColumnIndex() {
+        return -1;
+    }
+
     public boolean isPhotoSupported(int partitionIndex) {
         Partition partition = getPartition(partitionIndex);
         if (partition instanceof DirectoryPartition) {
@@ -59,6 +59,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.CursorLoader;
@@ -125,6 +126,14 @@ public abstract class ScContactEntryListFragment<T extends ScContactEntryListAda
 
     private static final int DEFAULT_DIRECTORY_RESULT_LIMIT = 20;
 
+    /**
+     * The photo prefetch window covers the rows that scroll into view within this time at the
+     * current scroll speed, but at least PREFETCH_MIN_ROWS and at most PREFETCH_MAX_ROWS rows.
+     */
+    private static final int PREFETCH_LOOKAHEAD_MILLIS = 500;
+    private static final int PREFETCH_MIN_ROWS = 4;
+    private static final int PREFETCH_MAX_ROWS = 32;
+
     private boolean mSectionHeaderDisplayEnabled;
     private boolean mPhotoLoaderEnabled;
     private boolean mQuickContactEnabled = true;
@@ -153,6 +162,9 @@ public abstract class ScContactEntryListFragment<T extends ScContactEntryListAda
     private int mDirectoryResultLimit = DEFAULT_DIRECTORY_RESULT_LIMIT;
 
     private ContactPhotoManager mPhotoManager;
+    private int mScrollState = OnScrollListener.SCROLL_STATE_IDLE;
+    private int mLastFirstVisibleItem = -1;
+    private long mLastScrollTime;
     private ContactListEmptyView mEmptyView;
     private ContactsPreferences mContactsPrefs;
 
@@ -816,10 +828,53 @@ public abstract class ScContactEntryListFragment<T extends ScContactEntryListAda
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        if (firstVisibleItem == mLastFirstVisibleItem) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final int delta = firstVisibleItem - mLastFirstVisibleItem;
+        final long elapsed = now - mLastScrollTime;
+        final boolean first = mLastFirstVisibleItem < 0;
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastScrollTime = now;
+
+        // During a fling photo loading is paused anyway, most of these rows just fly by
+        if (first || mScrollState == OnScrollListener.SCROLL_STATE_FLING || !isPhotoLoaderEnabled()
+                || mPhotoManager == null || mAdapter == null) {
+            return;
+        }
+        int window = PREFETCH_MIN_ROWS;
+        if (elapsed > 0) {
+            window = Math.max(window, (int) ((long) Math.abs(delta) * PREFETCH_LOOKAHEAD_MILLIS / elapsed));
+        }
+        window = Math.min(window, PREFETCH_MAX_ROWS);
+
+        final int headerCount = mListView != null ? mListView.getHeaderViewsCount() : 0;
+        final int itemCount = mAdapter.getCount();
+        int start;
+        int end;
+        if (delta > 0) {
+            start = firstVisibleItem + visibleItemCount - headerCount;
+            end = start + window;
+        } else {
+            end = firstVisibleItem - headerCount;
+            start = end - window;
+        }
+        start = Math.max(start, 0);
+        end = Math.min(end, itemCount);
+        if (start >= end) {
+            return;
+        }
+        final long[] photoIds = new long[end - start];
+        for (int i = start; i < end; i++) {
+            photoIds[i - start] = mAdapter.getPhotoId(i);
+        }
+        mPhotoManager.prefetchThumbnails(photoIds);
     }
 
     @Override
     public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mScrollState = scrollState;
         if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
             mPhotoManager.pause();
         } else if (isPhotoLoaderEnabled()) {
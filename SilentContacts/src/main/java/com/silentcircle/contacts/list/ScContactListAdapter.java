@@ -230,6 +230,11 @@ public abstract class ScContactListAdapter extends ScContactEntryListAdapter {
         }
     }
 
+    @Override
+    protected int getPhotoIdColumnIndex() {
+        return ContactQuery.CONTACT_PHOTO_ID;
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
@@ -66,9 +66,11 @@ import com.silentcircle.silentcontacts.ScContactsContract.Directory;
 import com.silentcircle.silentcontacts.ScContactsContract.RawContacts;
 import com.silentcircle.silentcontacts.ScContactsContract.SearchSnippetColumns;
 import com.silentcircle.contacts.preference.ContactsPreferences;
+import com.silentcircle.contacts.providers.ScContactsProvider;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A cursor adapter for the {@link ContactsContract.Contacts#CONTENT_TYPE} content type.
@@ -83,6 +85,11 @@ public class ScDefaultContactListAdapter extends ScContactListAdapter {
     public static final String SNIPPET_ARGS = SNIPPET_START_MATCH + "," + SNIPPET_END_MATCH + ","
             + SNIPPET_ELLIPSIS + "," + SNIPPET_MAX_TOKENS;
 
+    private static final AtomicInteger sNextFilterSession = new AtomicInteger();
+
+    /** Lets the provider refine the previous filter result of this list while the user types */
+    private final String mFilterSession = String.valueOf(sNextFilterSession.incrementAndGet());
+
     public ScDefaultContactListAdapter(Context context) {
         super(context);
     }
@@ -117,6 +124,9 @@ public class ScDefaultContactListAdapter extends ScContactListAdapter {
                 }
                 builder.appendQueryParameter(SearchSnippetColumns.SNIPPET_ARGS_PARAM_KEY, SNIPPET_ARGS);
                 builder.appendQueryParameter(SearchSnippetColumns.DEFERRED_SNIPPETING_KEY,"1");
+                if (directoryId == Directory.DEFAULT) {
+                    builder.appendQueryParameter(ScContactsProvider.FILTER_SESSION_PARAM_KEY, mFilterSession);
+                }
                 loader.setUri(builder.build());
                 loader.setProjection(getProjection(true));
             }
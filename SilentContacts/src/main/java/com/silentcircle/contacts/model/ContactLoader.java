@@ -69,6 +69,7 @@ import com.silentcircle.contacts.model.account.AccountType;
 import com.silentcircle.contacts.model.dataitem.DataItem;
 import com.silentcircle.contacts.model.dataitem.PhoneDataItem;
 import com.silentcircle.contacts.model.dataitem.PhotoDataItem;
+import com.silentcircle.contacts.providers.ScContactsProvider;
 import com.silentcircle.contacts.utils.ContactLoaderUtils;
 import com.silentcircle.contacts.utils.StreamItemPhotoEntry;
 import com.silentcircle.contacts.utils.UriUtils;
@@ -87,6 +88,7 @@ import com.google.common.collect.Sets;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -383,6 +385,14 @@ public class ContactLoader extends AsyncTaskLoader<Contact> {
         // If we have a photo URI, try loading that first.
         String photoUri = contactData.getPhotoUri();
         if (photoUri != null) {
+            // Display photos of our own provider come straight from the mapped photo file
+            ByteBuffer mapped = ScContactsProvider.mapDisplayPhoto(Uri.parse(photoUri));
+            if (mapped != null) {
+                byte[] bytes = new byte[mapped.remaining()];
+                mapped.get(bytes);
+                contactData.setPhotoBinaryData(bytes);
+                return;
+            }
             try {
                 AssetFileDescriptor fd = getContext().getContentResolver()
                        .openAssetFileDescriptor(Uri.parse(photoUri), "r");
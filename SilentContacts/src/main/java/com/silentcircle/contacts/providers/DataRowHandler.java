@@ -140,7 +140,9 @@ public abstract class DataRowHandler {
      * Inserts a row into the {@link Data} table.
      */
     public long insert(SQLiteDatabase db, TransactionContext txContext, long rawContactId, ContentValues values) {
-        final long dataId = db.insert(Tables.DATA, null, values);
+        final long dataId = txContext.isBulkInsert()
+                ? mDbHelper.insertWithCachedStatement(Tables.DATA, null, values)
+                : db.insert(Tables.DATA, null, values);
 
         final Integer primary = values.getAsInteger(Data.IS_PRIMARY);
         final Integer superPrimary = values.getAsInteger(Data.IS_SUPER_PRIMARY);
@@ -330,6 +332,11 @@ public abstract class DataRowHandler {
     }
 
     protected void fixRawContactDisplayName(SQLiteDatabase db, TransactionContext txContext, long rawContactId) {
+        // A bulk insert derives the display name once per raw contact at the end of the batch
+        if (txContext.isBulkInsert()) {
+            txContext.invalidateDisplayNameForRawContact(rawContactId);
+            return;
+        }
 //        if (!isNewRawContact(txContext, rawContactId)) {
             mDbHelper.updateRawContactDisplayName(db, rawContactId);
 //            mContactAggregator.updateDisplayNameForRawContact(db, rawContactId);
@@ -52,12 +52,17 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.util.Log;
 
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.DataColumns;
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.PhotoThumbnailsColumns;
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Tables;
 import com.silentcircle.contacts.providers.aggregation.SimpleRawContactAggregator;
 import com.silentcircle.silentcontacts.ScContactsContract.CommonDataKinds.Photo;
 
 import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 
 
@@ -102,7 +107,12 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
             }
         }
 
+        final boolean hasThumbnail = values.containsKey(Photo.PHOTO);
+        final byte[] thumbnail = takeThumbnail(values);
         long dataId = super.insert(db, txContext, rawContactId, values);
+        if (hasThumbnail && dataId != 0) {
+            storeThumbnail(db, dataId, thumbnail);
+        }
 // TODO?       if (!txContext.isNewRawContact(rawContactId)) {
             mSimpleAggregator.updatePhotoId(db, rawContactId);
 //        }
@@ -124,9 +134,14 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
             }
         }
         // Do the actual update.
+        final boolean hasThumbnail = values.containsKey(Photo.PHOTO);
+        final byte[] thumbnail = takeThumbnail(values);
         if (!super.update(db, txContext, values, c, callerIsSyncAdapter)) {
             return false;
         }
+        if (hasThumbnail) {
+            storeThumbnail(db, c.getLong(DataUpdateQuery._ID), thumbnail);
+        }
         mSimpleAggregator.updatePhotoId(db, rawContactId);
         return true;
     }
@@ -156,6 +171,32 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
         return true;
     }
 
+    /**
+     * Removes the thumbnail from the values, the thumbnail goes to {@link Tables#PHOTO_THUMBNAILS}.
+     * The photo column of the data row stays in the values as null, thus an update that only
+     * changes the thumbnail still updates the data row and its data version.
+     */
+    private byte[] takeThumbnail(ContentValues values) {
+        if (!values.containsKey(Photo.PHOTO)) {
+            return null;
+        }
+        byte[] thumbnail = values.getAsByteArray(Photo.PHOTO);
+        values.putNull(Photo.PHOTO);
+        return thumbnail != null && thumbnail.length > 0 ? thumbnail : null;
+    }
+
+    private void storeThumbnail(SQLiteDatabase db, long dataId, byte[] thumbnail) {
+        if (thumbnail == null) {
+            mSelectionArgs1[0] = String.valueOf(dataId);
+            db.delete(Tables.PHOTO_THUMBNAILS, PhotoThumbnailsColumns.DATA_ID + "=?", mSelectionArgs1);
+            return;
+        }
+        ContentValues values = new ContentValues(2);
+        values.put(PhotoThumbnailsColumns.DATA_ID, dataId);
+        values.put(PhotoThumbnailsColumns.THUMBNAIL, thumbnail);
+        db.replace(Tables.PHOTO_THUMBNAILS, null, values);
+    }
+
     private boolean hasNonNullPhoto(ContentValues values) {
         byte[] photoBytes = values.getAsByteArray(Photo.PHOTO);
         return photoBytes != null && photoBytes.length > 0;
@@ -179,9 +220,22 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
     private boolean processPhoto(ContentValues values) {
         byte[] originalPhoto = values.getAsByteArray(Photo.PHOTO);
         if (originalPhoto != null) {
+            final String contentHash = PhotoStore.computeContentHash(originalPhoto, mMaxDisplayPhotoDim,
+                    mMaxThumbnailPhotoDim, false);
+            final long sharedFileId = mPhotoStore.acquire(contentHash);
+            if (sharedFileId != 0) {
+                // An identical photo is already stored, reuse its file and thumbnail
+                byte[] thumbnail = getSharedThumbnail(sharedFileId);
+                if (thumbnail != null) {
+                    values.put(Photo.PHOTO_FILE_ID, sharedFileId);
+                    values.put(Photo.PHOTO, thumbnail);
+                    return true;
+                }
+            }
             try {
-                PhotoProcessor processor = new PhotoProcessor(originalPhoto, mMaxDisplayPhotoDim, mMaxThumbnailPhotoDim);
-                long photoFileId = mPhotoStore.insert(processor, true); // WD - Added 'true'
+                PhotoProcessor processor = new PhotoProcessor(originalPhoto, mMaxDisplayPhotoDim, mMaxThumbnailPhotoDim,
+                        false, contentHash);
+                long photoFileId = sharedFileId != 0 ? sharedFileId : mPhotoStore.insert(processor, true); // WD - Added 'true'
                 if (photoFileId != 0) {
                     values.put(Photo.PHOTO_FILE_ID, photoFileId);
                 } else {
@@ -195,4 +249,60 @@ public class DataRowHandlerForPhoto extends DataRowHandler {
         }
         return false;
     }
+
+    /**
+     * Returns the thumbnail of a stored photo without processing the original photo again. The
+     * thumbnail is copied from a data row that already references the photo file, or derived from
+     * the stored display photo which is much smaller than most originals.
+     *
+     * @return the thumbnail or {@code null} if neither source is available
+     */
+    private byte[] getSharedThumbnail(long photoFileId) {
+        mSelectionArgs1[0] = String.valueOf(photoFileId);
+        Cursor c = mDbHelper.getDatabase(false).query(Tables.DATA + " JOIN " + Tables.PHOTO_THUMBNAILS + " ON ("
+                        + PhotoThumbnailsColumns.CONCRETE_DATA_ID + "=" + DataColumns.CONCRETE_ID + ")",
+                new String[] {PhotoThumbnailsColumns.CONCRETE_THUMBNAIL},
+                DataColumns.CONCRETE_DATA14 + "=?", mSelectionArgs1, null, null, null, "1");
+        try {
+            if (c.moveToFirst()) {
+                return c.getBlob(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        PhotoStore.Entry entry = mPhotoStore.get(photoFileId);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            byte[] displayPhoto = readFile(new File(entry.path), entry.size);
+            return new PhotoProcessor(displayPhoto, mMaxDisplayPhotoDim, mMaxThumbnailPhotoDim, false, null)
+                    .getThumbnailPhotoBytes();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not derive thumbnail from stored photo " + photoFileId + ": " + e);
+            return null;
+        }
+    }
+
+    private static byte[] readFile(File file, long size) throws IOException {
+        if (size <= 0 || size > Integer.MAX_VALUE) {
+            throw new IOException("Unexpected photo file size " + size);
+        }
+        byte[] data = new byte[(int) size];
+        FileInputStream is = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = is.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Photo file truncated: " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            is.close();
+        }
+        return data;
+    }
 }
@@ -55,12 +55,24 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.text.TextUtils;
 import android.util.Log;
 
-import java.util.HashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.silentcircle.silentcontacts.ScContactsContract;
 
@@ -68,39 +80,55 @@ import com.silentcircle.silentcontacts.ScContactsContract;
  * Cache for the "fast scrolling index".
  *
  * It's a cache from "keys" and "bundles" (see {@link #mCache} for what they are).  The cache
- * content is also persisted in the shared preferences, so it'll survive even if the process
+ * content is also persisted in a small binary file, so it'll survive even if the process
  * is killed or the device reboots.
  *
- * All the content will be invalidated when the provider detects an operation that could potentially
- * change the index.
+ * The provider invalidates all entries on an operation that could change every index, for example
+ * a changed display name, and only the entries of one content URI on an operation that can only
+ * change the index of this URI.
  *
- * There's no maximum number for cached entries.  It's okay because we store keys and values in
- * a compact form in both the in-memory cache and the preferences.  Also the query in question
- * (the query for contact lists) has relatively low number of variations.
+ * The cache keeps at most {@link #MAX_ENTRIES} entries and drops the least recently used entry
+ * first. The persisted file is loaded and written on a background thread, a query that runs
+ * before the file is loaded just sees a miss.
  *
  * This class is thread-safe.
  */
 public class FastScrollingIndexCache {
     private static final String TAG = "LetterCountCache";
 
+    /** The cache used a string in the shared preferences before it moved to its own file */
+    private static final String PREFERENCE_KEY = "LetterCountCache";
+
     // @VisibleForTesting
-    static final String PREFERENCE_KEY = "LetterCountCache";
+    static final String FILE_NAME = "fast_scrolling_index.bin";
 
-    /**
-     * Separator used for in-memory structure.
-     */
-    private static final String SEPARATOR = "\u0001";
-    private static final Pattern SEPARATOR_PATTERN = Pattern.compile(SEPARATOR);
+    private static final int FILE_MAGIC = 0x53434649;    // "SCFI"
+    private static final int FILE_VERSION = 1;
+
+    /** Maximum number of cached indexes, the list queries have a low number of variations */
+    private static final int MAX_ENTRIES = 32;
 
     /**
-     * Separator used for serializing values for preferences.
+     * Separator used for building the keys.
      */
-    private static final String SAVE_SEPARATOR = "\u0002";
-    private static final Pattern SAVE_SEPARATOR_PATTERN = Pattern.compile(SAVE_SEPARATOR);
+    private static final String SEPARATOR = "\u0001";
 
     private final SharedPreferences mPrefs;
+    private final File mFile;
+
+    /** Loads and saves the cache file, one task at a time */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, TAG);
+        }
+    });
+
+    private boolean mLoaded;
+    private boolean mSavePending;
 
-    private boolean mPreferenceLoaded;
+    /** Counts the invalidations, the loader drops the file content if one happened while it was reading */
+    private int mGeneration;
 
     /**
      * In-memory cache.
@@ -108,26 +136,43 @@ public class FastScrollingIndexCache {
      * It's essentially a map from keys, which are query parameters passed to {@link #get}, to
      * values, which are {@link Bundle}s that will be appended to a {@link Cursor} as extras.
      *
-     * However, in order to save memory, we store stringified keys and values in the cache.
-     * Key strings are generated by {@link #buildCacheKey} and values are generated by
-     * {@link #buildCacheValue}.
-     *
-     * We store those strings joined with {@link #SAVE_SEPARATOR} as the separator when saving
-     * to shared preferences.
+     * Key strings are generated by {@link #buildCacheKey}, the values keep the decoded titles and
+     * counts, thus a hit only wraps the arrays into a new {@link Bundle}. The map is in access
+     * order and drops its eldest entry if it grows beyond {@link #MAX_ENTRIES}.
      */
-    private final Map<String, String> mCache = new HashMap<String, String>();
+    private final LinkedHashMap<String, Entry> mCache = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
 
-    public FastScrollingIndexCache(Context context) {
-        this(PreferenceManager.getDefaultSharedPreferences(context));
+    private static final class Entry {
+        final String[] titles;
+        final int[] counts;
 
-        // At this point, the SharedPreferences might just have been generated and may still be
-        // loading from the file, in which case loading from the preferences would be blocked.
-        // To avoid that, we load lazily.
+        Entry(String[] titles, int[] counts) {
+            this.titles = titles;
+            this.counts = counts;
+        }
+    }
+
+    public FastScrollingIndexCache(Context context) {
+        this(PreferenceManager.getDefaultSharedPreferences(context), new File(context.getFilesDir(), FILE_NAME));
     }
 
     // @VisibleForTesting
-    FastScrollingIndexCache(SharedPreferences prefs) {
+    FastScrollingIndexCache(SharedPreferences prefs, File file) {
         mPrefs = prefs;
+        mFile = file;
+
+        // Reading the file may take a while on a busy device, don't block the first query
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
     }
 
     /**
@@ -163,22 +208,6 @@ public class FastScrollingIndexCache {
         return sb.toString();
     }
 
-    // @VisibleForTesting
-    static String buildCacheValue(String[] titles, int[] counts) {
-        final StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < titles.length; i++) {
-            if (i > 0) {
-                appendIfNotNull(sb, SEPARATOR);
-            }
-            appendIfNotNull(sb, titles[i]);
-            appendIfNotNull(sb, SEPARATOR);
-            appendIfNotNull(sb, Integer.toString(counts[i]));
-        }
-
-        return sb.toString();
-    }
-
     /**
      * Creates and returns a {@link Bundle} that is appended to a {@link Cursor} as extras.
      */
@@ -189,62 +218,21 @@ public class FastScrollingIndexCache {
         return bundle;
     }
 
-// @VisibleForTesting
-    static Bundle buildExtraBundleFromValue(String value) {
-        final String[] values;
-        if (TextUtils.isEmpty(value)) {
-            values = new String[0];
-        }
-        else {
-            values = SEPARATOR_PATTERN.split(value);
-        }
-
-        if ((values.length) % 2 != 0) {
-            return null; // malformed
-        }
-
-        try {
-            final int numTitles = values.length / 2;
-            final String[] titles = new String[numTitles];
-            final int[] counts = new int[numTitles];
-
-            for (int i = 0; i < numTitles; i++) {
-                titles[i] = values[i * 2];
-                counts[i] = Integer.parseInt(values[i * 2 + 1]);
-            }
-
-            return buildExtraBundle(titles, counts);
-        }
-        catch (RuntimeException e) {
-            Log.w(TAG, "Failed to parse cached value", e);
-            return null; // malformed
-        }
-    }
-
     public Bundle get(Uri queryUri, String selection, String[] selectionArgs, String sortOrder, String countExpression) {
         synchronized (mCache) {
-            ensureLoaded();
             final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder, countExpression);
-            final String value = mCache.get(key);
-            if (value == null) {
+            final Entry entry = mCache.get(key);
+            if (entry == null) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "Miss: " + key);
+                    Log.v(TAG, "Miss: " + key + (mLoaded ? "" : " (loading)"));
                 }
                 return null;
             }
-
-            final Bundle b = buildExtraBundleFromValue(value);
-            if (b == null) {
-                // Value was malformed for whatever reason.
-                mCache.remove(key);
-                save();
-            }
-            else {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "Hit:  " + key);
-                }
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Hit:  " + key);
             }
-            return b;
+            // The bundle only references the arrays, nobody modifies them
+            return buildExtraBundle(entry.titles, entry.counts);
         }
     }
 
@@ -254,14 +242,15 @@ public class FastScrollingIndexCache {
      */
     public void put(Uri queryUri, String selection, String[] selectionArgs, String sortOrder, String countExpression,
             Bundle bundle) {
+        final String[] titles = bundle.getStringArray(ScContactsContract.ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
+        final int[] counts = bundle.getIntArray(ScContactsContract.ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS);
+        if (titles == null || counts == null || titles.length != counts.length) {
+            return;
+        }
         synchronized (mCache) {
-            ensureLoaded();
             final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder, countExpression);
-            mCache.put(
-                    key,
-                    buildCacheValue(bundle.getStringArray(ScContactsContract.ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_TITLES),
-                            bundle.getIntArray(ScContactsContract.ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS)));
-            save();
+            mCache.put(key, new Entry(titles, counts));
+            scheduleSave();
 
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.v(TAG, "Put: " + key);
@@ -269,11 +258,17 @@ public class FastScrollingIndexCache {
         }
     }
 
+    /**
+     * Invalidates all cached indexes.
+     */
     public void invalidate() {
         synchronized (mCache) {
-            mPrefs.edit().remove(PREFERENCE_KEY).apply();
+            mGeneration++;
+            if (mCache.isEmpty() && mLoaded) {
+                return;
+            }
             mCache.clear();
-            mPreferenceLoaded = true;
+            scheduleSave();
 
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.v(TAG, "Invalidated");
@@ -282,63 +277,171 @@ public class FastScrollingIndexCache {
     }
 
     /**
-     * Store the cache to the preferences.
+     * Invalidates the cached indexes of queries on the given content URI and its sub-paths.
+     */
+    public void invalidate(Uri contentUri) {
+        final String prefix = contentUri.toString();
+        synchronized (mCache) {
+            mGeneration++;
+            boolean removed = false;
+            for (Iterator<String> it = mCache.keySet().iterator(); it.hasNext(); ) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                    removed = true;
+                }
+            }
+            if (removed) {
+                scheduleSave();
+            }
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Invalidated: " + prefix);
+            }
+        }
+    }
+
+    /**
+     * Writes the cache to its file on the background thread.
      *
-     * We concatenate all key+value pairs into one string and save it.
+     * Must be called with the lock held. Several changes in a row cause only one write.
+     */
+    private void scheduleSave() {
+        if (mSavePending) {
+            return;
+        }
+        mSavePending = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /**
+     * Store the cache to its file.
+     *
+     * The content goes to a temporary file first which then replaces the old file, a crash
+     * while writing never leaves a partly written cache.
      */
     private void save() {
-        final StringBuilder sb = new StringBuilder();
-        for (String key : mCache.keySet()) {
-            if (sb.length() > 0) {
-                appendIfNotNull(sb, SAVE_SEPARATOR);
+        final ArrayList<String> keys;
+        final ArrayList<Entry> entries;
+        synchronized (mCache) {
+            mSavePending = false;
+            keys = new ArrayList<String>(mCache.keySet());
+            entries = new ArrayList<Entry>(mCache.values());
+        }
+        if (keys.isEmpty()) {
+            if (mFile.exists() && !mFile.delete()) {
+                Log.w(TAG, "Failed to delete " + mFile);
+            }
+            return;
+        }
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                final Entry entry = entries.get(i);
+                out.writeUTF(keys.get(i));
+                out.writeInt(entry.titles.length);
+                for (int j = 0; j < entry.titles.length; j++) {
+                    out.writeUTF(entry.titles[j] != null ? entry.titles[j] : "");
+                    out.writeInt(entry.counts[j]);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mFile)) {
+                Log.w(TAG, "Failed to rename " + tmpFile);
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save to " + mFile, e);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
             }
-            appendIfNotNull(sb, key);
-            appendIfNotNull(sb, SAVE_SEPARATOR);
-            appendIfNotNull(sb, mCache.get(key));
         }
-        mPrefs.edit().putString(PREFERENCE_KEY, sb.toString()).apply();
     }
 
-    private void ensureLoaded() {
-        if (mPreferenceLoaded) return;
-
+    /**
+     * Reads the cache file.
+     *
+     * Entries that queries put into the cache in the meantime are newer than the file content and
+     * win. If the cache was invalidated while reading then the file content is stale and dropped.
+     */
+    private void load() {
+        final int generation;
+        synchronized (mCache) {
+            generation = mGeneration;
+        }
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
             Log.v(TAG, "Loading...");
         }
 
-        // Even when we fail to load, don't retry loading again.
-        mPreferenceLoaded = true;
+        // The cache lived in the shared preferences before, don't leave the old string behind
+        if (mPrefs.contains(PREFERENCE_KEY)) {
+            mPrefs.edit().remove(PREFERENCE_KEY).apply();
+        }
 
-        boolean successfullyLoaded = false;
+        final LinkedHashMap<String, Entry> loaded = new LinkedHashMap<String, Entry>();
+        DataInputStream in = null;
         try {
-            final String savedValue = mPrefs.getString(PREFERENCE_KEY, null);
-
-            if (!TextUtils.isEmpty(savedValue)) {
-
-                final String[] keysAndValues = SAVE_SEPARATOR_PATTERN.split(savedValue);
-
-                if ((keysAndValues.length % 2) != 0) {
-                    return; // malformed
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Unknown file format");
+            }
+            final int numEntries = in.readInt();
+            for (int i = 0; i < numEntries && i < MAX_ENTRIES; i++) {
+                final String key = in.readUTF();
+                final int numTitles = in.readInt();
+                if (numTitles < 0 || numTitles > Character.MAX_VALUE) {
+                    throw new IOException("Malformed entry");
                 }
-
-                for (int i = 1; i < keysAndValues.length; i += 2) {
-                    final String key = keysAndValues[i - 1];
-                    final String value = keysAndValues[i];
-
-                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Loaded: " + key);
-                    }
-
-                    mCache.put(key, value);
+                final String[] titles = new String[numTitles];
+                final int[] counts = new int[numTitles];
+                for (int j = 0; j < numTitles; j++) {
+                    titles[j] = in.readUTF();
+                    counts[j] = in.readInt();
                 }
+                loaded.put(key, new Entry(titles, counts));
             }
-            successfullyLoaded = true;
-        } catch (RuntimeException e) {
-            Log.w(TAG, "Failed to load from preferences", e);
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet
+        } catch (IOException e) {
             // But don't crash apps!
+            Log.w(TAG, "Failed to load from " + mFile, e);
+            loaded.clear();
+            mFile.delete();
         } finally {
-            if (!successfullyLoaded) {
-                invalidate();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        synchronized (mCache) {
+            mLoaded = true;
+            if (generation != mGeneration) {
+                return;
+            }
+            for (Map.Entry<String, Entry> entry : loaded.entrySet()) {
+                if (!mCache.containsKey(entry.getKey())) {
+                    mCache.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Loaded " + loaded.size() + " entries");
             }
         }
     }
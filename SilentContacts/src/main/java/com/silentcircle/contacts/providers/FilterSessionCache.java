@@ -0,0 +1,312 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may
+      be used to endorse or promote products derived from this software
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package com.silentcircle.contacts.providers;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.SearchIndexColumns;
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Tables;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the raw contact ids that the last filter query of a contact list matched, per filter session.
+ *
+ * A list sends the same session key with each filter query while the user types. If the new filter
+ * only extends the tokens of the previous filter its matches are a subset of the previous matches,
+ * thus the provider evaluates the new filter against the previous matches instead of running a
+ * full text query over the whole search index.
+ *
+ * Only name filters take part, the full text query of a phone number also looks for its E164 form
+ * and an extended number may match contacts the shorter number did not match. A session expires
+ * after {@link #SESSION_TIMEOUT_MILLIS} and keeps at most {@link #MAX_CANDIDATES} ids, each change
+ * of the contacts, the search index or the locale drops all sessions.
+ *
+ * This class is thread-safe.
+ */
+class FilterSessionCache {
+
+    /** Maximum number of lists that filter at the same time */
+    private static final int MAX_SESSIONS = 4;
+
+    /** Time after which a session is not refined anymore, a user that stopped typing starts a new one */
+    private static final long SESSION_TIMEOUT_MILLIS = 30 * 1000;
+
+    /** Maximum number of ids per session, the first letter of a big list matches most contacts */
+    static final int MAX_CANDIDATES = 1000;
+
+    private static final String[] SEARCH_INDEX_COLUMNS = new String[] {
+            SearchIndexColumns.DOCID,
+            SearchIndexColumns.CONTENT,
+            SearchIndexColumns.NAME,
+            SearchIndexColumns.TOKENS,
+    };
+
+    private static final class Session {
+        final Filter filter;
+        final long[] rawContactIds;
+        final long time;
+
+        Session(Filter filter, long[] rawContactIds, long time) {
+            this.filter = filter;
+            this.rawContactIds = rawContactIds;
+            this.time = time;
+        }
+    }
+
+    private final LinkedHashMap<String, Session> mSessions = new LinkedHashMap<String, Session>(MAX_SESSIONS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    };
+
+    /** Counts the invalidations, a query that ran before an invalidation does not store its matches */
+    private int mGeneration;
+
+    /**
+     * The tokens of a name filter, in the form the full text query of
+     * {@link SearchIndexManager.FtsQueryBuilder#SCOPED_NAME_NORMALIZING} uses them.
+     */
+    static final class Filter {
+        private final String[] mTokens;
+        private final String[] mNormalizedTokens;
+
+        private Filter(String[] tokens, String[] normalizedTokens) {
+            mTokens = tokens;
+            mNormalizedTokens = normalizedTokens;
+        }
+
+        /**
+         * Splits a name filter into tokens.
+         *
+         * @return the filter or {@code null} if it has no tokens or a token that the full text
+         *         query splits into several terms
+         */
+        static Filter parse(String filter) {
+            final List<String> parts = SearchIndexManager.splitIntoFtsTokens(filter);
+            if (parts.isEmpty()) {
+                return null;
+            }
+            final int count = parts.size();
+            final String[] tokens = new String[count];
+            final String[] normalizedTokens = new String[count];
+            for (int i = 0; i < count; i++) {
+                final String part = parts.get(i);
+                // The FTS tokenizer separates at '_', the query would be a phrase of two terms
+                if (part.indexOf('_') >= 0) {
+                    return null;
+                }
+                tokens[i] = foldCase(part);
+                final String normalized = NameNormalizer.normalize(part);
+                normalizedTokens[i] = normalized == null ? "" : foldCase(normalized);
+            }
+            return new Filter(tokens, normalizedTokens);
+        }
+
+        /**
+         * Returns true if each row that matches this filter also matches the previous filter.
+         *
+         * This is the case if each token of the previous filter is a prefix of the token at the
+         * same position of this filter, for the plain and the normalized form. Additional tokens
+         * only add conditions.
+         */
+        boolean refines(Filter previous) {
+            if (mTokens.length < previous.mTokens.length) {
+                return false;
+            }
+            for (int i = 0; i < previous.mTokens.length; i++) {
+                if (!mTokens[i].startsWith(previous.mTokens[i])) {
+                    return false;
+                }
+                // A token without a normalized form does not look at the name column at all
+                final String normalized = mNormalizedTokens[i];
+                final String previousNormalized = previous.mNormalizedTokens[i];
+                if (previousNormalized.length() == 0 ? normalized.length() != 0 : !normalized.startsWith(previousNormalized)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if a search index row matches this filter the same way as the full text
+         * query: for each token a term of the content or the tokens column starts with the token,
+         * or a term of the name column starts with the normalized token.
+         */
+        boolean matches(String content, String name, String tokens) {
+            for (int i = 0; i < mTokens.length; i++) {
+                final String token = mTokens[i];
+                final String normalized = mNormalizedTokens[i];
+                if (!hasTermWithPrefix(content, token) && !hasTermWithPrefix(tokens, token)
+                        && (normalized.length() == 0 || !hasTermWithPrefix(name, normalized))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads the search index rows of the given raw contacts and returns the ids of the rows
+         * that match this filter.
+         */
+        long[] match(SQLiteDatabase db, long[] rawContactIds) {
+            final StringBuilder selection = new StringBuilder(SearchIndexColumns.DOCID + " IN (");
+            appendIds(selection, rawContactIds);
+            selection.append(')');
+
+            final Cursor cursor = db.query(Tables.SEARCH_INDEX, SEARCH_INDEX_COLUMNS, selection.toString(),
+                    null, null, null, null);
+            try {
+                final long[] matches = new long[cursor.getCount()];
+                int count = 0;
+                while (cursor.moveToNext()) {
+                    if (matches(cursor.getString(1), cursor.getString(2), cursor.getString(3))) {
+                        matches[count++] = cursor.getLong(0);
+                    }
+                }
+                return Arrays.copyOf(matches, count);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of invalidations so far, a query passes it to {@link #put} when it's done.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Drops all sessions, called on each change of the data the filter queries read.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mSessions.clear();
+    }
+
+    /**
+     * Returns the raw contact ids the previous filter of a session matched if the new filter
+     * refines the previous filter, otherwise {@code null}.
+     */
+    synchronized long[] getCandidates(String sessionKey, Filter filter) {
+        final Session session = mSessions.get(sessionKey);
+        if (session == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - session.time > SESSION_TIMEOUT_MILLIS) {
+            mSessions.remove(sessionKey);
+            return null;
+        }
+        return filter.refines(session.filter) ? session.rawContactIds : null;
+    }
+
+    /**
+     * Stores the raw contact ids a filter matched as the new state of a session.
+     *
+     * @param generation the value of {@link #getGeneration()} before the query ran
+     * @param rawContactIds the matched ids or {@code null} if the query did not collect them, for
+     *        example because there were more than {@link #MAX_CANDIDATES}
+     */
+    synchronized void put(String sessionKey, int generation, Filter filter, long[] rawContactIds) {
+        if (rawContactIds == null || rawContactIds.length > MAX_CANDIDATES || generation != mGeneration) {
+            mSessions.remove(sessionKey);
+            return;
+        }
+        mSessions.put(sessionKey, new Session(filter, rawContactIds, SystemClock.elapsedRealtime()));
+    }
+
+    static void appendIds(StringBuilder sb, long[] ids) {
+        for (int i = 0; i < ids.length; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+    }
+
+    /**
+     * Returns true if one of the terms of the text starts with the prefix. The terms follow the
+     * rules of the "simple" FTS tokenizer: ASCII letters and digits and all non-ASCII characters
+     * form terms, only ASCII letters are folded to lower case. The prefix must be folded already.
+     */
+    static boolean hasTermWithPrefix(String text, String prefix) {
+        if (TextUtils.isEmpty(text)) {
+            return false;
+        }
+        final int length = text.length();
+        final int prefixLength = prefix.length();
+        boolean termStart = true;
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (!isTermChar(c)) {
+                termStart = true;
+                continue;
+            }
+            if (termStart && i + prefixLength <= length) {
+                int j = 0;
+                while (j < prefixLength && foldCase(text.charAt(i + j)) == prefix.charAt(j)) {
+                    j++;
+                }
+                if (j == prefixLength) {
+                    return true;
+                }
+            }
+            termStart = false;
+        }
+        return false;
+    }
+
+    private static boolean isTermChar(char c) {
+        return c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static char foldCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    private static String foldCase(String s) {
+        final char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = foldCase(chars[i]);
+        }
+        return new String(chars);
+    }
+}
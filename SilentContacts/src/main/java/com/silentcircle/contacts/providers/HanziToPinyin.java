@@ -376,9 +376,30 @@ public class HanziToPinyin {
 
     private static final Collator COLLATOR = Collator.getInstance(Locale.CHINA);
 
+    /** The {@link #PINYINS} as interned strings, {@code null} for an empty pinyin */
+    private static final String[] PINYIN_STRINGS = new String[PINYINS.length];
+
+    static {
+        final StringBuilder pinyin = new StringBuilder();
+        for (int i = 0; i < PINYINS.length; i++) {
+            pinyin.setLength(0);
+            for (int j = 0; j < PINYINS[i].length && PINYINS[i][j] != 0; j++) {
+                pinyin.append((char) PINYINS[i][j]);
+            }
+            PINYIN_STRINGS[i] = pinyin.length() > 0 ? pinyin.toString().intern() : null;
+        }
+    }
+
+    /** Entries of {@link #mPinyinOffsets}, other values are the pinyin offset plus one */
+    private static final short NOT_LOOKED_UP = 0;
+    private static final short NO_PINYIN = -1;
+
     private static HanziToPinyin sInstance;
     private final boolean mHasChinaCollator;
 
+    /** Pinyin offset of each character of the BMP, filled on first use of a character */
+    private final short[] mPinyinOffsets;
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -415,6 +436,7 @@ public class HanziToPinyin {
 
     protected HanziToPinyin(boolean hasChinaCollator) {
         mHasChinaCollator = hasChinaCollator;
+        mPinyinOffsets = hasChinaCollator ? new short[Character.MAX_VALUE + 1] : null;
     }
 
     public static HanziToPinyin getInstance() {
@@ -464,39 +486,45 @@ public class HanziToPinyin {
         return true;
     }
 
-    private Token getToken(char character) {
-        Token token = new Token();
-        final String letter = Character.toString(character);
-        token.source = letter;
+    /**
+     * Returns the offset in {@link #PINYINS} of the pinyin of a character, -1 if the character has none.
+     *
+     * The collator search runs once per character, the result is kept in {@link #mPinyinOffsets}.
+     * Concurrent callers may search the same character, they store the same value.
+     */
+    private int getPinyinOffset(char character) {
+        final short entry = mPinyinOffsets[character];
+        if (entry != NOT_LOOKED_UP) {
+            return entry == NO_PINYIN ? -1 : entry - 1;
+        }
+        final int offset;
+        synchronized (COLLATOR) {
+            offset = searchPinyinOffset(Character.toString(character));
+        }
+        mPinyinOffsets[character] = offset < 0 ? NO_PINYIN : (short) (offset + 1);
+        return offset;
+    }
+
+    /**
+     * Binary search of the character in {@link #UNIHANS} with the zh_CN collator, the caller
+     * holds the collator lock.
+     */
+    private static int searchPinyinOffset(String letter) {
         int offset = -1;
-        int cmp;
-        if (character < 256) {
-            token.type = Token.LATIN;
-            token.target = letter;
-            return token;
+        int cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
+        if (cmp < 0) {
+            return -1;
+        } else if (cmp == 0) {
+            offset = 0;
         } else {
-            cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
-            if (cmp < 0) {
-                token.type = Token.UNKNOWN;
-                token.target = letter;
-                return token;
+            cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
+            if (cmp > 0) {
+                return -1;
             } else if (cmp == 0) {
-                token.type = Token.PINYIN;
-                offset = 0;
-            } else {
-                cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
-                if (cmp > 0) {
-                    token.type = Token.UNKNOWN;
-                    token.target = letter;
-                    return token;
-                } else if (cmp == 0) {
-                    token.type = Token.PINYIN;
-                    offset = UNIHANS.length - 1;
-                }
+                offset = UNIHANS.length - 1;
             }
         }
 
-        token.type = Token.PINYIN;
         if (offset < 0) {
             int begin = 0;
             int end = UNIHANS.length - 1;
@@ -516,16 +544,7 @@ public class HanziToPinyin {
         if (cmp < 0) {
             offset--;
         }
-        StringBuilder pinyin = new StringBuilder();
-        for (int j = 0; j < PINYINS[offset].length && PINYINS[offset][j] != 0; j++) {
-            pinyin.append((char) PINYINS[offset][j]);
-        }
-        token.target = pinyin.toString();
-        if (TextUtils.isEmpty(token.target)) {
-            token.type = Token.UNKNOWN;
-            token.target = token.source;
-        }
-        return token;
+        return PINYIN_STRINGS[offset] == null ? -1 : offset;
     }
 
     /**
@@ -559,18 +578,18 @@ public class HanziToPinyin {
                 tokenType = Token.LATIN;
                 sb.append(character);
             } else {
-                Token t = getToken(character);
-                if (t.type == Token.PINYIN) {
+                final int offset = getPinyinOffset(character);
+                if (offset >= 0) {
                     if (sb.length() > 0) {
                         addToken(sb, tokens, tokenType);
                     }
-                    tokens.add(t);
+                    tokens.add(new Token(Token.PINYIN, Character.toString(character), PINYIN_STRINGS[offset]));
                     tokenType = Token.PINYIN;
                 } else {
-                    if (tokenType != t.type && sb.length() > 0) {
+                    if (tokenType != Token.UNKNOWN && sb.length() > 0) {
                         addToken(sb, tokens, tokenType);
                     }
-                    tokenType = t.type;
+                    tokenType = Token.UNKNOWN;
                     sb.append(character);
                 }
             }
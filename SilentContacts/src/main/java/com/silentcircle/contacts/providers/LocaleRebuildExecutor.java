@@ -0,0 +1,207 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may
+      be used to endorse or promote products derived from this software
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.silentcircle.contacts.providers;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the CPU work of a locale change rebuild on several threads while the database writes stay
+ * on the thread that owns the writer connection.
+ *
+ * The owner reads the rows, fills {@link Chunk}s of {@link #CHUNK_SIZE} rows and submits them.
+ * The worker threads compute the chunks, the owner writes their results in submission order.
+ * A few chunks per thread are in flight at most, the memory use does not grow with the number
+ * of contacts.
+ */
+class LocaleRebuildExecutor {
+    private static final String TAG = "LocaleRebuildExecutor";
+
+    /** Number of rows per chunk */
+    static final int CHUNK_SIZE = 128;
+
+    /** Upper limit of compute threads */
+    private static final int MAX_THREADS = 4;
+
+    /** Number of chunks per thread that are computed or wait for their write */
+    private static final int CHUNKS_PER_THREAD = 3;
+
+    /** Minimum time between two progress reports of a phase */
+    private static final long PROGRESS_INTERVAL_MILLIS = 5000;
+
+    /**
+     * Rows of a rebuild phase.
+     */
+    interface Chunk {
+        /** Computes the results of the rows, runs on a worker thread */
+        void compute();
+
+        /** Writes the results to the database, runs on the thread that submitted the chunk */
+        void write();
+
+        /** Number of rows of this chunk */
+        int size();
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxPending;
+    private final ArrayDeque<Future<Chunk>> mPending = new ArrayDeque<Future<Chunk>>();
+
+    // Progress of the current phase
+    private String mPhase;
+    private int mTotal;
+    private int mDone;
+    private long mPhaseStart;
+    private long mLastReport;
+
+    LocaleRebuildExecutor() {
+        final int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        mMaxPending = threads * CHUNKS_PER_THREAD;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "LocaleRebuild #" + mCount.incrementAndGet());
+                    }
+                });
+        Log.i(TAG, "Locale rebuild: " + threads + " threads");
+    }
+
+    /**
+     * Starts a phase, the progress reports of the phase use its name.
+     *
+     * @param total number of rows of the phase
+     */
+    void beginPhase(String phase, int total) {
+        mPhase = phase;
+        mTotal = total;
+        mDone = 0;
+        mPhaseStart = mLastReport = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Hands a chunk to the worker threads. If too many chunks are in flight this first writes
+     * the results of the oldest ones.
+     */
+    void submit(final Chunk chunk) {
+        while (mPending.size() >= mMaxPending) {
+            writeNext();
+        }
+        mPending.add(mExecutor.submit(new Callable<Chunk>() {
+            @Override
+            public Chunk call() {
+                chunk.compute();
+                return chunk;
+            }
+        }));
+    }
+
+    /**
+     * Writes the results of all submitted chunks and reports the time of the phase.
+     */
+    void endPhase() {
+        while (!mPending.isEmpty()) {
+            writeNext();
+        }
+        Log.i(TAG, mPhase + ": " + mDone + " rows in " + (SystemClock.elapsedRealtime() - mPhaseStart) + "ms");
+    }
+
+    /**
+     * Stops the worker threads. Chunks that were not written are dropped.
+     */
+    void shutdown() {
+        for (Future<Chunk> pending : mPending) {
+            pending.cancel(true);
+        }
+        mPending.clear();
+        mExecutor.shutdownNow();
+    }
+
+    private void writeNext() {
+        final Chunk chunk = getUninterruptibly(mPending.poll());
+        chunk.write();
+        mDone += chunk.size();
+
+        final long now = SystemClock.elapsedRealtime();
+        if (now - mLastReport >= PROGRESS_INTERVAL_MILLIS) {
+            mLastReport = now;
+            Log.i(TAG, mPhase + ": " + mDone + "/" + mTotal + " rows after " + (now - mPhaseStart) + "ms");
+        }
+    }
+
+    /**
+     * Waits for a chunk like {@link Future#get()}. A failure of the computation is thrown on the
+     * calling thread, thus it aborts the rebuild transaction.
+     */
+    private static Chunk getUninterruptibly(Future<Chunk> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
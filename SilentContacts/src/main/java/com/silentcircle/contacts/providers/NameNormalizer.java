@@ -51,55 +51,97 @@ package com.silentcircle.contacts.providers;
 import java.text.CollationKey;
 import java.text.Collator;
 import java.text.RuleBasedCollator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import com.silentcircle.contacts.utils.Hex;
 
 /**
  * Converts a name to a normalized form by removing all non-letter characters and normalizing
  * UNICODE according to http://unicode.org/unicode/reports/tr15
+ *
+ * Each thread uses its own collators and its own cache of normalized names, thus
+ * {@link #normalize} takes no lock. Both are re-created after {@link #setLocale} changed the
+ * locale generation.
  */
 public class NameNormalizer {
 
-    private static final Object sCollatorLock = new Object();
+    /** Maximum number of cached normalized names of one thread */
+    private static final int NORMALIZED_CACHE_SIZE = 1000;
+
+    /**
+     * Locale of the collators, a new instance with the next generation replaces it on a locale change.
+     */
+    private static final class LocaleState {
+        final int generation;
+        final Locale locale;
+
+        LocaleState(int generation, Locale locale) {
+            this.generation = generation;
+            this.locale = locale;
+        }
+    }
+
+    /** The collators and the normalized names of one thread */
+    private static final class Collators {
+        final int generation;
+        final RuleBasedCollator compressing;
+        final RuleBasedCollator complexity;
+        final Map<String, String> normalized = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > NORMALIZED_CACHE_SIZE;
+            }
+        };
+
+        Collators(LocaleState state) {
+            generation = state.generation;
+
+            compressing = (RuleBasedCollator) Collator.getInstance(state.locale);
+            compressing.setStrength(Collator.PRIMARY);
+            compressing.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
 
-    private static Locale sCollatorLocale;
+            complexity = (RuleBasedCollator) Collator.getInstance(state.locale);
+            complexity.setStrength(Collator.SECONDARY);
+        }
+    }
+
+    private static volatile LocaleState sLocaleState = new LocaleState(0, Locale.getDefault());
 
-    private static RuleBasedCollator sCachedCompressingCollator;
-    private static RuleBasedCollator sCachedComplexityCollator;
+    private static final ThreadLocal<Collators> sCollators = new ThreadLocal<Collators>();
 
     /**
-     * Ensure that the cached collators are for the current locale.
+     * Switches the collators of all threads to the given locale, each thread drops its cached names.
      */
-    private static void ensureCollators() {
-        final Locale locale = Locale.getDefault();
-        if (locale.equals(sCollatorLocale)) {
+    public static synchronized void setLocale(Locale locale) {
+        final LocaleState state = sLocaleState;
+        if (locale.equals(state.locale)) {
             return;
         }
-        sCollatorLocale = locale;
-
-        sCachedCompressingCollator = (RuleBasedCollator) Collator.getInstance(locale);
-        sCachedCompressingCollator.setStrength(Collator.PRIMARY);
-        sCachedCompressingCollator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+        sLocaleState = new LocaleState(state.generation + 1, locale);
+    }
 
-        sCachedComplexityCollator = (RuleBasedCollator) Collator.getInstance(locale);
-        sCachedComplexityCollator.setStrength(Collator.SECONDARY);
+    /**
+     * Returns the collators of the calling thread for the given locale state.
+     */
+    private static Collators getCollators(LocaleState state) {
+        Collators collators = sCollators.get();
+        if (collators == null || collators.generation != state.generation) {
+            collators = new Collators(state);
+            sCollators.set(collators);
+        }
+        return collators;
     }
 
 // TODO    @VisibleForTesting
     static RuleBasedCollator getCompressingCollator() {
-        synchronized (sCollatorLock) {
-            ensureCollators();
-            return sCachedCompressingCollator;
-        }
+        return getCollators(sLocaleState).compressing;
     }
 
 //    @VisibleForTesting
     static RuleBasedCollator getComplexityCollator() {
-        synchronized (sCollatorLock) {
-            ensureCollators();
-            return sCachedComplexityCollator;
-        }
+        return getCollators(sLocaleState).complexity;
     }
 
     /**
@@ -107,8 +149,14 @@ public class NameNormalizer {
      * of names.  It ignores non-letter, non-digit characters, and removes accents.
      */
     public static String normalize(String name) {
-        CollationKey key = getCompressingCollator().getCollationKey(lettersAndDigitsOnly(name));
-        return Hex.encodeHex(key.toByteArray(), true);
+        final Collators collators = getCollators(sLocaleState);
+        String normalized = collators.normalized.get(name);
+        if (normalized == null) {
+            CollationKey key = collators.compressing.getCollationKey(lettersAndDigitsOnly(name));
+            normalized = Hex.encodeHex(key.toByteArray(), true);
+            collators.normalized.put(name, normalized);
+        }
+        return normalized;
     }
 
     /**
@@ -0,0 +1,541 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may
+      be used to endorse or promote products derived from this software
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.silentcircle.contacts.providers;
+
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.DataColumns;
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.PhoneLookupColumns;
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.RawContactsColumns;
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Tables;
+import com.silentcircle.silentcontacts.ScContactsContract.CommonDataKinds.Phone;
+import com.silentcircle.silentcontacts.ScContactsContract.CommonDataKinds.SipAddress;
+import com.silentcircle.silentcontacts.ScContactsContract.Data;
+import com.silentcircle.silentcontacts.ScContactsContract.PhoneLookup;
+import com.silentcircle.silentcontacts.ScContactsContract.RawContacts;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.MatrixCursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * In-memory reverse index of the phone numbers and SIP addresses, it answers phone lookups
+ * without a query.
+ *
+ * The phone entries are sorted by the min match of their number, the key of the phone_lookup
+ * table, the SIP entries by their upper case address. A lookup is a binary search followed by
+ * the same suffix comparison the phone lookup SQL does. The raw contact columns are stored once
+ * per raw contact in parallel arrays, the entries refer to them by position.
+ *
+ * An index is immutable. The database helper drops it on each change of the contacts and the
+ * provider builds a new one in the background.
+ */
+final class PhoneLookupIndex {
+
+    private static final String PHONE_QUERY = "SELECT "
+            + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.MIN_MATCH + ","
+            + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.NORMALIZED_NUMBER + ","
+            + DataColumns.CONCRETE_ID + ","
+            + Phone.NUMBER + ","
+            + Phone.TYPE + ","
+            + Phone.LABEL + ","
+            + DataColumns.CONCRETE_DATA4 + ","
+            + RawContactsQuery.COLUMNS
+            + " FROM " + Tables.PHONE_LOOKUP
+            + " JOIN " + Tables.DATA + " ON ("
+            +   Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.DATA_ID + "=" + DataColumns.CONCRETE_ID + ")"
+            + " JOIN " + Tables.RAW_CONTACTS + " ON ("
+            +   DataColumns.CONCRETE_RAW_CONTACT_ID + "=" + RawContactsColumns.CONCRETE_ID + ")";
+
+    private static final String SIP_QUERY = "SELECT "
+            + SipAddress.SIP_ADDRESS + ","
+            + DataColumns.CONCRETE_ID + ","
+            + RawContactsQuery.COLUMNS
+            + " FROM " + Tables.DATA
+            + " JOIN " + Tables.RAW_CONTACTS + " ON ("
+            +   DataColumns.CONCRETE_RAW_CONTACT_ID + "=" + RawContactsColumns.CONCRETE_ID + ")"
+            + " WHERE " + DataColumns.MIMETYPE_ID + "=? AND " + SipAddress.SIP_ADDRESS + " NOT NULL";
+
+    private interface RawContactsQuery {
+        String COLUMNS = RawContactsColumns.CONCRETE_ID + ","
+                + Tables.RAW_CONTACTS + "." + RawContacts.DISPLAY_NAME_PRIMARY + ","
+                + Tables.RAW_CONTACTS + "." + RawContacts.LAST_TIME_CONTACTED + ","
+                + Tables.RAW_CONTACTS + "." + RawContacts.TIMES_CONTACTED + ","
+                + Tables.RAW_CONTACTS + "." + RawContacts.STARRED + ","
+                + Tables.RAW_CONTACTS + "." + RawContacts.PHOTO_ID + ","
+                + Tables.RAW_CONTACTS + "." + RawContacts.PHOTO_FILE_ID + ","
+                + Tables.RAW_CONTACTS + "." + RawContacts.CUSTOM_RINGTONE + ","
+                + Tables.RAW_CONTACTS + "." + RawContacts.HAS_PHONE_NUMBER;
+
+        int ID = 0;
+        int DISPLAY_NAME = 1;
+        int LAST_TIME_CONTACTED = 2;
+        int TIMES_CONTACTED = 3;
+        int STARRED = 4;
+        int PHOTO_ID = 5;
+        int PHOTO_FILE_ID = 6;
+        int CUSTOM_RINGTONE = 7;
+        int HAS_PHONE_NUMBER = 8;
+    }
+
+    /** Columns of a phone lookup, {@link PhoneLookup#_ID} is the raw contact id. */
+    private static final String[] PHONE_COLUMNS = new String[] {
+            PhoneLookup._ID,
+            PhoneLookup.DISPLAY_NAME,
+            PhoneLookup.LAST_TIME_CONTACTED,
+            PhoneLookup.TIMES_CONTACTED,
+            PhoneLookup.STARRED,
+            PhoneLookup.PHOTO_ID,
+            PhoneLookup.PHOTO_FILE_ID,
+            PhoneLookup.CUSTOM_RINGTONE,
+            PhoneLookup.HAS_PHONE_NUMBER,
+            PhoneLookup.NUMBER,
+            PhoneLookup.TYPE,
+            PhoneLookup.LABEL,
+            PhoneLookup.NORMALIZED_NUMBER,
+    };
+
+    /** Columns of a SIP address lookup, {@link Data#_ID} is the data id. */
+    private static final String[] SIP_COLUMNS = new String[] {
+            Data._ID,
+            Data.RAW_CONTACT_ID,
+            PhoneLookup.DISPLAY_NAME,
+            PhoneLookup.LAST_TIME_CONTACTED,
+            PhoneLookup.TIMES_CONTACTED,
+            PhoneLookup.STARRED,
+            PhoneLookup.PHOTO_ID,
+            PhoneLookup.PHOTO_FILE_ID,
+            PhoneLookup.CUSTOM_RINGTONE,
+            PhoneLookup.HAS_PHONE_NUMBER,
+            PhoneLookup.NUMBER,
+            PhoneLookup.TYPE,
+            PhoneLookup.LABEL,
+            PhoneLookup.NORMALIZED_NUMBER,
+    };
+
+    private final boolean mStrictComparison;
+
+    // Phone entries, sorted by min match
+    private final String[] mMinMatch;
+    private final String[] mLookupNumber;
+    private final String[] mNumber;
+    private final Integer[] mType;
+    private final String[] mLabel;
+    private final String[] mNormalizedNumber;
+    private final int[] mPhoneContact;
+
+    // SIP entries, sorted by upper case address
+    private final String[] mSipKey;
+    private final long[] mSipDataId;
+    private final String[] mSipAddress;
+    private final int[] mSipContact;
+
+    // Raw contacts of the entries
+    private final long[] mContactId;
+    private final String[] mDisplayName;
+    private final long[] mLastTimeContacted;
+    private final int[] mTimesContacted;
+    private final int[] mStarred;
+    private final long[] mPhotoId;
+    private final long[] mPhotoFileId;
+    private final String[] mCustomRingtone;
+    private final int[] mHasPhoneNumber;
+
+    private PhoneLookupIndex(boolean strictComparison, int phones, int sips, int contacts) {
+        mStrictComparison = strictComparison;
+        mMinMatch = new String[phones];
+        mLookupNumber = new String[phones];
+        mNumber = new String[phones];
+        mType = new Integer[phones];
+        mLabel = new String[phones];
+        mNormalizedNumber = new String[phones];
+        mPhoneContact = new int[phones];
+        mSipKey = new String[sips];
+        mSipDataId = new long[sips];
+        mSipAddress = new String[sips];
+        mSipContact = new int[sips];
+        mContactId = new long[contacts];
+        mDisplayName = new String[contacts];
+        mLastTimeContacted = new long[contacts];
+        mTimesContacted = new int[contacts];
+        mStarred = new int[contacts];
+        mPhotoId = new long[contacts];
+        mPhotoFileId = new long[contacts];
+        mCustomRingtone = new String[contacts];
+        mHasPhoneNumber = new int[contacts];
+    }
+
+    /** One row of the build queries, only used while building the index. */
+    private static final class Row {
+        final String key;
+        final String[] values;
+        final long dataId;
+        final int contact;
+
+        Row(String key, String[] values, long dataId, int contact) {
+            this.key = key;
+            this.values = values;
+            this.dataId = dataId;
+            this.contact = contact;
+        }
+    }
+
+    private static final Comparator<Row> KEY_ORDER = new Comparator<Row>() {
+        @Override
+        public int compare(Row lhs, Row rhs) {
+            return lhs.key.compareTo(rhs.key);
+        }
+    };
+
+    /**
+     * Reads all phone numbers and SIP addresses.
+     *
+     * @param db a connection that sees the committed state
+     * @param sipMimetypeId the mimetype id of SIP addresses
+     * @param strictComparison true if phone numbers must match exactly, as in the phone lookup SQL
+     */
+    static PhoneLookupIndex build(SQLiteDatabase db, long sipMimetypeId, boolean strictComparison) {
+        final HashMap<Long, Integer> contactPositions = new HashMap<Long, Integer>();
+        final ArrayList<Object[]> contacts = new ArrayList<Object[]>();
+
+        final ArrayList<Row> phones = new ArrayList<Row>();
+        Cursor c = db.rawQuery(PHONE_QUERY, null);
+        try {
+            while (c.moveToNext()) {
+                final String minMatch = c.getString(0);
+                if (minMatch == null) {
+                    continue;
+                }
+                final String[] values = new String[] {
+                        c.getString(1), c.getString(3), c.getString(4), c.getString(5), c.getString(6)};
+                phones.add(new Row(minMatch, values, c.getLong(2), addContact(c, 7, contactPositions, contacts)));
+            }
+        } finally {
+            c.close();
+        }
+
+        final ArrayList<Row> sips = new ArrayList<Row>();
+        c = db.rawQuery(SIP_QUERY, new String[] {String.valueOf(sipMimetypeId)});
+        try {
+            while (c.moveToNext()) {
+                final String address = c.getString(0);
+                sips.add(new Row(toSipKey(address), new String[] {address}, c.getLong(1),
+                        addContact(c, 2, contactPositions, contacts)));
+            }
+        } finally {
+            c.close();
+        }
+
+        Collections.sort(phones, KEY_ORDER);
+        Collections.sort(sips, KEY_ORDER);
+
+        final PhoneLookupIndex index = new PhoneLookupIndex(strictComparison, phones.size(), sips.size(),
+                contacts.size());
+        for (int i = 0; i < phones.size(); i++) {
+            final Row row = phones.get(i);
+            index.mMinMatch[i] = row.key;
+            index.mLookupNumber[i] = row.values[0];
+            index.mNumber[i] = row.values[1];
+            index.mType[i] = parseType(row.values[2]);
+            index.mLabel[i] = row.values[3];
+            index.mNormalizedNumber[i] = row.values[4];
+            index.mPhoneContact[i] = row.contact;
+        }
+        for (int i = 0; i < sips.size(); i++) {
+            final Row row = sips.get(i);
+            index.mSipKey[i] = row.key;
+            index.mSipDataId[i] = row.dataId;
+            index.mSipAddress[i] = row.values[0];
+            index.mSipContact[i] = row.contact;
+        }
+        for (int i = 0; i < contacts.size(); i++) {
+            final Object[] contact = contacts.get(i);
+            index.mContactId[i] = (Long) contact[RawContactsQuery.ID];
+            index.mDisplayName[i] = (String) contact[RawContactsQuery.DISPLAY_NAME];
+            index.mLastTimeContacted[i] = (Long) contact[RawContactsQuery.LAST_TIME_CONTACTED];
+            index.mTimesContacted[i] = (Integer) contact[RawContactsQuery.TIMES_CONTACTED];
+            index.mStarred[i] = (Integer) contact[RawContactsQuery.STARRED];
+            index.mPhotoId[i] = (Long) contact[RawContactsQuery.PHOTO_ID];
+            index.mPhotoFileId[i] = (Long) contact[RawContactsQuery.PHOTO_FILE_ID];
+            index.mCustomRingtone[i] = (String) contact[RawContactsQuery.CUSTOM_RINGTONE];
+            index.mHasPhoneNumber[i] = (Integer) contact[RawContactsQuery.HAS_PHONE_NUMBER];
+        }
+        return index;
+    }
+
+    private static int addContact(Cursor c, int offset, HashMap<Long, Integer> positions,
+            ArrayList<Object[]> contacts) {
+        final Long id = c.getLong(offset + RawContactsQuery.ID);
+        Integer position = positions.get(id);
+        if (position == null) {
+            position = contacts.size();
+            positions.put(id, position);
+            contacts.add(new Object[] {
+                    id,
+                    c.getString(offset + RawContactsQuery.DISPLAY_NAME),
+                    c.getLong(offset + RawContactsQuery.LAST_TIME_CONTACTED),
+                    c.getInt(offset + RawContactsQuery.TIMES_CONTACTED),
+                    c.getInt(offset + RawContactsQuery.STARRED),
+                    c.getLong(offset + RawContactsQuery.PHOTO_ID),
+                    c.getLong(offset + RawContactsQuery.PHOTO_FILE_ID),
+                    c.getString(offset + RawContactsQuery.CUSTOM_RINGTONE),
+                    c.getInt(offset + RawContactsQuery.HAS_PHONE_NUMBER),
+            });
+        }
+        return position;
+    }
+
+    /**
+     * SQLCipher's upper() follows the ICU root locale, the SIP lookup SQL compares upper case
+     * addresses.
+     */
+    private static String toSipKey(String sipAddress) {
+        return sipAddress == null ? "" : sipAddress.toUpperCase(Locale.ROOT);
+    }
+
+    int getPhoneCount() {
+        return mMinMatch.length;
+    }
+
+    int getSipCount() {
+        return mSipKey.length;
+    }
+
+    /**
+     * Returns true if at least one phone number has the min match of the given number. The
+     * loose comparison of the fallback phone lookup only looks at such numbers.
+     */
+    boolean hasPhoneCandidates(String number) {
+        return firstIndexOf(mMinMatch, PhoneNumberUtils.toCallerIDMinMatch(number)) >= 0;
+    }
+
+    /**
+     * Looks up a phone number the same way as the phone lookup SQL of
+     * {@link ScContactsDatabaseHelper#buildPhoneLookupAndContactQuery}, longest matching number first.
+     *
+     * @return the cursor or {@code null} if the projection has a column that the index does not have
+     */
+    Cursor queryPhone(String[] projection, String normalizedNumber, String numberE164) {
+        final int[] columns = mapProjection(projection, PHONE_COLUMNS);
+        if (columns == null) {
+            return null;
+        }
+        final ArrayList<Integer> matches = new ArrayList<Integer>();
+        final int first = firstIndexOf(mMinMatch, PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
+        if (first >= 0) {
+            for (int i = first; i < mMinMatch.length && mMinMatch[i].equals(mMinMatch[first]); i++) {
+                if (matchesNumber(mLookupNumber[i], normalizedNumber, numberE164)) {
+                    matches.add(i);
+                }
+            }
+        }
+        // Sorted by length(lookup.normalized_number) DESC
+        Collections.sort(matches, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return lookupLength(rhs) - lookupLength(lhs);
+            }
+        });
+
+        final MatrixCursor cursor = new MatrixCursor(projection, matches.size());
+        final Object[] row = new Object[projection.length];
+        for (int position : matches) {
+            final int contact = mPhoneContact[position];
+            for (int i = 0; i < columns.length; i++) {
+                switch (columns[i]) {
+                    case 0: row[i] = mContactId[contact]; break;
+                    case 9: row[i] = mNumber[position]; break;
+                    case 10: row[i] = mType[position]; break;
+                    case 11: row[i] = mLabel[position]; break;
+                    case 12: row[i] = mNormalizedNumber[position]; break;
+                    default: row[i] = getContactColumn(contact, columns[i]);
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Looks up a SIP address the same way as the SQL of
+     * {@link ScContactsDatabaseHelper#buildSipContactQuery}, sorted by display name.
+     *
+     * @return the cursor or {@code null} if the projection has a column that the index does not have
+     */
+    Cursor querySip(String[] projection, String sipAddress) {
+        final int[] columns = mapProjection(projection, SIP_COLUMNS);
+        if (columns == null) {
+            return null;
+        }
+        final ArrayList<Integer> matches = new ArrayList<Integer>();
+        final String key = toSipKey(sipAddress);
+        final int first = firstIndexOf(mSipKey, key);
+        if (first >= 0) {
+            for (int i = first; i < mSipKey.length && mSipKey[i].equals(key); i++) {
+                matches.add(i);
+            }
+        }
+        // Sorted by display_name ASC, NULL first
+        Collections.sort(matches, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final String lhsName = mDisplayName[mSipContact[lhs]];
+                final String rhsName = mDisplayName[mSipContact[rhs]];
+                if (lhsName == null || rhsName == null) {
+                    return lhsName == null ? (rhsName == null ? 0 : -1) : 1;
+                }
+                return lhsName.compareTo(rhsName);
+            }
+        });
+
+        final MatrixCursor cursor = new MatrixCursor(projection, matches.size());
+        final Object[] row = new Object[projection.length];
+        for (int position : matches) {
+            final int contact = mSipContact[position];
+            for (int i = 0; i < columns.length; i++) {
+                switch (columns[i]) {
+                    case 0: row[i] = mSipDataId[position]; break;
+                    case 1: row[i] = mContactId[contact]; break;
+                    case 10: row[i] = mSipAddress[position]; break;
+                    case 11: row[i] = 0; break;
+                    case 12:
+                    case 13: row[i] = null; break;
+                    // The contact columns follow the raw contact id
+                    default: row[i] = getContactColumn(contact, columns[i] - 1);
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the phone type as the integer that the phone lookup SQL returns.
+     */
+    private static Integer parseType(String type) {
+        if (type == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(type);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a raw contact column by its position in {@link #PHONE_COLUMNS}.
+     */
+    private Object getContactColumn(int contact, int column) {
+        switch (column) {
+            case 1: return mDisplayName[contact];
+            case 2: return mLastTimeContacted[contact];
+            case 3: return mTimesContacted[contact];
+            case 4: return mStarred[contact];
+            case 5: return mPhotoId[contact] != 0 ? mPhotoId[contact] : null;
+            case 6: return mPhotoFileId[contact] != 0 ? mPhotoFileId[contact] : null;
+            case 7: return mCustomRingtone[contact];
+            case 8: return mHasPhoneNumber[contact];
+            default: throw new IllegalArgumentException("Not a contact column: " + column);
+        }
+    }
+
+    private int lookupLength(int position) {
+        return mLookupNumber[position] == null ? 0 : mLookupNumber[position].length();
+    }
+
+    /**
+     * The selection of ScContactsDatabaseHelper.appendPhoneLookupSelection().
+     */
+    private boolean matchesNumber(String lookupNumber, String number, String numberE164) {
+        final boolean hasNumberE164 = !TextUtils.isEmpty(numberE164);
+        final boolean hasNumber = !TextUtils.isEmpty(number);
+        if (!hasNumberE164 && !hasNumber) {
+            return true;
+        }
+        if (lookupNumber == null) {
+            return false;
+        }
+        if (hasNumberE164 && lookupNumber.equals(numberE164)) {
+            return true;
+        }
+        if (!hasNumber || mStrictComparison) {
+            return false;
+        }
+        return lookupNumber.length() <= number.length() ? number.endsWith(lookupNumber) : lookupNumber.endsWith(number);
+    }
+
+    /**
+     * Maps the projection to column positions of the available columns.
+     *
+     * @return the positions or {@code null} if the projection is null or has a column that is not available
+     */
+    private static int[] mapProjection(String[] projection, String[] available) {
+        if (projection == null) {
+            return null;
+        }
+        final int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = -1;
+            for (int j = 0; j < available.length; j++) {
+                if (available[j].equals(projection[i])) {
+                    columns[i] = j;
+                    break;
+                }
+            }
+            if (columns[i] < 0) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the position of the first occurrence of the key in the sorted keys, -1 if there is none.
+     */
+    private static int firstIndexOf(String[] keys, String key) {
+        int index = Arrays.binarySearch(keys, key);
+        if (index < 0) {
+            return -1;
+        }
+        while (index > 0 && keys[index - 1].equals(key)) {
+            index--;
+        }
+        return index;
+    }
+}
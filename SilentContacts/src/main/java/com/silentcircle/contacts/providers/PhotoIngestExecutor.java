@@ -0,0 +1,279 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may
+      be used to endorse or promote products derived from this software
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.silentcircle.contacts.providers;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor that processes the display photos written through the photo pipes.
+ *
+ * A writer first takes one of {@code queueDepth} slots and waits briefly if all slots are in use,
+ * thus a bulk photo sync cannot queue an unbounded number of pipes and decoded photos. One caller
+ * holds at most half of the slots, a client that opens pipes without writing to them cannot stall
+ * the other clients. The number of threads follows from a memory budget and the memory one photo
+ * needs while it's processed.
+ *
+ * The processed photos are handed to a {@link Committer} in batches: the thread that finishes a
+ * photo while no other thread commits becomes the committer and also commits the photos that
+ * other threads finish in the meantime, one transaction per batch.
+ */
+class PhotoIngestExecutor {
+    private static final String TAG = "PhotoIngestExecutor";
+
+    /** Upper limit of processing threads, independent of the memory budget */
+    private static final int MAX_THREADS = 4;
+
+    /** Maximum number of processed photos in one commit */
+    private static final int MAX_BATCH_SIZE = 20;
+
+    /**
+     * Stores the results of processed photos in the database.
+     */
+    interface Committer {
+        void commit(List<Result> results);
+    }
+
+    /**
+     * A processed photo that waits for its data row update or insert.
+     */
+    static final class Result {
+        final long rawContactId;
+        final long dataId;
+        final long photoFileId;
+        final byte[] thumbnail;
+
+        Result(long rawContactId, long dataId, long photoFileId, byte[] thumbnail) {
+            this.rawContactId = rawContactId;
+            this.dataId = dataId;
+            this.photoFileId = photoFileId;
+            this.thumbnail = thumbnail;
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Semaphore mSlots;
+    private final int mQueueDepth;
+    private final int mMaxSlotsPerCaller;
+
+    /** Number of slots held per caller UID, guarded by itself */
+    private final SparseIntArray mCallerSlots = new SparseIntArray();
+    private final Committer mCommitter;
+
+    private final ConcurrentLinkedQueue<Result> mResults = new ConcurrentLinkedQueue<Result>();
+    private final AtomicBoolean mCommitting = new AtomicBoolean();
+
+    // Metrics
+    private final AtomicLong mProcessedCount = new AtomicLong();
+    private final AtomicLong mTotalProcessingMillis = new AtomicLong();
+    private final AtomicLong mMaxProcessingMillis = new AtomicLong();
+    private final AtomicLong mCommitCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    /**
+     * @param queueDepth maximum number of photo writes that are processed or wait for processing
+     * @param memoryBudget memory in bytes that concurrently processed photos may use
+     * @param bytesPerPhoto memory in bytes that processing one photo needs
+     * @param committer stores the processed photos
+     */
+    PhotoIngestExecutor(int queueDepth, long memoryBudget, long bytesPerPhoto, Committer committer) {
+        final int threads = (int)Math.max(1, Math.min(MAX_THREADS, memoryBudget / Math.max(1, bytesPerPhoto)));
+        mQueueDepth = Math.max(threads, queueDepth);
+        mSlots = new Semaphore(mQueueDepth, true);
+        mMaxSlotsPerCaller = Math.max(1, mQueueDepth / 2);
+        mCommitter = committer;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "PhotoIngest #" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+        Log.i(TAG, "Photo ingest: " + threads + " threads, queue depth " + mQueueDepth);
+    }
+
+    /**
+     * Takes a slot for a photo write of the given caller, waits if all slots are in use.
+     *
+     * @return true if the caller got a slot and must call {@link #execute(int, Runnable)} or
+     *         {@link #releaseSlot(int)}, false if the caller already holds its share of the slots
+     *         or no slot became free within the timeout
+     */
+    boolean acquireSlot(int callerUid, long timeoutMillis) {
+        synchronized (mCallerSlots) {
+            final int held = mCallerSlots.get(callerUid);
+            if (held >= mMaxSlotsPerCaller) {
+                mRejectedCount.incrementAndGet();
+                return false;
+            }
+            mCallerSlots.put(callerUid, held + 1);
+        }
+        try {
+            if (mSlots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        releaseCallerSlot(callerUid);
+        mRejectedCount.incrementAndGet();
+        return false;
+    }
+
+    void releaseSlot(int callerUid) {
+        mSlots.release();
+        releaseCallerSlot(callerUid);
+    }
+
+    private void releaseCallerSlot(int callerUid) {
+        synchronized (mCallerSlots) {
+            final int held = mCallerSlots.get(callerUid) - 1;
+            if (held > 0) {
+                mCallerSlots.put(callerUid, held);
+            }
+            else {
+                mCallerSlots.delete(callerUid);
+            }
+        }
+    }
+
+    /**
+     * Runs the processing of a photo on one of the ingest threads and frees the caller's slot
+     * when it's done.
+     */
+    void execute(final int callerUid, final Runnable processing) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                try {
+                    processing.run();
+                } finally {
+                    releaseSlot(callerUid);
+                    recordProcessingTime(SystemClock.elapsedRealtime() - start);
+                }
+            }
+        });
+    }
+
+    private void recordProcessingTime(long millis) {
+        mProcessedCount.incrementAndGet();
+        mTotalProcessingMillis.addAndGet(millis);
+        long max;
+        while (millis > (max = mMaxProcessingMillis.get())) {
+            if (mMaxProcessingMillis.compareAndSet(max, millis)) {
+                break;
+            }
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "Processed photo in " + millis + "ms, queue length " + getQueueLength());
+        }
+    }
+
+    /**
+     * Hands a processed photo to the committer.
+     */
+    void submitResult(Result result) {
+        mResults.add(result);
+
+        // Check again after releasing the committer role, a result added just before may have
+        // seen the role taken and not committed itself
+        while (!mResults.isEmpty() && mCommitting.compareAndSet(false, true)) {
+            try {
+                ArrayList<Result> batch = new ArrayList<Result>(MAX_BATCH_SIZE);
+                Result next;
+                while (true) {
+                    while (batch.size() < MAX_BATCH_SIZE && (next = mResults.poll()) != null) {
+                        batch.add(next);
+                    }
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    mCommitter.commit(batch);
+                    mCommitCount.incrementAndGet();
+                    batch.clear();
+                }
+            } finally {
+                mCommitting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of photo writes that are processed or wait for processing.
+     */
+    int getQueueLength() {
+        return mQueueDepth - mSlots.availablePermits();
+    }
+
+    void dump(PrintWriter pw) {
+        final long processed = mProcessedCount.get();
+        pw.print("Photo ingest: queue length=");
+        pw.print(getQueueLength());
+        pw.print("/");
+        pw.print(mQueueDepth);
+        pw.print(", threads=");
+        pw.print(mExecutor.getMaximumPoolSize());
+        pw.print(", processed=");
+        pw.print(processed);
+        pw.print(", commits=");
+        pw.print(mCommitCount.get());
+        pw.print(", rejected=");
+        pw.print(mRejectedCount.get());
+        pw.print(", avg ms=");
+        pw.print(processed == 0 ? 0 : mTotalProcessingMillis.get() / processed);
+        pw.print(", max ms=");
+        pw.println(mMaxProcessingMillis.get());
+    }
+}
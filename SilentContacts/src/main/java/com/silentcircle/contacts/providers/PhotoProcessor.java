@@ -58,10 +58,15 @@ import android.graphics.RectF;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Class that converts a bitmap (or byte array representing a bitmap) into a display
  * photo and a thumbnail photo.
+ *
+ * An encoded photo is decoded only once, with a sample size that keeps the decoded bitmap just
+ * above the display photo size. The thumbnail is scaled down from the display photo, not from the
+ * original, and both JPEG outputs share one output buffer.
  */
 final class PhotoProcessor {
 
@@ -140,6 +145,20 @@ final class PhotoProcessor {
     private final Bitmap mOriginal;
     private Bitmap mDisplayPhoto;
     private Bitmap mThumbnailPhoto;
+    private byte[] mDisplayPhotoBytes;
+    private byte[] mThumbnailPhotoBytes;
+
+    /** Whether the processor decoded the original itself and may recycle it */
+    private final boolean mOwnsOriginal;
+
+    /** Content hash of the encoded original, {@code null} if the processor got a bitmap */
+    private final String mContentHash;
+
+    /** Output buffer of the JPEG compression, shared by display photo and thumbnail */
+    private ByteArrayOutputStream mOutputBuffer;
+
+    /** Size of the read buffer and the initial size of the output buffer */
+    private static final int BUFFER_SIZE = 16 * 1024;
 
     /**
      * Initializes a photo processor for the given bitmap.
@@ -160,8 +179,18 @@ final class PhotoProcessor {
      * @throws IOException If bitmap decoding or scaling fails.
      */
     public PhotoProcessor(byte[] originalBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim) throws IOException {
-        this(BitmapFactory.decodeByteArray(originalBytes, 0, originalBytes.length), maxDisplayPhotoDim, 
-                maxThumbnailPhotoDim, false);
+        this(originalBytes, maxDisplayPhotoDim, maxThumbnailPhotoDim, false);
+    }
+
+    /**
+     * Initializes a photo processor for the encoded photo read from the given stream.
+     * @param in The stream to read the encoded photo from, the caller closes it.
+     * @param maxDisplayPhotoDim The maximum height and width for the display photo.
+     * @param maxThumbnailPhotoDim The maximum height and width for the thumbnail photo.
+     * @throws IOException If reading, bitmap decoding or scaling fails.
+     */
+    public PhotoProcessor(InputStream in, int maxDisplayPhotoDim, int maxThumbnailPhotoDim) throws IOException {
+        this(readFully(in), maxDisplayPhotoDim, maxThumbnailPhotoDim, false);
     }
 
     /**
@@ -177,10 +206,17 @@ final class PhotoProcessor {
      */
     public PhotoProcessor(Bitmap original, int maxDisplayPhotoDim, int maxThumbnailPhotoDim, boolean forceCropToSquare) 
             throws IOException {
+        this(original, maxDisplayPhotoDim, maxThumbnailPhotoDim, forceCropToSquare, false, null);
+    }
+
+    private PhotoProcessor(Bitmap original, int maxDisplayPhotoDim, int maxThumbnailPhotoDim, boolean forceCropToSquare,
+            boolean ownsOriginal, String contentHash) throws IOException {
         mOriginal = original;
         mMaxDisplayPhotoDim = maxDisplayPhotoDim;
         mMaxThumbnailPhotoDim = maxThumbnailPhotoDim;
         mForceCropToSquare = forceCropToSquare;
+        mOwnsOriginal = ownsOriginal;
+        mContentHash = contentHash;
         process();
     }
 
@@ -197,8 +233,66 @@ final class PhotoProcessor {
      */
     public PhotoProcessor(byte[] originalBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim,
             boolean forceCropToSquare) throws IOException {
-        this(BitmapFactory.decodeByteArray(originalBytes, 0, originalBytes.length),
-                maxDisplayPhotoDim, maxThumbnailPhotoDim, forceCropToSquare);
+        this(originalBytes, maxDisplayPhotoDim, maxThumbnailPhotoDim, forceCropToSquare,
+                PhotoStore.computeContentHash(originalBytes, maxDisplayPhotoDim, maxThumbnailPhotoDim, forceCropToSquare));
+    }
+
+    /**
+     * Initializes a photo processor for the given encoded photo whose content hash the caller
+     * already computed with {@link PhotoStore#computeContentHash(byte[], int, int, boolean)}.
+     */
+    PhotoProcessor(byte[] originalBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim,
+            boolean forceCropToSquare, String contentHash) throws IOException {
+        this(decodeSampledBitmap(originalBytes, maxDisplayPhotoDim, forceCropToSquare),
+                maxDisplayPhotoDim, maxThumbnailPhotoDim, forceCropToSquare, true, contentHash);
+    }
+
+    /**
+     * Decodes an encoded photo with the largest sample size that still keeps the decoded bitmap
+     * at least as large as the display photo.
+     *
+     * Decoding a camera photo without sampling allocates a bitmap many times the size of the
+     * display photo, only to scale it down right after.
+     *
+     * @return the decoded bitmap or {@code null} if the bytes are not a valid image
+     */
+    static Bitmap decodeSampledBitmap(byte[] bytes, int maxDim, boolean forceCropToSquare) {
+        if (bytes == null) {
+            return null;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, maxDim, forceCropToSquare);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+    /**
+     * Returns the largest power of two sample size that keeps the scaled extent of the image
+     * at or above {@code maxDim}. The extent is the longer side, or the shorter side if the
+     * image gets cropped to a square.
+     */
+    static int computeSampleSize(int width, int height, int maxDim, boolean forceCropToSquare) {
+        final int extent = forceCropToSquare ? Math.min(width, height) : Math.max(width, height);
+        int sampleSize = 1;
+        while (extent / (sampleSize * 2) >= maxDim) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int size;
+        while ((size = in.read(buffer)) != -1) {
+            out.write(buffer, 0, size);
+        }
+        return out.toByteArray();
     }
 
     /**
@@ -210,7 +304,14 @@ final class PhotoProcessor {
             throw new IOException("Invalid image file");
         }
         mDisplayPhoto = getNormalizedBitmap(mOriginal, mMaxDisplayPhotoDim, mForceCropToSquare);
-        mThumbnailPhoto = getNormalizedBitmap(mOriginal,mMaxThumbnailPhotoDim, mForceCropToSquare);
+        // The display photo is already cropped and at least as large as the thumbnail, scaling
+        // it down again is much cheaper than scaling the original
+        mThumbnailPhoto = getNormalizedBitmap(mDisplayPhoto, mMaxThumbnailPhotoDim, mForceCropToSquare);
+
+        // Nobody else references a bitmap that the processor decoded, free its pixels early
+        if (mOwnsOriginal && mOriginal != mDisplayPhoto) {
+            mOriginal.recycle();
+        }
     }
 
     /**
@@ -270,18 +371,20 @@ final class PhotoProcessor {
      * Helper method to compress the given bitmap as a JPEG and return the resulting byte array.
      */
     private byte[] getCompressedBytes(Bitmap b, int quality) throws IOException {
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        final boolean compressed = b.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-        baos.flush();
-        baos.close();
-        byte[] result = baos.toByteArray();
+        if (mOutputBuffer == null) {
+            mOutputBuffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        }
+        // reset() keeps the buffer, the thumbnail reuses the buffer that grew for the display photo
+        mOutputBuffer.reset();
+        final boolean compressed = b.compress(Bitmap.CompressFormat.JPEG, quality, mOutputBuffer);
 
         if (!compressed) {
             throw new IOException("Unable to compress image");
         }
-        return result;
+        return mOutputBuffer.toByteArray();
     }
 
+
     /**
      * Retrieves the uncompressed display photo.
      */
@@ -300,7 +403,10 @@ final class PhotoProcessor {
      * Retrieves the compressed display photo as a byte array.
      */
     public byte[] getDisplayPhotoBytes() throws IOException {
-        return getCompressedBytes(mDisplayPhoto, COMPRESSION_DISPLAY_PHOTO);
+        if (mDisplayPhotoBytes == null) {
+            mDisplayPhotoBytes = getCompressedBytes(mDisplayPhoto, COMPRESSION_DISPLAY_PHOTO);
+        }
+        return mDisplayPhotoBytes;
     }
 
     /**
@@ -309,11 +415,22 @@ final class PhotoProcessor {
     public byte[] getThumbnailPhotoBytes() throws IOException {
         // If there is a higher-resolution picture, we can assume we won't need to upscale the
         // thumbnail often, so we can compress stronger
-        final boolean hasDisplayPhoto = mDisplayPhoto != null &&
-                (mDisplayPhoto.getWidth() > mThumbnailPhoto.getWidth() ||
-                mDisplayPhoto.getHeight() > mThumbnailPhoto.getHeight());
-        return getCompressedBytes(mThumbnailPhoto,
-                hasDisplayPhoto ? COMPRESSION_THUMBNAIL_LOW : COMPRESSION_THUMBNAIL_HIGH);
+        if (mThumbnailPhotoBytes == null) {
+            final boolean hasDisplayPhoto = mDisplayPhoto != null &&
+                    (mDisplayPhoto.getWidth() > mThumbnailPhoto.getWidth() ||
+                    mDisplayPhoto.getHeight() > mThumbnailPhoto.getHeight());
+            mThumbnailPhotoBytes = getCompressedBytes(mThumbnailPhoto,
+                    hasDisplayPhoto ? COMPRESSION_THUMBNAIL_LOW : COMPRESSION_THUMBNAIL_HIGH);
+        }
+        return mThumbnailPhotoBytes;
+    }
+
+    /**
+     * Retrieves the content hash of the encoded original photo, {@code null} if the processor
+     * was created for a bitmap.
+     */
+    public String getContentHash() {
+        return mContentHash;
     }
 
     /**
@@ -49,18 +49,25 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.silentcircle.contacts.providers;
 
 import android.content.ContentValues;
+import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.silentcircle.contacts.utils.Hex;
+import com.silentcircle.contacts.utils.LongArray;
 import com.silentcircle.silentcontacts.ScContactsContract.PhotoFiles;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.PhotoFilesColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Tables;
@@ -68,6 +75,21 @@ import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Tables;
 /**
  * Photo storage system that stores the files directly onto the hard disk
  * in the specified directory.
+ *
+ * The files live in 256 sub-directories, the name of a sub-directory is the lowest byte of
+ * the photo file ID in hex. Thus no directory grows beyond a few hundred files even with tens
+ * of thousands of photos. The store does not scan the directories, the metadata of an entry
+ * comes from the {@link Tables#PHOTO_FILES} table when it's requested.
+ *
+ * Older versions stored all files in one flat directory. {@link #migrateLegacyFiles(int)} moves
+ * these files into the sub-directories in small steps, until then {@link #get(long)} also looks
+ * for the file in the flat directory.
+ *
+ * Identical photos, for example a company logo on many contacts or the photos of a repeated
+ * vCard import, share one file. Each entry records the content hash of the source photo and a
+ * reference count. An insert of a photo whose hash is known only increments the count, the
+ * cleanup recomputes the counts from the actual references and deletes an entry only if nobody
+ * acquired it in the meantime.
  */
 public class PhotoStore {
 
@@ -76,21 +98,51 @@ public class PhotoStore {
     // Directory name under the root directory for photo storage.
     private final String DIRECTORY = "photos";
 
-    /** Map of keys to entries in the directory. */
-    private final Map<Long, Entry> mEntries;
+    // Directory name under the photo storage for files that are not yet complete.
+    private final String TEMP_DIRECTORY = "tmp";
+
+    /** Property that records the layout version of the photo store. */
+    private static final String PROPERTY_PHOTO_STORE_LAYOUT = "photo_store_layout";
+
+    /** Layout version 1 used one flat directory, layout version 2 uses hashed sub-directories. */
+    private static final String LAYOUT_SHARDED = "2";
 
-    /** Total amount of space currently used by the photo store in bytes. */
-    private long mTotalSize = 0;
+    private static final int NUM_SHARDS = 256;
+
+    /** Number of photo file mappings that stay open for in-process readers. */
+    private static final int MAX_MAPPINGS = 8;
+
+    private static final String[] ID_REF_COUNT_PROJECTION = new String[] {PhotoFiles._ID, PhotoFilesColumns.REF_COUNT};
+    private static final String[] FILESIZE_PROJECTION = new String[] {PhotoFiles.FILESIZE};
 
     /** The file path for photo storage. */
     private final File mStorePath;
 
+    /** The file path for the not yet complete photo files. */
+    private final File mTempPath;
+
     /** The database helper. */
     private final ScContactsDatabaseHelper mDatabaseHelper;
 
     /** The database to use for storing metadata for the photo files. */
     private SQLiteDatabase mDb;
 
+    /** True until all files of the flat layout moved to their sub-directory. */
+    private volatile boolean mLegacyLayout;
+
+    /** Names of files in the flat directory that still wait for migration, only used by the migration. */
+    private String[] mLegacyNames;
+    private int mNextLegacyName;
+
+    /** The sub-directory that the next cleanup checks for orphaned files. */
+    private int mNextSweepShard;
+
+    /** Read-only mappings of recently read photo files, keyed by photo file ID. */
+    private final LruCache<Long, MappedByteBuffer> mMappings = new LruCache<Long, MappedByteBuffer>(MAX_MAPPINGS);
+
+    /** Incremented by each removal, a mapping opened before a removal is not cached. */
+    private final AtomicInteger mRemovalCount = new AtomicInteger();
+
     /**
      * Constructs an instance of the PhotoStore under the specified directory.
      * @param rootDirectory The root directory of the storage.
@@ -98,14 +150,14 @@ public class PhotoStore {
      */
     public PhotoStore(File rootDirectory, ScContactsDatabaseHelper databaseHelper) {
         mStorePath = new File(rootDirectory, DIRECTORY);
-        if (!mStorePath.exists()) {
-            if(!mStorePath.mkdirs()) {
+        mTempPath = new File(mStorePath, TEMP_DIRECTORY);
+        if (!mTempPath.exists()) {
+            if(!mTempPath.mkdirs()) {
                 throw new RuntimeException("Unable to create photo storage directory "
-                        + mStorePath.getPath());
+                        + mTempPath.getPath());
             }
         }
         mDatabaseHelper = databaseHelper;
-        mEntries = new HashMap<Long, Entry>();
         initialize();
     }
 
@@ -113,80 +165,491 @@ public class PhotoStore {
      * Clears the photo storage. Deletes all files from disk.
      */
     public void clear() {
+        invalidateMappings();
         File[] files = mStorePath.listFiles();
         if (files != null) {
             for (File file : files) {
-                cleanupFile(file);
+                if (file.isDirectory()) {
+                    File[] shardFiles = file.listFiles();
+                    if (shardFiles != null) {
+                        for (File shardFile : shardFiles) {
+                            cleanupFile(shardFile);
+                        }
+                    }
+                }
+                else {
+                    cleanupFile(file);
+                }
             }
         }
         if (mDb == null) {
             mDb = mDatabaseHelper.getDatabase(true);
         }
         mDb.delete(Tables.PHOTO_FILES, null, null);
-        mEntries.clear();
-        mTotalSize = 0;
     }
 
+    /**
+     * Returns a read-only buffer with the content of the photo file, for readers in the provider's
+     * process that would otherwise open a file descriptor for every read.
+     *
+     * The buffer maps the file, the store keeps the mappings of the recently read files open. Each
+     * call returns a new buffer that shares the content but has its own position. A mapping stays
+     * valid even if the file is removed while the caller reads it.
+     *
+     * @return the buffer or {@code null} if no entry with the given key exists
+     * @throws IOException if the file cannot be mapped
+     */
+    public ByteBuffer map(long key) throws IOException {
+        MappedByteBuffer mapping = mMappings.get(key);
+        if (mapping == null) {
+            final int removalCount = mRemovalCount.get();
+            Entry entry = get(key);
+            if (entry == null) {
+                return null;
+            }
+            FileInputStream is = new FileInputStream(entry.path);
+            try {
+                FileChannel channel = is.getChannel();
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                is.close();
+            }
+            if (removalCount == mRemovalCount.get()) {
+                mMappings.put(key, mapping);
+            }
+        }
+        return mapping.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the hit and miss counts of the mappings.
+     */
+    public String getMappingStats() {
+        return mMappings.toString();
+    }
+
+    private void invalidateMapping(long key) {
+        mRemovalCount.incrementAndGet();
+        mMappings.remove(key);
+    }
+
+    private void invalidateMappings() {
+        mRemovalCount.incrementAndGet();
+        mMappings.evictAll();
+    }
+
+    /**
+     * Returns the total amount of space used by the photo store in bytes.
+     */
     public long getTotalSize() {
-        return mTotalSize;
+        Cursor c = mDatabaseHelper.getQueryDatabase().rawQuery(
+                "SELECT SUM(" + PhotoFiles.FILESIZE + ") FROM " + Tables.PHOTO_FILES, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
     }
 
     /**
      * Returns the entry with the specified key if it exists, null otherwise.
      */
     public Entry get(long key) {
-        return mEntries.get(key);
+        long size = -1;
+        Cursor c = mDatabaseHelper.getQueryDatabase().query(Tables.PHOTO_FILES, FILESIZE_PROJECTION,
+                PhotoFilesColumns.CONCRETE_ID + "=" + key, null, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                size = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        if (size < 0) {
+            return null;
+        }
+        File file = getFileForPhotoFileId(key);
+        if (!file.exists()) {
+            if (!mLegacyLayout) {
+                return null;
+            }
+            File legacyFile = getLegacyFileForPhotoFileId(key);
+            if (legacyFile.exists()) {
+                file = legacyFile;
+            }
+            // The migration may have moved the file between the two checks
+            else if (!file.exists()) {
+                return null;
+            }
+        }
+        return new Entry(key, size, file.getAbsolutePath());
     }
 
     /**
-     * Initializes the PhotoStore by scanning for all files currently in the
-     * specified root directory.
+     * Initializes the PhotoStore.
+     *
+     * This does not scan the storage directory, it only removes left over temp files and checks
+     * if files of the flat layout may still wait for migration.
      */
     public final void initialize() {
-        File[] files = mStorePath.listFiles();
+        // Temp files of inserts that did not complete before the process died.
+        File[] files = mTempPath.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                cleanupFile(file);
+            }
+        }
+
+        // Get a reference to the database.
+        mDb = mDatabaseHelper.getDatabase(true);
+        mLegacyLayout = !LAYOUT_SHARDED.equals(mDatabaseHelper.getProperty(PROPERTY_PHOTO_STORE_LAYOUT, null));
+    }
+
+    /**
+     * Returns true if files of the flat layout still wait for migration.
+     */
+    public boolean needsMigration() {
+        return mLegacyLayout;
+    }
+
+    /**
+     * Moves up to {@code maxFiles} files of the flat layout into their sub-directory.
+     *
+     * The first call lists the flat directory, later calls continue with this list. Files that
+     * are not photo files of the flat layout are deleted. Call this on one thread only.
+     *
+     * @param maxFiles maximum number of files to move in this step
+     * @return true if more files wait for migration, false if the migration is complete
+     */
+    public boolean migrateLegacyFiles(int maxFiles) {
+        if (!mLegacyLayout) {
+            return false;
+        }
+        if (mLegacyNames == null) {
+            String[] names = mStorePath.list();
+            mLegacyNames = names != null ? names : new String[0];
+            mNextLegacyName = 0;
+            Log.i(TAG, "Migrating " + mLegacyNames.length + " photo store entries");
+        }
+        int moved = 0;
+        while (mNextLegacyName < mLegacyNames.length && moved < maxFiles) {
+            final File file = new File(mStorePath, mLegacyNames[mNextLegacyName++]);
+            if (!file.isFile()) {
+                continue;   // a sub-directory of the new layout
+            }
+            try {
+                final File target = getFileForPhotoFileId(Long.parseLong(file.getName()));
+                final File shard = target.getParentFile();
+                if ((!shard.exists() && !shard.mkdirs()) || !file.renameTo(target)) {
+                    Log.w(TAG, "Could not migrate photo file " + file.getName());
+                }
+                moved++;
+            } catch (NumberFormatException nfe) {
+                // Not a valid photo store entry, for example a temp file of an aborted insert - delete the file.
+                cleanupFile(file);
+            }
+        }
+        if (mNextLegacyName < mLegacyNames.length) {
+            return true;
+        }
+        mLegacyNames = null;
+        mDatabaseHelper.setProperty(PROPERTY_PHOTO_STORE_LAYOUT, LAYOUT_SHARDED);
+        mLegacyLayout = false;
+        Log.i(TAG, "Photo store migration complete");
+        return false;
+    }
+
+    /**
+     * The state that a cleanup passes from {@link #cleanup} to {@link #finishCleanup}.
+     */
+    public static final class Cleanup {
+        /** All keys of the store that the cleanup read, sorted ascending. */
+        final LongArray storedKeys;
+
+        /** The stored keys that are still in use, sorted ascending. */
+        final LongArray usedKeys = new LongArray();
+
+        /** The keys of the removed entries, their files are deleted by {@link #finishCleanup}. */
+        final LongArray removedKeys = new LongArray();
+
+        /** The keys in use that refer to non-existent entries or files, sorted ascending. */
+        final LongArray missingKeys = new LongArray();
+
+        Cleanup(int capacity) {
+            storedKeys = new LongArray(capacity);
+        }
+    }
+
+    /**
+     * Cleans up the entries of the photo store such that only the keys in use still remain as
+     * entries in the store (all other entries are deleted).
+     *
+     * The keys of the store are read in ascending order and merged with the sorted keys in use,
+     * thus the cleanup needs neither a set of the stored keys nor copies of the key sets. The
+     * number of times a key occurs in the keys in use becomes the reference count of its entry.
+     *
+     * The caller must read the keys in use and run the cleanup in one transaction of the writer,
+     * else a row may start to use an entry that the cleanup then removes as unreferenced. The
+     * cleanup touches no files, after the transaction committed the caller passes the result to
+     * {@link #finishCleanup}.
+     *
+     * @param keysInUse All keys that are in use in the photo store, sorted ascending, one key for
+     *     each reference.
+     */
+    public Cleanup cleanup(LongArray keysInUse) {
+        final Cleanup cleanup = new Cleanup(keysInUse.size());
+        final LongArray keysToRemove = new LongArray();
+        final LongArray removeRefCounts = new LongArray();
+        final LongArray keysToRecount = new LongArray();
+        final LongArray oldRefCounts = new LongArray();
+        final LongArray newRefCounts = new LongArray();
+        final int numKeysInUse = keysInUse.size();
+        int inUse = 0;
+
+        Cursor c = mDb.query(Tables.PHOTO_FILES, ID_REF_COUNT_PROJECTION, null, null, null, null, PhotoFiles._ID);
+        try {
+            while (c.moveToNext()) {
+                final long key = c.getLong(0);
+                final long refCount = c.getLong(1);
+                cleanup.storedKeys.add(key);
+                while (inUse < numKeysInUse && keysInUse.get(inUse) < key) {
+                    addMissingKey(cleanup.missingKeys, keysInUse.get(inUse++));
+                }
+                int references = 0;
+                while (inUse < numKeysInUse && keysInUse.get(inUse) == key) {
+                    references++;
+                    inUse++;
+                }
+                if (references == 0) {
+                    keysToRemove.add(key);
+                    removeRefCounts.add(refCount);
+                    continue;
+                }
+                cleanup.usedKeys.add(key);
+                if (references != refCount) {
+                    keysToRecount.add(key);
+                    oldRefCounts.add(refCount);
+                    newRefCounts.add(references);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        while (inUse < numKeysInUse) {
+            addMissingKey(cleanup.missingKeys, keysInUse.get(inUse++));
+        }
+
+        for (int i = 0; i < keysToRecount.size(); i++) {
+            updateRefCount(keysToRecount.get(i), oldRefCounts.get(i), newRefCounts.get(i));
+        }
+        for (int i = 0; i < keysToRemove.size(); i++) {
+            if (removeEntryIfUnchanged(keysToRemove.get(i), removeRefCounts.get(i))) {
+                cleanup.removedKeys.add(keysToRemove.get(i));
+            }
+        }
+        if (!keysToRemove.isEmpty()) {
+            Log.d(TAG, "cleanup removed " + cleanup.removedKeys.size() + " of " + keysToRemove.size()
+                    + " unused entries");
+        }
+        return cleanup;
+    }
+
+    /**
+     * Finishes a cleanup after its transaction committed: deletes the files of the removed
+     * entries and the orphaned files, files without a {@link Tables#PHOTO_FILES} row, of one
+     * sub-directory. Must not run in a transaction, it does only file I/O.
+     *
+     * If an entry in the keys in use does not exist in the photo store or has no file, that key
+     * will be returned in the result - the caller should take steps to clean up those
+     * references, as the underlying photo entries do not exist.
+     *
+     * @return The keys in use that refer to non-existent entries or files, sorted ascending
+     *     without duplicates.
+     */
+    public LongArray finishCleanup(Cleanup cleanup) {
+        for (int i = 0; i < cleanup.removedKeys.size(); i++) {
+            removeFile(cleanup.removedKeys.get(i));
+        }
+
+        sweepShard(mNextSweepShard, cleanup.storedKeys);
+        mNextSweepShard = (mNextSweepShard + 1) % NUM_SHARDS;
+
+        final LongArray missingKeys = cleanup.missingKeys;
+        for (int i = 0; i < cleanup.usedKeys.size(); i++) {
+            final long key = cleanup.usedKeys.get(i);
+            if (!fileExists(key)) {
+                missingKeys.add(key);
+            }
+        }
+        missingKeys.sortUnique();
+        return missingKeys;
+    }
+
+    /**
+     * Deletes the files of a sub-directory that do not belong to a stored key.
+     *
+     * Photos inserted after {@code storedKeys} was read have a larger ID than all stored keys,
+     * their files are kept.
+     */
+    private void sweepShard(int shard, LongArray storedKeys) {
+        File[] files = new File(mStorePath, getShardName(shard)).listFiles();
         if (files == null) {
             return;
         }
+        final long maxKey = storedKeys.isEmpty() ? 0 : storedKeys.get(storedKeys.size() - 1);
         for (File file : files) {
             try {
-                Entry entry = new Entry(file);
-                putEntry(entry.id, entry);
+                final long id = Long.parseLong(file.getName());
+                if (id < maxKey && storedKeys.binarySearch(id) < 0) {
+                    cleanupFile(file);
+                }
             } catch (NumberFormatException nfe) {
-                // Not a valid photo store entry - delete the file.
                 cleanupFile(file);
             }
         }
+    }
 
-        // Get a reference to the database.
-        mDb = mDatabaseHelper.getDatabase(true);
+    private static void addMissingKey(LongArray missingKeys, long key) {
+        if (missingKeys.isEmpty() || missingKeys.get(missingKeys.size() - 1) != key) {
+            missingKeys.add(key);
+        }
     }
 
     /**
-     * Cleans up the photo store such that only the keys in use still remain as
-     * entries in the store (all other entries are deleted).
+     * Sets the reference count of an entry unless an insert acquired the entry since the
+     * cleanup read the count.
+     */
+    private void updateRefCount(long id, long oldRefCount, long newRefCount) {
+        ContentValues values = new ContentValues();
+        values.put(PhotoFilesColumns.REF_COUNT, newRefCount);
+        mDb.update(Tables.PHOTO_FILES, values,
+                PhotoFilesColumns.CONCRETE_ID + "=? AND " + PhotoFilesColumns.REF_COUNT + "=?",
+                new String[]{String.valueOf(id), String.valueOf(oldRefCount)});
+    }
+
+    /**
+     * Removes an unused entry unless an insert acquired the entry since the cleanup read its
+     * reference count. The caller deletes the file with {@link #removeFile} once the removal
+     * committed, IDs are never reused.
      *
-     * If an entry in the keys in use does not exist in the photo store, that key
-     * will be returned in the result set - the caller should take steps to clean
-     * up those references, as the underlying photo entries do not exist.
+     * @return true if the entry was removed
+     */
+    private boolean removeEntryIfUnchanged(long id, long refCount) {
+        int deleted = mDb.delete(Tables.PHOTO_FILES,
+                PhotoFilesColumns.CONCRETE_ID + "=? AND " + PhotoFilesColumns.REF_COUNT + "=?",
+                new String[]{String.valueOf(id), String.valueOf(refCount)});
+        return deleted != 0;
+    }
+
+    /**
+     * Deletes the file of a photo file ID.
+     */
+    private void removeFile(long id) {
+        invalidateMapping(id);
+        File file = getFileForPhotoFileId(id);
+        if (file.exists() || !mLegacyLayout) {
+            cleanupFile(file);
+        }
+        else {
+            cleanupFile(getLegacyFileForPhotoFileId(id));
+        }
+    }
+
+    /**
+     * Returns the ID of the entry with the given content hash and increments its reference count.
      *
-     * @param keysInUse The set of all keys that are in use in the photo store.
-     * @return The set of the keys in use that refer to non-existent entries.
+     * @param contentHash hash computed by {@link #computeContentHash(byte[], int, int, boolean)},
+     *     may be {@code null}
+     * @return the photo file ID or 0 if the store has no usable entry for the hash
      */
-    public Set<Long> cleanup(Set<Long> keysInUse) {
-        Set<Long> keysToRemove = new HashSet<Long>();
-        keysToRemove.addAll(mEntries.keySet());
-        keysToRemove.removeAll(keysInUse);
-        if (!keysToRemove.isEmpty()) {
-            Log.d(TAG, "cleanup removing " + keysToRemove.size() + " entries");
-            for (long key : keysToRemove) {
-                remove(key);
+    public long acquire(String contentHash) {
+        if (contentHash == null) {
+            return 0;
+        }
+        long id = 0;
+        long refCount = 0;
+        Cursor c = mDb.query(Tables.PHOTO_FILES, ID_REF_COUNT_PROJECTION, PhotoFilesColumns.CONTENT_HASH + "=?",
+                new String[]{contentHash}, null, null, null, "1");
+        try {
+            if (c.moveToFirst()) {
+                id = c.getLong(0);
+                refCount = c.getLong(1);
             }
+        } finally {
+            c.close();
         }
+        if (id == 0 || !fileExists(id)) {
+            return 0;
+        }
+        // Fails if a concurrent cleanup removed the entry or changed its count
+        ContentValues values = new ContentValues();
+        values.put(PhotoFilesColumns.REF_COUNT, refCount + 1);
+        int updated = mDb.update(Tables.PHOTO_FILES, values,
+                PhotoFilesColumns.CONCRETE_ID + "=? AND " + PhotoFilesColumns.REF_COUNT + "=?",
+                new String[]{String.valueOf(id), String.valueOf(refCount)});
+        return updated == 1 ? id : 0;
+    }
 
-        Set<Long> missingKeys = new HashSet<Long>();
-        missingKeys.addAll(keysInUse);
-        missingKeys.removeAll(mEntries.keySet());
-        return missingKeys;
+    /**
+     * Gives up a reference that {@link #insert} or {@link #acquire} returned but no data row
+     * stored. Removes the entry and its file if this was the last reference.
+     *
+     * Runs in a transaction of the writer, thus an insert cannot acquire the entry between
+     * reading the reference count and removing the entry. The file is deleted after the
+     * transaction.
+     */
+    public void release(long id) {
+        boolean removed = false;
+        mDb.beginTransaction();
+        try {
+            long refCount = 0;
+            Cursor c = mDb.query(Tables.PHOTO_FILES, ID_REF_COUNT_PROJECTION, PhotoFilesColumns.CONCRETE_ID + "=?",
+                    new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    refCount = c.getLong(1);
+                }
+            } finally {
+                c.close();
+            }
+            if (refCount > 1) {
+                updateRefCount(id, refCount, refCount - 1);
+            }
+            else if (refCount == 1) {
+                removed = removeEntryIfUnchanged(id, refCount);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (removed) {
+            removeFile(id);
+        }
+    }
+
+    /**
+     * Computes the content hash of an encoded source photo. The hash also covers the processing
+     * parameters, the same source photo processed differently is a different entry.
+     *
+     * @return the hex encoded SHA-256 hash or {@code null} if the hash is not available
+     */
+    public static String computeContentHash(byte[] sourceBytes, int maxDisplayPhotoDim, int maxThumbnailPhotoDim,
+            boolean forceCropToSquare) {
+        if (sourceBytes == null) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((maxDisplayPhotoDim + ":" + maxThumbnailPhotoDim + ":" + forceCropToSquare + ":").getBytes());
+            digest.update(sourceBytes);
+            return Hex.encodeHex(digest.digest(), false);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private boolean fileExists(long id) {
+        return getFileForPhotoFileId(id).exists() || (mLegacyLayout && getLegacyFileForPhotoFileId(id).exists());
     }
 
     /**
@@ -217,13 +680,20 @@ public class PhotoStore {
         int thumbnailDim = photoProcessor.getMaxThumbnailPhotoDim();
 
         if (allowSmallImageStorage || width > thumbnailDim || height > thumbnailDim) {
+            // An identical photo is already stored - share its file
+            final String contentHash = photoProcessor.getContentHash();
+            final long existingId = acquire(contentHash);
+            if (existingId != 0) {
+                return existingId;
+            }
+
             // Write the photo to a temp file, create the DB record for tracking it, and rename the
             // temp file to match.
             File file = null;
             try {
                 // Write the display photo to a temp file.
                 byte[] photoBytes = photoProcessor.getDisplayPhotoBytes();
-                file = File.createTempFile("img", null, mStorePath);
+                file = File.createTempFile("img", null, mTempPath);
                 FileOutputStream fos = new FileOutputStream(file);
                 fos.write(photoBytes);
                 fos.close();
@@ -233,15 +703,16 @@ public class PhotoStore {
                 values.put(PhotoFiles.HEIGHT, height);
                 values.put(PhotoFiles.WIDTH, width);
                 values.put(PhotoFiles.FILESIZE, photoBytes.length);
+                values.put(PhotoFilesColumns.CONTENT_HASH, contentHash);
                 long id = mDb.insert(Tables.PHOTO_FILES, null, values);
                 if (id != 0) {
                     // Rename the temp file.
                     File target = getFileForPhotoFileId(id);
-                    if (file.renameTo(target)) {
-                        Entry entry = new Entry(target);
-                        putEntry(entry.id, entry);
+                    File shard = target.getParentFile();
+                    if ((shard.exists() || shard.mkdirs()) && file.renameTo(target)) {
                         return id;
                     }
+                    removeEntry(id);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -267,42 +738,33 @@ public class PhotoStore {
      * Removes the specified photo file from the store if it exists.
      */
     public void remove(long id) {
-        cleanupFile(getFileForPhotoFileId(id));
+        removeFile(id);
         removeEntry(id);
     }
 
+    private static String getShardName(int shard) {
+        final String hex = Integer.toHexString(shard);
+        return hex.length() < 2 ? "0" + hex : hex;
+    }
+
     /**
      * Returns a file object for the given photo file ID.
      */
     private File getFileForPhotoFileId(long id) {
-        return new File(mStorePath, String.valueOf(id));
+        return new File(new File(mStorePath, getShardName((int)(id & (NUM_SHARDS - 1)))), String.valueOf(id));
     }
 
     /**
-     * Puts the entry with the specified photo file ID into the store.
-     * @param id The photo file ID to identify the entry by.
-     * @param entry The entry to store.
+     * Returns the file object of the flat layout for the given photo file ID.
      */
-    private void putEntry(long id, Entry entry) {
-        if (!mEntries.containsKey(id)) {
-            mTotalSize += entry.size;
-        } else {
-            Entry oldEntry = mEntries.get(id);
-            mTotalSize += (entry.size - oldEntry.size);
-        }
-        mEntries.put(id, entry);
+    private File getLegacyFileForPhotoFileId(long id) {
+        return new File(mStorePath, String.valueOf(id));
     }
 
     /**
-     * Removes the entry identified by the given photo file ID from the store, removing
-     * the associated photo file entry from the database.
+     * Removes the photo file entry identified by the given photo file ID from the database.
      */
     private void removeEntry(long id) {
-        Entry entry = mEntries.get(id);
-        if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(id);
-        }
         mDb.delete(ScContactsDatabaseHelper.Tables.PHOTO_FILES, PhotoFilesColumns.CONCRETE_ID + "=?",
                 new String[]{String.valueOf(id)});
     }
@@ -317,10 +779,10 @@ public class PhotoStore {
         /** The path to the file. */
         public final String path;
 
-        public Entry(File file) {
-            id = Long.parseLong(file.getName());
-            size = file.length();
-            path = file.getAbsolutePath();
+        public Entry(long id, long size, String path) {
+            this.id = id;
+            this.size = size;
+            this.path = path;
         }
     }
 }
@@ -0,0 +1,127 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may
+      be used to endorse or promote products derived from this software
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.silentcircle.contacts.providers;
+
+import android.util.Log;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, fixed size pool of read-only SQLCipher connections to the contacts database.
+ *
+ * The database runs in WAL mode, thus a reader on one of these connections sees the last
+ * committed state and neither blocks the single writer connection nor gets blocked by it.
+ * Each SQLCipher connection serializes its users with its own lock. The pool hands out a
+ * connection that no other thread currently holds and falls back to round-robin if all of
+ * them are busy.
+ */
+class ReadConnectionPool {
+    private static final String TAG = "ReadConnectionPool";
+
+    private final SQLiteDatabase[] mConnections;
+    private final AtomicInteger mNext = new AtomicInteger();
+
+    private ReadConnectionPool(SQLiteDatabase[] connections) {
+        mConnections = connections;
+    }
+
+    /**
+     * Opens up to {@code size} read-only connections.
+     *
+     * @param path the database file
+     * @param password the same key the writer connection uses
+     * @param size maximum number of connections
+     * @return the pool or {@code null} if not a single connection could be opened
+     */
+    static ReadConnectionPool open(String path, String password, int size) {
+        SQLiteDatabase[] connections = new SQLiteDatabase[size];
+        int opened = 0;
+        try {
+            for (; opened < size; opened++) {
+                connections[opened] = SQLiteDatabase.openDatabase(path, password, null, SQLiteDatabase.OPEN_READONLY);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not open read connection " + opened + ": " + e);
+        }
+        if (opened == 0) {
+            return null;
+        }
+        if (opened < size) {
+            SQLiteDatabase[] tmp = new SQLiteDatabase[opened];
+            System.arraycopy(connections, 0, tmp, 0, opened);
+            connections = tmp;
+        }
+        return new ReadConnectionPool(connections);
+    }
+
+    /**
+     * Returns a read connection. The caller must not close it.
+     */
+    SQLiteDatabase acquire() {
+        final int size = mConnections.length;
+        final int start = (mNext.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int i = 0; i < size; i++) {
+            SQLiteDatabase db = mConnections[(start + i) % size];
+            if (!db.isDbLockedByOtherThreads()) {
+                return db;
+            }
+        }
+        return mConnections[start];
+    }
+
+    int size() {
+        return mConnections.length;
+    }
+
+    /**
+     * Re-registers the localized collators of all read connections.
+     */
+    void setLocale(Locale locale) {
+        for (SQLiteDatabase db : mConnections) {
+            try {
+                db.setLocale(locale);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not set locale on read connection: " + e);
+            }
+        }
+    }
+
+    /**
+     * Closes all connections. Cursors still open on a connection keep it alive until they are closed.
+     */
+    void close() {
+        for (SQLiteDatabase db : mConnections) {
+            db.close();
+        }
+    }
+}
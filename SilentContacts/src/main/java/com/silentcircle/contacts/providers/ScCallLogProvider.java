@@ -209,7 +209,7 @@ public class ScCallLogProvider extends ContentProvider {
             limitClause = offset + "," + limit;
         }
 
-        final SQLiteDatabase db = mDbHelper.getDatabase(false);
+        final SQLiteDatabase db = mDbHelper.getQueryDatabase();
         final Cursor c = qb.query(db, projection, selectionBuilder.build(), selectionArgs, null, null, sortOrder, limitClause);
         if (c != null) {
             c.setNotificationUri(getContext().getContentResolver(), CallLog.CONTENT_URI);
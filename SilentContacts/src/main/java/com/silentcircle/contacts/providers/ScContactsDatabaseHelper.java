@@ -34,24 +34,33 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.silentcircle.contacts.providers;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.CharArrayBuffer;
 import net.sqlcipher.Cursor;
 import net.sqlcipher.DatabaseUtils;
 import net.sqlcipher.SQLException;
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
 import net.sqlcipher.database.SQLiteDoneException;
+import net.sqlcipher.database.SQLiteException;
 import net.sqlcipher.database.SQLiteOpenHelper;
 import net.sqlcipher.database.SQLiteQueryBuilder;
 import net.sqlcipher.database.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.text.util.Rfc822Token;
@@ -59,9 +68,12 @@ import android.text.util.Rfc822Tokenizer;
 import android.util.Log;
 
 import com.silentcircle.contacts.R;
+import com.silentcircle.contacts.utils.DbQueryUtils;
+import com.silentcircle.contacts.utils.Hex;
 import com.silentcircle.keymngrsupport.KeyManagerSupport;
 import com.silentcircle.silentcontacts.ScBaseColumns;
 import com.silentcircle.silentcontacts.ScCallLog.ScCalls;
+import com.silentcircle.silentcontacts.ScContactsContract;
 import com.silentcircle.silentcontacts.ScContactsContract.CommonDataKinds.Email;
 import com.silentcircle.silentcontacts.ScContactsContract.CommonDataKinds.GroupMembership;
 import com.silentcircle.silentcontacts.ScContactsContract.CommonDataKinds.Im;
@@ -88,10 +100,30 @@ import com.silentcircle.silentcontacts.ScContactsContract.StreamItemPhotos;
 public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyManagerSupport.KeyManagerListener {
     private static final String TAG = "ScContactsDatabaseHelper";
     
-    static final int DATABASE_VERSION = 100;
+    static final int DATABASE_VERSION = 103;
 
     private static final String DATABASE_NAME = "sc_contacts.db";
 
+    /** Number of read-only connections used for queries in addition to the single writer connection */
+    private static final int READ_CONNECTION_POOL_SIZE = 3;
+
+    /** Set if the database uses the raw key, see {@code config_database_raw_key} */
+    private static final String PREF_RAW_KEY = "sc_contacts_db_raw_key";
+
+    private static final int RAW_KEY_LENGTH = 32;
+
+    /**
+     * Switch the database to write-ahead logging. Readers on the read connection pool then see the
+     * last committed state and don't serialize behind the writer.
+     */
+    private static final SQLiteDatabaseHook WAL_HOOK = new SQLiteDatabaseHook() {
+        public void preKey(SQLiteDatabase db) {}
+
+        public void postKey(SQLiteDatabase db) {
+            db.rawExecSQL("PRAGMA journal_mode = WAL;");
+        }
+    };
+
     public interface Tables {
         public static final String RAW_CONTACTS = "raw_contacts";
         public static final String DATA = "data";
@@ -105,6 +137,7 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         public static final String SEARCH_INDEX = "search_index";
         public static final String PROPERTIES = "properties";
         public static final String PHOTO_FILES = "photo_files";
+        public static final String PHOTO_THUMBNAILS = "photo_thumbnails";
         public static final String GROUPS = "groups";
 
         // This list of tables contains auto-incremented sequences.
@@ -296,6 +329,8 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
     }
 
     public static final class SearchIndexColumns {
+        /** The FTS rowid, same as {@link #RAW_CONTACT_ID} */
+        public static final String DOCID = "docid";
         public static final String RAW_CONTACT_ID = "raw_contact_id";
         public static final String CONTENT = "content";
         public static final String NAME = "name";
@@ -333,6 +368,24 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         String CONCRETE_HEIGHT = Tables.PHOTO_FILES + "." + PhotoFiles.HEIGHT;
         String CONCRETE_WIDTH = Tables.PHOTO_FILES + "." + PhotoFiles.WIDTH;
         String CONCRETE_FILESIZE = Tables.PHOTO_FILES + "." + PhotoFiles.FILESIZE;
+
+        /** SHA-256 of the source photo and the processing parameters, identical photos share a file */
+        String CONTENT_HASH = "content_hash";
+
+        /** Number of photo references to the file, recomputed by each photo store cleanup */
+        String REF_COUNT = "ref_count";
+    }
+
+    /**
+     * The thumbnails of photo data rows. The views expose them as {@link Photo#PHOTO}, keeping
+     * the blobs out of the data table makes all other scans of the data table cheaper.
+     */
+    public interface PhotoThumbnailsColumns {
+        String DATA_ID = "data_id";
+        String THUMBNAIL = "thumbnail";
+
+        String CONCRETE_DATA_ID = Tables.PHOTO_THUMBNAILS + "." + DATA_ID;
+        String CONCRETE_THUMBNAIL = Tables.PHOTO_THUMBNAILS + "." + THUMBNAIL;
     }
 
     public static final class DirectoryColumns {
@@ -385,11 +438,16 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
 
     private SQLiteStatement mNameLookupInsert;
     private SQLiteStatement mNameLookupDelete;
+    private SQLiteStatement mSearchIndexInsert;
     private SQLiteStatement mResetNameVerifiedForOtherRawContacts;
 
+    /** Maximum number of compiled insert statements the bulk insert path keeps */
+    private static final int MAX_BULK_INSERT_STATEMENTS = 32;
+    /** Compiled insert statements of the bulk insert path, keyed by table and column list */
+    private final HashMap<String, SQLiteStatement> mBulkInsertStatements = new HashMap<String, SQLiteStatement>();
+
     private String[] mSelectionArgs1 = new String[1];
     private NameSplitter mNameSplitter;
-    private NameSplitter.Name mName = new NameSplitter.Name();
     private CharArrayBuffer mCharArrayBuffer = new CharArrayBuffer(128);
 
     private final Context mContext;
@@ -404,6 +462,19 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
 
     private SQLiteDatabase writableDatabase;
     private SQLiteDatabase readableDatabase;
+    private volatile ReadConnectionPool readConnectionPool;
+    private final String mDatabaseName;
+
+    /** In-memory phone lookup index, {@code null} until built and after each change */
+    private volatile PhoneLookupIndex mPhoneLookupIndex;
+    /** Incremented on each invalidation, a build that overlaps an invalidation is dropped */
+    private final AtomicInteger mPhoneLookupIndexGeneration = new AtomicInteger();
+
+    /** Drops the caches of the provider that are derived from the committed contacts data */
+    private volatile Runnable mCommitListener;
+
+    /** Time of the last cache warm-up in {@link #onOpen}, for unlock timing only */
+    private long mLastWarmUpMillis;
 
     private boolean registeredWithKeyManager;
 
@@ -423,8 +494,9 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
     }
 
     private ScContactsDatabaseHelper(Context context, String databaseName, boolean optimizationEnabled) {
-        super(context, databaseName, null, DATABASE_VERSION);
+        super(context, databaseName, null, DATABASE_VERSION, WAL_HOOK);
         mDatabaseOptimizationEnabled = optimizationEnabled;
+        mDatabaseName = databaseName;
 
         mContext = context;
         databasePasswordReadyLatch = new CountDownLatch(1);
@@ -439,32 +511,176 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         return writable ? writableDatabase : readableDatabase;
     }
 
+    /**
+     * Returns a database connection for queries.
+     *
+     * If the read connection pool is available this returns one of its read-only connections, thus
+     * queries don't wait for running write transactions. If the calling thread itself holds the
+     * writer (it runs inside a write transaction) this returns the writer connection because only
+     * the writer sees the uncommitted changes of the transaction.
+     */
+    public SQLiteDatabase getQueryDatabase() {
+        SQLiteDatabase writer = getDatabase(true);
+        ReadConnectionPool pool = readConnectionPool;
+        if (pool == null || writer == null || writer.isDbLockedByCurrentThread()) {
+            return writer;
+        }
+        return pool.acquire();
+    }
+
     /** This functions opens the database with the password and then counts down the latch */
     private boolean keyManagerReady() {
         if (writableDatabase != null)
             return false;
-        String pw = readPassword();
-        if (pw == null)
+
+        final long start = SystemClock.elapsedRealtime();
+        byte[] data = readKeyData();
+        if (data == null)
             return false;
-        writableDatabase = getWritableDatabase(pw);
+        final long fetched = SystemClock.elapsedRealtime();
+
+        final boolean rawKey = mDatabaseName != null && mContext.getResources().getBoolean(R.bool.config_database_raw_key);
+        String pw = rawKey ? toRawKey(data) : toPassphrase(data);
+        final long derived = SystemClock.elapsedRealtime();
+
+        mLastWarmUpMillis = 0;
+        writableDatabase = rawKey ? openRawKeyDatabase(data) : openPassphraseDatabase(data, pw);
         readableDatabase = writableDatabase;
         databasePasswordReadyLatch.countDown();
         databasePasswordReadyLatch = null;
+        final long opened = SystemClock.elapsedRealtime();
+
+        // Queries use the writer until the read connections are ready
+        openReadConnectionPool(pw);
+        final long pooled = SystemClock.elapsedRealtime();
+
+        // With a passphrase SQLCipher runs its KDF inside the open, thus "open" includes the KDF
+        // in this case. Cache warm-up runs inside the open as well (onOpen).
+        Log.i(TAG, "Unlock (" + (rawKey ? "raw key" : "passphrase") + "): key fetch " + (fetched - start)
+                + "ms, key derive " + (derived - fetched) + "ms, open " + (opened - derived - mLastWarmUpMillis)
+                + "ms, cache warm-up " + mLastWarmUpMillis + "ms, read connections " + (pooled - opened) + "ms");
         return true;
     }
 
-    private String readPassword() {
+    /**
+     * Opens the writer connection with a raw key, SQLCipher uses a raw key as is and skips its KDF.
+     *
+     * An existing database that still uses the passphrase is re-keyed once. If the process dies after
+     * the re-key but before the preference was committed the next unlock fails with the passphrase
+     * and then uses the raw key.
+     */
+    private SQLiteDatabase openRawKeyDatabase(byte[] data) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        final String rawKey = toRawKey(data);
+
+        if (prefs.getBoolean(PREF_RAW_KEY, false) || !mContext.getDatabasePath(mDatabaseName).exists()) {
+            SQLiteDatabase db = getWritableDatabase(rawKey);
+            prefs.edit().putBoolean(PREF_RAW_KEY, true).commit();
+            return db;
+        }
+        SQLiteDatabase db;
+        try {
+            db = getWritableDatabase(toPassphrase(data));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot open database with passphrase, trying raw key: " + e);
+            db = getWritableDatabase(rawKey);
+            prefs.edit().putBoolean(PREF_RAW_KEY, true).commit();
+            return db;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        rekey(db, "\"" + rawKey + "\"");
+        prefs.edit().putBoolean(PREF_RAW_KEY, true).commit();
+        Log.i(TAG, "Migrated database to raw key in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        return db;
+    }
+
+    /**
+     * Opens the writer connection with the passphrase.
+     *
+     * A database that still uses the raw key because {@code config_database_raw_key} was switched
+     * off is re-keyed back to the passphrase once. If the process dies after the re-key but before
+     * the preference was committed the next unlock fails with the raw key and then uses the passphrase.
+     */
+    private SQLiteDatabase openPassphraseDatabase(byte[] data, String passphrase) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        if (mDatabaseName == null || !prefs.getBoolean(PREF_RAW_KEY, false)) {
+            return getWritableDatabase(passphrase);
+        }
+        SQLiteDatabase db;
+        try {
+            db = getWritableDatabase(toRawKey(data));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot open database with raw key, trying passphrase: " + e);
+            db = getWritableDatabase(passphrase);
+            prefs.edit().remove(PREF_RAW_KEY).commit();
+            return db;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        rekey(db, "'" + passphrase.replace("'", "''") + "'");
+        prefs.edit().remove(PREF_RAW_KEY).commit();
+        Log.i(TAG, "Migrated database back to passphrase in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        return db;
+    }
+
+    /**
+     * Changes the key of the open writer connection, {@code key} is the quoted argument of the pragma.
+     */
+    private static void rekey(SQLiteDatabase db, String key) {
+        // SQLCipher cannot re-key a database in WAL mode
+        db.rawExecSQL("PRAGMA journal_mode = DELETE;");
+        db.rawExecSQL("PRAGMA rekey = " + key + ";");
+        db.rawExecSQL("PRAGMA journal_mode = WAL;");
+    }
+
+    private void openReadConnectionPool(String pw) {
+        if (mDatabaseName == null) {        // in-memory database for tests, cannot share it
+            return;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        String path = mContext.getDatabasePath(mDatabaseName).getPath();
+        ReadConnectionPool pool = ReadConnectionPool.open(path, pw, READ_CONNECTION_POOL_SIZE);
+        synchronized (this) {
+            if (pool != null && writableDatabase == null) {     // locked while we opened the pool
+                pool.close();
+                return;
+            }
+            readConnectionPool = pool;
+        }
+        if (pool != null) {
+            Log.i(TAG, "Opened " + pool.size() + " read connections in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+    }
+
+    private byte[] readKeyData() {
         // get the stored key
         byte[] data = KeyManagerSupport.getPrivateKeyData(mContext.getContentResolver(), "contactsdatabase");
         if (data == null) {             // is not yet available - create one
             data = KeyManagerSupport.randomPrivateKeyData(mContext.getContentResolver(), "contactsdatabase", 32);
         }
-        if (data == null)               // could not get random key data, key manager no ready yet
-            return null;
+        return data;                    // null: could not get random key data, key manager no ready yet
+    }
 
+    private static String toPassphrase(byte[] data) {
         char[] keyChars = KeyManagerSupport.fromByteToChar(data);
-        String key = new String(keyChars);
-        return key;
+        return new String(keyChars);
+    }
+
+    /**
+     * Returns the key data as a SQLCipher raw key: {@code x'<64 hex digits>'}.
+     *
+     * The key manager creates 32 random bytes which we use as is. Key data of other length
+     * is hashed to get a 256 bit key.
+     */
+    private static String toRawKey(byte[] data) {
+        byte[] key = data;
+        if (key.length != RAW_KEY_LENGTH) {
+            try {
+                key = MessageDigest.getInstance("SHA-256").digest(data);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+        return "x'" + Hex.encodeHex(key, false) + "'";
     }
 
     public void onKeyDataRead() {}
@@ -561,6 +777,8 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         mSetSuperPrimaryStatement = null;
         mNameLookupInsert = null;
         mNameLookupDelete = null;
+        mSearchIndexInsert = null;
+        clearBulkInsertStatements();
         mDataMimetypeQuery = null;
 
         initializeCache(db);
@@ -590,15 +808,22 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
 
     @Override
     public synchronized void close() {
+        invalidatePhoneLookupIndex();
         writableDatabase = null;
         readableDatabase = null;
+        if (readConnectionPool != null) {
+            readConnectionPool.close();
+            readConnectionPool = null;
+        }
         databasePasswordReadyLatch = new CountDownLatch(1);
         super.close();
     }
 
     @Override
     public void onOpen(SQLiteDatabase db) {
+        final long start = SystemClock.elapsedRealtime();
         refreshDatabaseCaches(db);
+        mLastWarmUpMillis = SystemClock.elapsedRealtime() - start;
     }
 
     public void onCreate(SQLiteDatabase db) {
@@ -692,7 +917,13 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
                 PhotoFiles._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                 PhotoFiles.HEIGHT + " INTEGER NOT NULL, " +
                 PhotoFiles.WIDTH + " INTEGER NOT NULL, " +
-                PhotoFiles.FILESIZE + " INTEGER NOT NULL);");
+                PhotoFiles.FILESIZE + " INTEGER NOT NULL, " +
+                PhotoFilesColumns.CONTENT_HASH + " TEXT, " +
+                PhotoFilesColumns.REF_COUNT + " INTEGER NOT NULL DEFAULT 1);");
+
+        db.execSQL("CREATE INDEX photo_files_content_hash_index ON " + Tables.PHOTO_FILES + " (" +
+                PhotoFilesColumns.CONTENT_HASH +
+        ");");
 
         // Mimetype mapping table
         db.execSQL("CREATE TABLE " + Tables.MIMETYPES + " (" +
@@ -765,6 +996,9 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
                 Data.RAW_CONTACT_ID +
         ");");
 
+        createPhotoThumbnailsTable(db);
+        createDataPhotoFileIdIndex(db);
+
         /**
          * For email lookup and similar queries.
          */
@@ -854,6 +1088,10 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
     }
 
     public void createSearchIndexTable(SQLiteDatabase db, boolean rebuildSqliteStats) {
+        if (mSearchIndexInsert != null) {
+            mSearchIndexInsert.close();
+            mSearchIndexInsert = null;
+        }
         db.execSQL("DROP TABLE IF EXISTS " + Tables.SEARCH_INDEX);
 
         // use FTS4 module if we drop API 10
@@ -910,7 +1148,8 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
                 + Data.DATA12 + ", "
                 + Data.DATA13 + ", "
                 + Data.DATA14 + ", "
-                + Data.DATA15 + ", "
+                + "COALESCE(" + PhotoThumbnailsColumns.CONCRETE_THUMBNAIL + ", " + DataColumns.CONCRETE_DATA15 + ")"
+                        + " AS " + Data.DATA15 + ", "
                 + Data.SYNC1 + ", "
                 + Data.SYNC2 + ", "
                 + Data.SYNC3 + ", "
@@ -966,6 +1205,8 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
                 +   DataColumns.CONCRETE_MIMETYPE_ID + "=" + MimetypesColumns.CONCRETE_ID + ")"
                 + " JOIN " + Tables.RAW_CONTACTS + " ON ("
                 +   DataColumns.CONCRETE_RAW_CONTACT_ID + "=" + RawContactsColumns.CONCRETE_ID + ")"
+                + " LEFT OUTER JOIN " + Tables.PHOTO_THUMBNAILS + " ON ("
+                +   PhotoThumbnailsColumns.CONCRETE_DATA_ID + "=" + DataColumns.CONCRETE_ID + ")"
 //                + " LEFT OUTER JOIN " + Tables.PACKAGES + " ON ("
 //                +   DataColumns.CONCRETE_PACKAGE_ID + "=" + PackagesColumns.CONCRETE_ID + ")"
                 + " LEFT OUTER JOIN " + Tables.GROUPS + " ON ("
@@ -1042,6 +1283,8 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
 //                    + ")"
                 + " LEFT OUTER JOIN " + Tables.DATA + " ON ("
                 +   DataColumns.CONCRETE_RAW_CONTACT_ID + "=" + RawContactsColumns.CONCRETE_ID + ")"
+                + " LEFT OUTER JOIN " + Tables.PHOTO_THUMBNAILS + " ON ("
+                +   PhotoThumbnailsColumns.CONCRETE_DATA_ID + "=" + DataColumns.CONCRETE_ID + ")"
 //                + " LEFT OUTER JOIN " + Tables.PACKAGES + " ON ("
 //                +   DataColumns.CONCRETE_PACKAGE_ID + "=" + PackagesColumns.CONCRETE_ID + ")"
                 + " LEFT OUTER JOIN " + Tables.MIMETYPES + " ON ("
@@ -1198,6 +1441,8 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
 //                + "     WHERE " + StatusUpdatesColumns.DATA_ID + "=OLD." + Data._ID + ";"
                 + "   DELETE FROM " + Tables.NAME_LOOKUP
                 + "     WHERE " + NameLookupColumns.DATA_ID + "=OLD." + Data._ID + ";"
+                + "   DELETE FROM " + Tables.PHOTO_THUMBNAILS
+                + "     WHERE " + PhotoThumbnailsColumns.DATA_ID + "=OLD." + Data._ID + ";"
                 + " END");
 
 
@@ -1263,6 +1508,79 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
     
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
              Log.i(TAG, "Upgrading from version " + oldVersion + " to " + newVersion);
+
+        if (oldVersion < 101) {
+            upgradeToVersion101(db);
+            oldVersion = 101;
+        }
+
+        if (oldVersion < 102) {
+            upgradeToVersion102(db);
+            oldVersion = 102;
+        }
+
+        if (oldVersion < 103) {
+            createDataPhotoFileIdIndex(db);
+            oldVersion = 103;
+        }
+    }
+
+    /**
+     * Adds content hash and reference count to the photo files. Existing files have no hash,
+     * they are not shared.
+     */
+    private void upgradeToVersion101(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Tables.PHOTO_FILES + " ADD " + PhotoFilesColumns.CONTENT_HASH + " TEXT;");
+        db.execSQL("ALTER TABLE " + Tables.PHOTO_FILES + " ADD " + PhotoFilesColumns.REF_COUNT
+                + " INTEGER NOT NULL DEFAULT 1;");
+        db.execSQL("CREATE INDEX photo_files_content_hash_index ON " + Tables.PHOTO_FILES + " (" +
+                PhotoFilesColumns.CONTENT_HASH +
+        ");");
+    }
+
+    private void createPhotoThumbnailsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.PHOTO_THUMBNAILS + " (" +
+                PhotoThumbnailsColumns.DATA_ID + " INTEGER PRIMARY KEY REFERENCES data(_id)," +
+                PhotoThumbnailsColumns.THUMBNAIL + " BLOB NOT NULL" +
+        ");");
+    }
+
+    /**
+     * For the data rows that share a photo file. Only photo rows set the photo file ID, the
+     * partial index leaves out all other rows.
+     */
+    private void createDataPhotoFileIdIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX data_photo_file_id_index ON " + Tables.DATA + " (" +
+                Photo.PHOTO_FILE_ID +
+        ") WHERE " + Photo.PHOTO_FILE_ID + " IS NOT NULL;");
+    }
+
+    /**
+     * Moves the thumbnails of the photo data rows into their own table. The data_updated trigger
+     * is dropped while the data rows lose their blobs, the move changes neither the data nor the
+     * raw contact versions.
+     */
+    private void upgradeToVersion102(SQLiteDatabase db) {
+        final long start = SystemClock.elapsedRealtime();
+        createPhotoThumbnailsTable(db);
+
+        final String photoMimetypeId = "(SELECT " + MimetypesColumns._ID + " FROM " + Tables.MIMETYPES
+                + " WHERE " + MimetypesColumns.MIMETYPE + "='" + ScContactsContract.CommonDataKinds.Photo.CONTENT_ITEM_TYPE + "')";
+        db.execSQL("INSERT INTO " + Tables.PHOTO_THUMBNAILS + " ("
+                + PhotoThumbnailsColumns.DATA_ID + ", " + PhotoThumbnailsColumns.THUMBNAIL + ")"
+                + " SELECT " + Data._ID + ", " + Photo.PHOTO + " FROM " + Tables.DATA
+                + " WHERE " + DataColumns.MIMETYPE_ID + "=" + photoMimetypeId
+                + " AND " + Photo.PHOTO + " NOT NULL;");
+
+        db.execSQL("DROP TRIGGER IF EXISTS " + Tables.DATA + "_updated;");
+        db.execSQL("UPDATE " + Tables.DATA + " SET " + Photo.PHOTO + "=NULL"
+                + " WHERE " + Data._ID + " IN (SELECT " + PhotoThumbnailsColumns.DATA_ID
+                + " FROM " + Tables.PHOTO_THUMBNAILS + ");");
+
+        createContactsViews(db);
+        createContactsTriggers(db);
+        Log.i(TAG, "Moved " + DbQueryUtils.queryNumEntries(db, Tables.PHOTO_THUMBNAILS) + " photo thumbnails in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
     }
     
     private void bindString(SQLiteStatement stmt, int index, String value) {
@@ -1276,6 +1594,9 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
     
     /**
      * Regenerates all locale-sensitive data: nickname_lookup, name_lookup and sort keys.
+     *
+     * The name lookup keys and sort keys are computed on several threads, this thread does
+     * all reads and writes in one transaction.
      */
     public void setLocale(ScContactsProvider provider, Locale locale) {
         Log.i(TAG, "Switching to locale " + locale);
@@ -1283,6 +1604,11 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         final long start = SystemClock.elapsedRealtime();
         SQLiteDatabase db = getDatabase(true);
         db.setLocale(locale);
+        ReadConnectionPool pool = readConnectionPool;
+        if (pool != null) {
+            pool.setLocale(locale);
+        }
+        final LocaleRebuildExecutor executor = new LocaleRebuildExecutor();
         db.beginTransaction();
         try {
             db.execSQL("DROP INDEX IF EXISTS raw_contact_sort_key1_index");
@@ -1290,12 +1616,16 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
             db.execSQL("DROP INDEX IF EXISTS name_lookup_index");
 
 //            loadNicknameLookupTable(db);
-            insertNameLookup(db);
-            rebuildSortKeys(db, provider);
+            insertNameLookup(db, executor);
+            rebuildSortKeys(db, provider, executor);
+
+            final long indexStart = SystemClock.elapsedRealtime();
             createContactsIndices(db, true);
+            Log.i(TAG, "Locale change indices created in " + (SystemClock.elapsedRealtime() - indexStart) + "ms");
             db.setTransactionSuccessful();
         } finally {
-            db.endTransaction();
+            endWriterTransaction(db);
+            executor.shutdown();
         }
 
         Log.i(TAG, "Locale change completed in " + (SystemClock.elapsedRealtime() - start) + "ms");
@@ -1304,20 +1634,140 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
     /**
      * Regenerates sort keys for all contacts.
      */
-    private void rebuildSortKeys(SQLiteDatabase db, ScContactsProvider provider) {
+    private void rebuildSortKeys(SQLiteDatabase db, ScContactsProvider provider, LocaleRebuildExecutor executor) {
+        if (mNameSplitter == null) {
+            createNameSplitter();
+        }
         Cursor cursor = db.query(Tables.RAW_CONTACTS, new String[]{RawContacts._ID},
                 null, null, null, null, null);
         try {
+            executor.beginPhase("Sort keys", cursor.getCount());
+            DisplayNameChunk chunk = null;
             while (cursor.moveToNext()) {
                 long rawContactId = cursor.getLong(0);
-                updateRawContactDisplayName(db, rawContactId);
+                if (chunk == null) {
+                    chunk = new DisplayNameChunk(db, mNameSplitter);
+                }
+                chunk.add(readRawContactDisplayName(db, rawContactId));
+                if (chunk.size() == LocaleRebuildExecutor.CHUNK_SIZE) {
+                    executor.submit(chunk);
+                    chunk = null;
+                }
             }
+            if (chunk != null) {
+                executor.submit(chunk);
+            }
+            executor.endPhase();
         } finally {
             cursor.close();
         }
     }
 
-    private void insertNameLookup(SQLiteDatabase db) {
+    /**
+     * Display names of raw contacts, computed on a worker thread of the locale rebuild.
+     */
+    private class DisplayNameChunk implements LocaleRebuildExecutor.Chunk {
+        private final SQLiteDatabase mDb;
+        private final NameSplitter mSplitter;
+        private final ArrayList<RawContactDisplayName> mDisplayNames =
+                new ArrayList<RawContactDisplayName>(LocaleRebuildExecutor.CHUNK_SIZE);
+
+        DisplayNameChunk(SQLiteDatabase db, NameSplitter splitter) {
+            mDb = db;
+            mSplitter = splitter;
+        }
+
+        void add(RawContactDisplayName displayName) {
+            mDisplayNames.add(displayName);
+        }
+
+        @Override
+        public void compute() {
+            for (RawContactDisplayName displayName : mDisplayNames) {
+                displayName.compute(mSplitter);
+            }
+        }
+
+        @Override
+        public void write() {
+            for (RawContactDisplayName displayName : mDisplayNames) {
+                writeRawContactDisplayName(mDb, displayName);
+            }
+        }
+
+        @Override
+        public int size() {
+            return mDisplayNames.size();
+        }
+    }
+
+    /**
+     * A computed row of the {@link Tables#NAME_LOOKUP} table.
+     */
+    private static final class NameLookupRow {
+        final long rawContactId;
+        final long dataId;
+        final int lookupType;
+        final String normalizedName;
+
+        NameLookupRow(long rawContactId, long dataId, int lookupType, String normalizedName) {
+            this.rawContactId = rawContactId;
+            this.dataId = dataId;
+            this.lookupType = lookupType;
+            this.normalizedName = normalizedName;
+        }
+    }
+
+    /**
+     * Data rows whose name lookup rows are computed on a worker thread of the locale rebuild.
+     */
+    private abstract class NameLookupChunk implements LocaleRebuildExecutor.Chunk {
+        private final SQLiteStatement mNameLookupInsert;
+        private final long[] mDataIds = new long[LocaleRebuildExecutor.CHUNK_SIZE];
+        private final long[] mRawContactIds = new long[LocaleRebuildExecutor.CHUNK_SIZE];
+        private final String[] mValues = new String[LocaleRebuildExecutor.CHUNK_SIZE];
+        private int mSize;
+
+        protected final ArrayList<NameLookupRow> mRows = new ArrayList<NameLookupRow>();
+
+        NameLookupChunk(SQLiteStatement nameLookupInsert) {
+            mNameLookupInsert = nameLookupInsert;
+        }
+
+        void add(long dataId, long rawContactId, String value) {
+            mDataIds[mSize] = dataId;
+            mRawContactIds[mSize] = rawContactId;
+            mValues[mSize] = value;
+            mSize++;
+        }
+
+        /**
+         * Computes the name lookup rows of one data row.
+         */
+        protected abstract void compute(long rawContactId, long dataId, String value);
+
+        @Override
+        public void compute() {
+            for (int i = 0; i < mSize; i++) {
+                compute(mRawContactIds[i], mDataIds[i], mValues[i]);
+            }
+        }
+
+        @Override
+        public void write() {
+            for (NameLookupRow row : mRows) {
+                insertNormalizedNameLookup(mNameLookupInsert, row.rawContactId, row.dataId, row.lookupType,
+                        row.normalizedName);
+            }
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+
+    private void insertNameLookup(SQLiteDatabase db, LocaleRebuildExecutor executor) {
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP);
 
         SQLiteStatement nameLookupInsert = db.compileStatement(
@@ -1329,8 +1779,8 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
                 ") VALUES (?,?,?,?)");
 
         try {
-            insertStructuredNameLookup(db, nameLookupInsert);
-            insertEmailLookup(db, nameLookupInsert);
+            insertStructuredNameLookup(db, nameLookupInsert, executor);
+            insertEmailLookup(db, nameLookupInsert, executor);
 //            insertNicknameLookup(db, nameLookupInsert);
         } finally {
             nameLookupInsert.close();
@@ -1354,23 +1804,22 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         public static final int DISPLAY_NAME = 2;
     }
 
-    private class StructuredNameLookupBuilder extends NameLookupBuilder {
+    private static class StructuredNameLookupBuilder extends NameLookupBuilder {
 
-        private final SQLiteStatement mNameLookupInsert;
+        private final ArrayList<NameLookupRow> mRows;
 //        private final CommonNicknameCache mCommonNicknameCache;
 
         public StructuredNameLookupBuilder(NameSplitter splitter,
-                /* CommonNicknameCache commonNicknameCache, */SQLiteStatement nameLookupInsert) {
+                /* CommonNicknameCache commonNicknameCache, */ArrayList<NameLookupRow> rows) {
             super(splitter);
             // this.mCommonNicknameCache = commonNicknameCache;
-            this.mNameLookupInsert = nameLookupInsert;
+            this.mRows = rows;
         }
 
         @Override
         protected void insertNameLookup(long rawContactId, long dataId, int lookupType, String name) {
             if (!TextUtils.isEmpty(name)) {
-                ScContactsDatabaseHelper.this.insertNormalizedNameLookup(mNameLookupInsert, rawContactId, dataId, lookupType,
-                        name);
+                mRows.add(new NameLookupRow(rawContactId, dataId, lookupType, name));
             }
         }
 
@@ -1383,23 +1832,41 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
     /**
      * Inserts name lookup rows for all structured names in the database.
      */
-    private void insertStructuredNameLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert) {
-        NameSplitter nameSplitter = createNameSplitter();
-        NameLookupBuilder nameLookupBuilder = new StructuredNameLookupBuilder(nameSplitter, /* new CommonNicknameCache(db), */
-                nameLookupInsert);
+    private void insertStructuredNameLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert,
+            LocaleRebuildExecutor executor) {
+        final NameSplitter nameSplitter = createNameSplitter();
         final long mimeTypeId = lookupMimeTypeId(db, StructuredName.CONTENT_ITEM_TYPE);
 
         Cursor cursor = db.query(StructuredNameQuery.TABLE, StructuredNameQuery.COLUMNS, StructuredNameQuery.SELECTION,
                 new String[] { String.valueOf(mimeTypeId) }, null, null, null);
         try {
+            executor.beginPhase("Structured name lookup", cursor.getCount());
+            NameLookupChunk chunk = null;
             while (cursor.moveToNext()) {
-                long dataId = cursor.getLong(StructuredNameQuery.ID);
-                long rawContactId = cursor.getLong(StructuredNameQuery.RAW_CONTACT_ID);
-                String name = cursor.getString(StructuredNameQuery.DISPLAY_NAME);
-                int fullNameStyle = nameSplitter.guessFullNameStyle(name);
-                fullNameStyle = nameSplitter.getAdjustedFullNameStyle(fullNameStyle);
-                nameLookupBuilder.insertNameLookup(rawContactId, dataId, name, fullNameStyle);
+                if (chunk == null) {
+                    chunk = new NameLookupChunk(nameLookupInsert) {
+                        private final NameLookupBuilder mNameLookupBuilder =
+                                new StructuredNameLookupBuilder(nameSplitter, /* new CommonNicknameCache(db), */ mRows);
+
+                        @Override
+                        protected void compute(long rawContactId, long dataId, String name) {
+                            int fullNameStyle = nameSplitter.guessFullNameStyle(name);
+                            fullNameStyle = nameSplitter.getAdjustedFullNameStyle(fullNameStyle);
+                            mNameLookupBuilder.insertNameLookup(rawContactId, dataId, name, fullNameStyle);
+                        }
+                    };
+                }
+                chunk.add(cursor.getLong(StructuredNameQuery.ID), cursor.getLong(StructuredNameQuery.RAW_CONTACT_ID),
+                        cursor.getString(StructuredNameQuery.DISPLAY_NAME));
+                if (chunk.size() == LocaleRebuildExecutor.CHUNK_SIZE) {
+                    executor.submit(chunk);
+                    chunk = null;
+                }
             }
+            if (chunk != null) {
+                executor.submit(chunk);
+            }
+            executor.endPhase();
         }
         finally {
             cursor.close();
@@ -1426,18 +1893,42 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
     /**
      * Inserts name lookup rows for all email addresses in the database.
      */
-    private void insertEmailLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert) {
+    private void insertEmailLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert,
+            LocaleRebuildExecutor executor) {
         final long mimeTypeId = lookupMimeTypeId(db, Email.CONTENT_ITEM_TYPE);
         Cursor cursor = db.query(EmailQuery.TABLE, EmailQuery.COLUMNS, EmailQuery.SELECTION,
                 new String[] { String.valueOf(mimeTypeId) }, null, null, null);
         try {
+            executor.beginPhase("Email lookup", cursor.getCount());
+            NameLookupChunk chunk = null;
             while (cursor.moveToNext()) {
-                long dataId = cursor.getLong(EmailQuery.ID);
-                long rawContactId = cursor.getLong(EmailQuery.RAW_CONTACT_ID);
-                String address = cursor.getString(EmailQuery.ADDRESS);
-                address = extractHandleFromEmailAddress(address);
-                insertNameLookup(nameLookupInsert, rawContactId, dataId, NameLookupType.EMAIL_BASED_NICKNAME, address);
+                if (chunk == null) {
+                    chunk = new NameLookupChunk(nameLookupInsert) {
+                        @Override
+                        protected void compute(long rawContactId, long dataId, String address) {
+                            String handle = extractHandleFromEmailAddress(address);
+                            if (TextUtils.isEmpty(handle)) {
+                                return;
+                            }
+                            String normalized = NameNormalizer.normalize(handle);
+                            if (!TextUtils.isEmpty(normalized)) {
+                                mRows.add(new NameLookupRow(rawContactId, dataId, NameLookupType.EMAIL_BASED_NICKNAME,
+                                        normalized));
+                            }
+                        }
+                    };
+                }
+                chunk.add(cursor.getLong(EmailQuery.ID), cursor.getLong(EmailQuery.RAW_CONTACT_ID),
+                        cursor.getString(EmailQuery.ADDRESS));
+                if (chunk.size() == LocaleRebuildExecutor.CHUNK_SIZE) {
+                    executor.submit(chunk);
+                    chunk = null;
+                }
+            }
+            if (chunk != null) {
+                executor.submit(chunk);
             }
+            executor.endPhase();
         }
         finally {
             cursor.close();
@@ -1563,6 +2054,90 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         return mMimeTypeIdSip;
     }
 
+    /**
+     * Returns the in-memory phone lookup index or {@code null} if it is not built yet or the
+     * contacts changed since it was built.
+     */
+    public PhoneLookupIndex getPhoneLookupIndex() {
+        return mPhoneLookupIndex;
+    }
+
+    /**
+     * Drops the phone lookup index. Call this after the phone numbers, SIP addresses or the
+     * raw contacts changed.
+     */
+    public synchronized void invalidatePhoneLookupIndex() {
+        mPhoneLookupIndexGeneration.incrementAndGet();
+        mPhoneLookupIndex = null;
+    }
+
+    /**
+     * Sets the listener that drops the caches of the provider after a write committed.
+     */
+    public void setCommitListener(Runnable listener) {
+        mCommitListener = listener;
+    }
+
+    /**
+     * Ends a transaction of the writer. Once the outermost transaction of the calling thread
+     * ended, the caches derived from the committed contacts data are dropped.
+     */
+    public void endWriterTransaction(SQLiteDatabase db) {
+        try {
+            db.endTransaction();
+        } finally {
+            onWriteCommitted(db);
+        }
+    }
+
+    /**
+     * Drops the caches derived from the committed contacts data: the phone lookup index and the
+     * caches of the commit listener. Does nothing while the calling thread is in a transaction,
+     * the end of the transaction drops them. Writes outside of a transaction commit at once, they
+     * call this when they are done.
+     */
+    public void onWriteCommitted(SQLiteDatabase db) {
+        if (db.inTransaction()) {
+            return;
+        }
+        invalidatePhoneLookupIndex();
+        final Runnable listener = mCommitListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Builds the phone lookup index from the committed state of the database if there is none.
+     *
+     * The build runs without a lock. If the index was invalidated meanwhile the new index may
+     * miss a change, thus it is dropped and the next phone lookup schedules another build.
+     */
+    public void buildPhoneLookupIndex() {
+        if (mPhoneLookupIndex != null || !isReady()) {
+            return;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final int generation = mPhoneLookupIndexGeneration.get();
+        final PhoneLookupIndex index;
+        try {
+            index = PhoneLookupIndex.build(getQueryDatabase(), getMimeTypeIdForSip(),
+                    mUseStrictPhoneNumberComparison);
+        } catch (RuntimeException e) {
+            // The database may get closed by the key manager while we read it
+            Log.w(TAG, "Could not build phone lookup index: " + e);
+            return;
+        }
+        synchronized (this) {
+            if (generation != mPhoneLookupIndexGeneration.get() || !isReady()) {
+                return;
+            }
+            mPhoneLookupIndex = index;
+        }
+        Log.i(TAG, "Phone lookup index: " + index.getPhoneCount() + " numbers, " + index.getSipCount()
+                + " SIP addresses in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
     public int getDisplayNameSourceForMimeTypeId(int mimeTypeId) {
         if (mimeTypeId == mMimeTypeIdStructuredName) {
             return DisplayNameSources.STRUCTURED_NAME;
@@ -1654,7 +2229,125 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         if (mNameSplitter == null) {
             createNameSplitter();
         }
+        RawContactDisplayName displayName = readRawContactDisplayName(db, rawContactId);
+        displayName.compute(mNameSplitter);
+        writeRawContactDisplayName(db, displayName);
+    }
+
+    /**
+     * Display name and sort keys of a raw contact. Reading the name data and writing the result
+     * use the database, {@link #compute} is pure CPU work and may run on any thread.
+     */
+    private static final class RawContactDisplayName {
+        final long rawContactId;
+
+        // Best name data of the raw contact
+        int bestDisplayNameSource;
+        NameSplitter.Name bestName;
+        String bestDisplayName;
+        String bestPhoneticName;
+        int bestPhoneticNameStyle;
+
+        // Computed columns
+        String displayNamePrimary;
+        String displayNameAlternative;
+        String sortKeyPrimary;
+        String sortKeyAlternative;
+        String phonebookLabelPrimary = "";
+        String phonebookLabelAlternative = "";
+        int phonebookBucketPrimary;
+        int phonebookBucketAlternative;
+
+        RawContactDisplayName(long rawContactId) {
+            this.rawContactId = rawContactId;
+        }
+
+        /**
+         * Computes display names, sort keys and phonebook buckets from the best name data.
+         */
+        void compute(NameSplitter splitter) {
+            String sortNamePrimary;
+            String sortNameAlternative;
+            int displayNameStyle = FullNameStyle.UNDEFINED;
+
+            if (bestDisplayNameSource == DisplayNameSources.STRUCTURED_NAME) {
+                displayNameStyle = bestName.fullNameStyle;
+                if (displayNameStyle == FullNameStyle.CJK
+                        || displayNameStyle == FullNameStyle.UNDEFINED) {
+                    displayNameStyle = splitter.getAdjustedFullNameStyle(displayNameStyle);
+                    bestName.fullNameStyle = displayNameStyle;
+                }
+
+                displayNamePrimary = splitter.join(bestName, true, true);
+                displayNameAlternative = splitter.join(bestName, false, true);
+
+                if (TextUtils.isEmpty(bestName.prefix)) {
+                    sortNamePrimary = displayNamePrimary;
+                    sortNameAlternative = displayNameAlternative;
+                } else {
+                    sortNamePrimary = splitter.join(bestName, true, false);
+                    sortNameAlternative = splitter.join(bestName, false, false);
+                }
+
+                bestPhoneticName = splitter.joinPhoneticName(bestName);
+                bestPhoneticNameStyle = bestName.phoneticNameStyle;
+            } else {
+                displayNamePrimary = displayNameAlternative = bestDisplayName;
+                sortNamePrimary = sortNameAlternative = bestDisplayName;
+            }
+
+            if (bestPhoneticName != null) {
+                if (displayNamePrimary == null) {
+                    displayNamePrimary = bestPhoneticName;
+                }
+                if (displayNameAlternative == null) {
+                    displayNameAlternative = bestPhoneticName;
+                }
+                // Phonetic names disregard name order so displayNamePrimary and displayNameAlternative
+                // are the same.
+                sortKeyPrimary = sortKeyAlternative = bestPhoneticName;
+                if (bestPhoneticNameStyle == PhoneticNameStyle.UNDEFINED) {
+                    bestPhoneticNameStyle = splitter.guessPhoneticNameStyle(bestPhoneticName);
+                }
+            } else {
+                bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
+                if (displayNameStyle == FullNameStyle.UNDEFINED) {
+                    displayNameStyle = splitter.guessFullNameStyle(bestDisplayName);
+                    if (displayNameStyle == FullNameStyle.UNDEFINED
+                            || displayNameStyle == FullNameStyle.CJK) {
+                        displayNameStyle = splitter.getAdjustedNameStyleBasedOnPhoneticNameStyle(
+                                displayNameStyle, bestPhoneticNameStyle);
+                    }
+                    displayNameStyle = splitter.getAdjustedFullNameStyle(displayNameStyle);
+                }
+                if (displayNameStyle == FullNameStyle.CHINESE ||
+                        displayNameStyle == FullNameStyle.CJK) {
+                    sortKeyPrimary = sortKeyAlternative = sortNamePrimary;
+                }
+            }
+
+            if (sortKeyPrimary == null) {
+                sortKeyPrimary = sortNamePrimary;
+                sortKeyAlternative = sortNameAlternative;
+            }
+
+            ContactLocaleUtils43 localeUtils = ContactLocaleUtils43.getInstance();
+
+            if (sortKeyPrimary != null) {
+                phonebookBucketPrimary = localeUtils.getBucketIndex(sortKeyPrimary);
+                phonebookLabelPrimary = localeUtils.getBucketLabel(phonebookBucketPrimary);
+            }
+            if (sortKeyAlternative != null) {
+                phonebookBucketAlternative = localeUtils.getBucketIndex(sortKeyAlternative);
+                phonebookLabelAlternative = localeUtils.getBucketLabel(phonebookBucketAlternative);
+            }
+        }
+    }
 
+    /**
+     * Selects the best name data of a raw contact, the caller computes the display name.
+     */
+    private RawContactDisplayName readRawContactDisplayName(SQLiteDatabase db, long rawContactId) {
         int bestDisplayNameSource = DisplayNameSources.UNDEFINED;
         NameSplitter.Name bestName = null;
         String bestDisplayName = null;
@@ -1677,13 +2370,8 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
                 }
 
                 if (mimeType == getMimeTypeIdForStructuredName()) {
-                    NameSplitter.Name name;
-                    if (bestName != null) {
-                        name = new NameSplitter.Name();
-                    } else {
-                        name = mName;
-                        name.clear();
-                    }
+                    // The name is kept until the display name is computed, possibly on another thread
+                    NameSplitter.Name name = new NameSplitter.Name();
                     name.prefix = c.getString(RawContactNameQuery.PREFIX);
                     name.givenNames = c.getString(RawContactNameQuery.GIVEN_NAME);
                     name.middleName = c.getString(RawContactNameQuery.MIDDLE_NAME);
@@ -1744,89 +2432,16 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
             c.close();
         }
 
-        String displayNamePrimary;
-        String displayNameAlternative;
-        String sortNamePrimary;
-        String sortNameAlternative;
-        String sortKeyPrimary = null;
-        String sortKeyAlternative = null;
-        int displayNameStyle = FullNameStyle.UNDEFINED;
-
-        if (bestDisplayNameSource == DisplayNameSources.STRUCTURED_NAME) {
-            displayNameStyle = bestName.fullNameStyle;
-            if (displayNameStyle == FullNameStyle.CJK
-                    || displayNameStyle == FullNameStyle.UNDEFINED) {
-                displayNameStyle = mNameSplitter.getAdjustedFullNameStyle(displayNameStyle);
-                bestName.fullNameStyle = displayNameStyle;
-            }
-
-            displayNamePrimary = mNameSplitter.join(bestName, true, true);
-            displayNameAlternative = mNameSplitter.join(bestName, false, true);
-
-            if (TextUtils.isEmpty(bestName.prefix)) {
-                sortNamePrimary = displayNamePrimary;
-                sortNameAlternative = displayNameAlternative;
-            } else {
-                sortNamePrimary = mNameSplitter.join(bestName, true, false);
-                sortNameAlternative = mNameSplitter.join(bestName, false, false);
-            }
-
-            bestPhoneticName = mNameSplitter.joinPhoneticName(bestName);
-            bestPhoneticNameStyle = bestName.phoneticNameStyle;
-        } else {
-            displayNamePrimary = displayNameAlternative = bestDisplayName;
-            sortNamePrimary = sortNameAlternative = bestDisplayName;
-        }
-
-        if (bestPhoneticName != null) {
-            if (displayNamePrimary == null) {
-                displayNamePrimary = bestPhoneticName;
-            }
-            if (displayNameAlternative == null) {
-                displayNameAlternative = bestPhoneticName;
-            }
-            // Phonetic names disregard name order so displayNamePrimary and displayNameAlternative
-            // are the same.
-            sortKeyPrimary = sortKeyAlternative = bestPhoneticName;
-            if (bestPhoneticNameStyle == PhoneticNameStyle.UNDEFINED) {
-                bestPhoneticNameStyle = mNameSplitter.guessPhoneticNameStyle(bestPhoneticName);
-            }
-        } else {
-            bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
-            if (displayNameStyle == FullNameStyle.UNDEFINED) {
-                displayNameStyle = mNameSplitter.guessFullNameStyle(bestDisplayName);
-                if (displayNameStyle == FullNameStyle.UNDEFINED
-                        || displayNameStyle == FullNameStyle.CJK) {
-                    displayNameStyle = mNameSplitter.getAdjustedNameStyleBasedOnPhoneticNameStyle(
-                            displayNameStyle, bestPhoneticNameStyle);
-                }
-                displayNameStyle = mNameSplitter.getAdjustedFullNameStyle(displayNameStyle);
-            }
-            if (displayNameStyle == FullNameStyle.CHINESE ||
-                    displayNameStyle == FullNameStyle.CJK) {
-                sortKeyPrimary = sortKeyAlternative = sortNamePrimary;
-            }
-        }
-
-        if (sortKeyPrimary == null) {
-            sortKeyPrimary = sortNamePrimary;
-            sortKeyAlternative = sortNameAlternative;
-        }
-
-        String phonebookLabelPrimary = "";
-        String phonebookLabelAlternative = "";
-        int phonebookBucketPrimary = 0;
-        int phonebookBucketAlternative = 0;
-        ContactLocaleUtils43 localeUtils = ContactLocaleUtils43.getInstance();
+        RawContactDisplayName displayName = new RawContactDisplayName(rawContactId);
+        displayName.bestDisplayNameSource = bestDisplayNameSource;
+        displayName.bestName = bestName;
+        displayName.bestDisplayName = bestDisplayName;
+        displayName.bestPhoneticName = bestPhoneticName;
+        displayName.bestPhoneticNameStyle = bestPhoneticNameStyle;
+        return displayName;
+    }
 
-        if (sortKeyPrimary != null) {
-            phonebookBucketPrimary = localeUtils.getBucketIndex(sortKeyPrimary);
-            phonebookLabelPrimary = localeUtils.getBucketLabel(phonebookBucketPrimary);
-        }
-        if (sortKeyAlternative != null) {
-            phonebookBucketAlternative = localeUtils.getBucketIndex(sortKeyAlternative);
-            phonebookLabelAlternative = localeUtils.getBucketLabel(phonebookBucketAlternative);
-        }
+    private void writeRawContactDisplayName(SQLiteDatabase db, RawContactDisplayName displayName) {
         if (mRawContactDisplayNameUpdate == null) {
             mRawContactDisplayNameUpdate = db.compileStatement(
                     "UPDATE " + Tables.RAW_CONTACTS +
@@ -1845,18 +2460,18 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
                     " WHERE " + RawContacts._ID + "=?");
         }
 
-        mRawContactDisplayNameUpdate.bindLong(1, bestDisplayNameSource);
-        bindString(mRawContactDisplayNameUpdate, 2, displayNamePrimary);
-        bindString(mRawContactDisplayNameUpdate, 3, displayNameAlternative);
-        bindString(mRawContactDisplayNameUpdate, 4, bestPhoneticName);
-        mRawContactDisplayNameUpdate.bindLong(5, bestPhoneticNameStyle);
-        bindString(mRawContactDisplayNameUpdate, 6, sortKeyPrimary);
-        bindString(mRawContactDisplayNameUpdate, 7, phonebookLabelPrimary);
-        mRawContactDisplayNameUpdate.bindLong(8, phonebookBucketPrimary);
-        bindString(mRawContactDisplayNameUpdate, 9, sortKeyAlternative);
-        bindString(mRawContactDisplayNameUpdate, 10, phonebookLabelAlternative);
-        mRawContactDisplayNameUpdate.bindLong(11, phonebookBucketAlternative);
-        mRawContactDisplayNameUpdate.bindLong(12, rawContactId);
+        mRawContactDisplayNameUpdate.bindLong(1, displayName.bestDisplayNameSource);
+        bindString(mRawContactDisplayNameUpdate, 2, displayName.displayNamePrimary);
+        bindString(mRawContactDisplayNameUpdate, 3, displayName.displayNameAlternative);
+        bindString(mRawContactDisplayNameUpdate, 4, displayName.bestPhoneticName);
+        mRawContactDisplayNameUpdate.bindLong(5, displayName.bestPhoneticNameStyle);
+        bindString(mRawContactDisplayNameUpdate, 6, displayName.sortKeyPrimary);
+        bindString(mRawContactDisplayNameUpdate, 7, displayName.phonebookLabelPrimary);
+        mRawContactDisplayNameUpdate.bindLong(8, displayName.phonebookBucketPrimary);
+        bindString(mRawContactDisplayNameUpdate, 9, displayName.sortKeyAlternative);
+        bindString(mRawContactDisplayNameUpdate, 10, displayName.phonebookLabelAlternative);
+        mRawContactDisplayNameUpdate.bindLong(11, displayName.phonebookBucketAlternative);
+        mRawContactDisplayNameUpdate.bindLong(12, displayName.rawContactId);
         mRawContactDisplayNameUpdate.execute();
     }
 
@@ -1961,6 +2576,117 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         mNameLookupInsert.executeInsert();
     }
 
+    /**
+     * Inserts a record in the {@link Tables#SEARCH_INDEX} table.
+     *
+     * The raw contact id is also the docid of the row, thus deleting the rows of some raw contacts
+     * is a rowid lookup and not a scan of the whole FTS table.
+     */
+    public void insertSearchIndex(long rawContactId, String content, String name, String tokens) {
+        if (mSearchIndexInsert == null) {
+            mSearchIndexInsert = getDatabase(true).compileStatement(
+                    "INSERT INTO " + Tables.SEARCH_INDEX + "("
+                            + SearchIndexColumns.DOCID + ","
+                            + SearchIndexColumns.RAW_CONTACT_ID + ","
+                            + SearchIndexColumns.CONTENT + ","
+                            + SearchIndexColumns.NAME + ","
+                            + SearchIndexColumns.TOKENS
+                    + ") VALUES (?,?,?,?,?)");
+        }
+        mSearchIndexInsert.bindLong(1, rawContactId);
+        mSearchIndexInsert.bindLong(2, rawContactId);
+        bindString(mSearchIndexInsert, 3, content);
+        bindString(mSearchIndexInsert, 4, name);
+        bindString(mSearchIndexInsert, 5, tokens);
+        mSearchIndexInsert.executeInsert();
+    }
+
+    /**
+     * Inserts a row through a compiled statement that is reused for all rows with the same columns.
+     *
+     * The rows of a bulk insert share only a few column sets, for example all phone rows of a vCard
+     * import. Compiling the INSERT once per column set instead of once per row saves most of the
+     * statement preparation. Use only on the writer inside a transaction.
+     *
+     * @param table the table to insert the row into
+     * @param nullColumnHack column to set to {@code null} if {@code values} is empty
+     * @param values the values of the new row
+     * @return the row ID of the newly inserted row, or -1 if an error occurred
+     */
+    public long insertWithCachedStatement(String table, String nullColumnHack, ContentValues values) {
+        final String[] columns;
+        if (values.size() > 0) {
+            columns = values.keySet().toArray(new String[values.size()]);
+            Arrays.sort(columns);
+        }
+        else {
+            columns = new String[] {nullColumnHack};
+        }
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append("INSERT INTO ").append(table).append('(');
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(columns[i]);
+        }
+        sb.append(')');
+        final String key = sb.toString();
+
+        try {
+            SQLiteStatement stmt = mBulkInsertStatements.get(key);
+            if (stmt == null) {
+                if (mBulkInsertStatements.size() >= MAX_BULK_INSERT_STATEMENTS) {
+                    clearBulkInsertStatements();
+                }
+                sb.append(" VALUES (");
+                for (int i = 0; i < columns.length; i++) {
+                    sb.append(i > 0 ? ",?" : "?");
+                }
+                sb.append(')');
+                stmt = getDatabase(true).compileStatement(sb.toString());
+                mBulkInsertStatements.put(key, stmt);
+            }
+            for (int i = 0; i < columns.length; i++) {
+                bindObject(stmt, i + 1, values.get(columns[i]));
+            }
+            return stmt.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting " + values + " into " + table, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Closes the compiled statements of the bulk insert path.
+     */
+    public void clearBulkInsertStatements() {
+        for (SQLiteStatement stmt : mBulkInsertStatements.values()) {
+            stmt.close();
+        }
+        mBulkInsertStatements.clear();
+    }
+
+    private static void bindObject(SQLiteStatement stmt, int index, Object value) {
+        if (value == null) {
+            stmt.bindNull(index);
+        }
+        else if (value instanceof byte[]) {
+            stmt.bindBlob(index, (byte[])value);
+        }
+        else if (value instanceof Double || value instanceof Float) {
+            stmt.bindDouble(index, ((Number)value).doubleValue());
+        }
+        else if (value instanceof Number) {
+            stmt.bindLong(index, ((Number)value).longValue());
+        }
+        else if (value instanceof Boolean) {
+            stmt.bindLong(index, (Boolean)value ? 1 : 0);
+        }
+        else {
+            stmt.bindString(index, value.toString());
+        }
+    }
+
     /**
      * Deletes all {@link Tables#NAME_LOOKUP} table rows associated with the specified data element.
      */
@@ -2069,6 +2795,7 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         db.execSQL("DELETE FROM " + Tables.STREAM_ITEM_PHOTOS + ";");
         db.execSQL("DELETE FROM " + Tables.PHOTO_FILES + ";");
         db.execSQL("DELETE FROM " + Tables.DATA + ";");
+        db.execSQL("DELETE FROM " + Tables.PHOTO_THUMBNAILS + ";");
         db.execSQL("DELETE FROM " + Tables.PHONE_LOOKUP + ";");
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP + ";");
         db.execSQL("DELETE FROM " + Tables.GROUPS + ";");
@@ -2079,6 +2806,7 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
         db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX + ";");
 
         initializeCache(db);
+        onWriteCommitted(db);
 
         // Note: we are not removing reference data from Tables.NICKNAME_LOOKUP
     }
@@ -2408,6 +3136,9 @@ public class ScContactsDatabaseHelper extends SQLiteOpenHelper implements KeyMan
 
             updateIndexStats(db, Tables.DATA, "data_mimetype_data1_index", "60000 5000 2");
             updateIndexStats(db, Tables.DATA, "data_raw_contact_id", "60000 10");
+            updateIndexStats(db, Tables.DATA, "data_photo_file_id_index", "2000 1");
+
+            updateIndexStats(db, Tables.PHOTO_THUMBNAILS, null, "2000");
 
             updateIndexStats(db, Tables.CALLS, null, "250");
 
@@ -47,10 +47,8 @@ import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.content.res.AssetFileDescriptor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.content.res.Resources;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
@@ -60,6 +58,7 @@ import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelFileDescriptor.AutoCloseInputStream;
 import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.OpenableColumns;
 import android.text.TextUtils;
@@ -67,6 +66,7 @@ import android.util.Log;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
+import com.silentcircle.contacts.R;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.DataColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.GroupsColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Joins;
@@ -74,6 +74,7 @@ import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.NameLookupCo
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.NameLookupType;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.PhoneLookupColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.PhotoFilesColumns;
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.PhotoThumbnailsColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Projections;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.RawContactsColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.SearchIndexColumns;
@@ -83,6 +84,7 @@ import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Tables;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Views;
 import com.silentcircle.contacts.providers.aggregation.SimpleRawContactAggregator;
 import com.silentcircle.contacts.utils.DbQueryUtils;
+import com.silentcircle.contacts.utils.LongArray;
 import com.silentcircle.contacts.utils.PhoneNumberHelper;
 import com.silentcircle.silentcontacts.ScBaseColumns;
 import com.silentcircle.silentcontacts.ScContactsContract;
@@ -121,23 +123,29 @@ import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class ScContactsProvider extends ContentProvider {
@@ -162,6 +170,16 @@ public class ScContactsProvider extends ContentProvider {
 
     private static final String PREF_LOCALE = "locale";
 
+    /**
+     * Maximum time a photo writer waits for a free slot in the photo ingest queue, short because
+     * the writer waits on a binder thread
+     */
+    private static final long PHOTO_INGEST_WAIT_MILLIS = 500;
+
+    /** Number of threads that stream vCards into pipes, and number of queued vCard requests */
+    private static final int VCARD_STREAM_THREADS = 2;
+    private static final int VCARD_STREAM_QUEUE_SIZE = 16;
+
     private static final int BACKGROUND_TASK_INITIALIZE = 0;
     private static final int BACKGROUND_TASK_OPEN_WRITE_ACCESS = 1;
     private static final int BACKGROUND_TASK_UPDATE_ACCOUNTS = 3;
@@ -170,6 +188,20 @@ public class ScContactsProvider extends ContentProvider {
     private static final int BACKGROUND_TASK_UPDATE_PROVIDER_STATUS = 7;
     private static final int BACKGROUND_TASK_CHANGE_LOCALE = 9;
     private static final int BACKGROUND_TASK_CLEANUP_PHOTOS = 10;
+    private static final int BACKGROUND_TASK_MIGRATE_PHOTOS = 11;
+    private static final int BACKGROUND_TASK_BUILD_PHONE_LOOKUP_INDEX = 12;
+
+    /**
+     * Minimum number of operations between two yield points of a batch that are honored. A yield
+     * commits the transaction so far and lets waiting writers run.
+     */
+    private static final int MIN_OPERATIONS_PER_YIELD_POINT = 50;
+
+    /** Delay of the phone lookup index rebuild after a change, a burst of changes causes one rebuild */
+    private static final long PHONE_LOOKUP_INDEX_REBUILD_DELAY = 1000;
+
+    /** Number of photo files the migration to the sharded photo store moves per background task */
+    private static final int PHOTO_MIGRATION_CHUNK_SIZE = 200;
 
     private static final int RAW_CONTACTS = 2002;
     private static final int RAW_CONTACTS_ID = 2003;
@@ -223,6 +255,7 @@ public class ScContactsProvider extends ContentProvider {
 
     private static final int DISPLAY_PHOTO_ID = 22000;
     private static final int PHOTO_DIMENSIONS = 22001;
+    private static final int PHOTO_THUMBNAILS = 22002;
 
     private static final int GROUPS = 10000;
     private static final int GROUPS_ID = 10001;
@@ -307,6 +340,7 @@ public class ScContactsProvider extends ContentProvider {
 
         matcher.addURI(ScContactsContract.AUTHORITY, "display_photo/#", DISPLAY_PHOTO_ID);
         matcher.addURI(ScContactsContract.AUTHORITY, "photo_dimensions", PHOTO_DIMENSIONS);
+        matcher.addURI(ScContactsContract.AUTHORITY, "photo_thumbnails", PHOTO_THUMBNAILS);
 
         matcher.addURI(ScContactsContract.AUTHORITY, "directories", DIRECTORIES);
         matcher.addURI(ScContactsContract.AUTHORITY, "directories/#", DIRECTORIES_ID);
@@ -508,6 +542,13 @@ public class ScContactsProvider extends ContentProvider {
             .add(StreamItems.SYNC4)
             .build();
 
+    /** Contains the columns of the photo thumbnails, keyed by the id of their data row. */
+    private static final ProjectionMap sPhotoThumbnailsProjectionMap = ProjectionMap.builder()
+            .add(Data._ID, DataColumns.CONCRETE_ID)
+            .add(Data.DATA_VERSION, Tables.DATA + "." + Data.DATA_VERSION)
+            .add(Photo.PHOTO, PhotoThumbnailsColumns.CONCRETE_THUMBNAIL)
+            .build();
+
     private static final ProjectionMap sStreamItemPhotosProjectionMap = ProjectionMap.builder()
             .add(StreamItemPhotos._ID, StreamItemPhotosColumns.CONCRETE_ID)
             .add(StreamItems.RAW_CONTACT_ID)
@@ -691,6 +732,7 @@ public class ScContactsProvider extends ContentProvider {
     private int mProviderStatus = ProviderStatus.STATUS_NORMAL;
     private boolean mProviderStatusUpdateNeeded;
     private long mEstimatedStorageRequirement = 0;
+    private volatile int mProviderStatusProgress = 0;
     
     // Depending on whether the action being performed is for the profile or not, we will use one of
     // two aggregator instances.
@@ -700,6 +742,12 @@ public class ScContactsProvider extends ContentProvider {
     private HandlerThread mBackgroundThread;
     private Handler mBackgroundHandler;
 
+    // Writes vCards into the pipes returned by openAssetFile
+    private final ThreadPoolExecutor mVCardStreamExecutor = createVCardStreamExecutor();
+
+    // Processes the display photos written into the pipes returned by openAssetFile
+    private PhotoIngestExecutor mPhotoIngestExecutor;
+
     private Locale mCurrentLocale;
     private NameSplitter mNameSplitter;
     private SearchIndexManager mSearchIndexManager;
@@ -718,6 +766,9 @@ public class ScContactsProvider extends ContentProvider {
 
     private FastScrollingIndexCache mFastScrollingIndexCache;
 
+    // The raw contacts the last filter query of each list matched
+    private final FilterSessionCache mFilterSessionCache = new FilterSessionCache();
+
     // Stats about FastScrollingIndex.
     private int mFastScrollingIndexCacheRequestCount;
     private int mFastScrollingIndexCacheMissCount;
@@ -731,6 +782,23 @@ public class ScContactsProvider extends ContentProvider {
 
     private final String[] mSelectionArgs1 = new String[1];
 
+    /**
+     * The thumbnails of the photo data rows with the columns {@link Data#_ID}, {@link Data#DATA_VERSION}
+     * and {@link Photo#PHOTO}. It reads only the thumbnail table and the data table, for the photo
+     * loader of this application. Not part of the public contract.
+     */
+    public static final Uri PHOTO_THUMBNAILS_URI = Uri.withAppendedPath(ScContactsContract.AUTHORITY_URI, "photo_thumbnails");
+
+    /**
+     * Query parameter of {@link RawContacts#CONTENT_FILTER_URI} that identifies the filter session
+     * of a list. While the user extends the filter the provider only checks the raw contacts that
+     * the previous filter of the session matched. Not part of the public contract.
+     */
+    public static final String FILTER_SESSION_PARAM_KEY = "filter_session";
+
+    // The initialized provider, for the in-process photo access of mapDisplayPhoto()
+    private static volatile ScContactsProvider sLocalInstance;
+
     public ScContactsProvider() {
     }
 
@@ -740,7 +808,11 @@ public class ScContactsProvider extends ContentProvider {
         LocaleChangeReceiver.setProvider(this);
 
         try {
-            return initialize();
+            final boolean initialized = initialize();
+            if (initialized) {
+                sLocalInstance = this;
+            }
+            return initialized;
         } catch (RuntimeException e) {
             Log.e(TAG, "Cannot start provider", e);
             // In production code we don't want to throw here, so that phone will still work
@@ -757,10 +829,24 @@ public class ScContactsProvider extends ContentProvider {
 
     @Override
     public void shutdown() {
+        sLocalInstance = null;
         LocaleChangeReceiver.setProvider(null);
         mDbHelper.get().close();
     }
-    
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.print("FastScrollingIndex stats:\n");
+        pw.printf("request=%d  miss=%d  took=%dms\n", mFastScrollingIndexCacheRequestCount,
+                mFastScrollingIndexCacheMissCount, mTotalTimeFastScrollingIndexGenerate);
+        if (mPhotoIngestExecutor != null) {
+            mPhotoIngestExecutor.dump(pw);
+        }
+        if (mContactsPhotoStore != null) {
+            pw.print("Photo mappings: " + mContactsPhotoStore.getMappingStats() + "\n");
+        }
+    }
+
     protected boolean shouldThrowExceptionForInitializationError() {
         return true;
     }
@@ -769,8 +855,28 @@ public class ScContactsProvider extends ContentProvider {
 
         mFastScrollingIndexCache = new FastScrollingIndexCache(getContext());
 
+        // Processing a photo holds the sampled original (up to twice the display size per side),
+        // the display photo and the thumbnail
+        final long maxDisplayDim = getMaxDisplayPhotoDim();
+        final Resources resources = getContext().getResources();
+        mPhotoIngestExecutor = new PhotoIngestExecutor(resources.getInteger(R.integer.config_photo_ingest_queue_depth),
+                resources.getInteger(R.integer.config_photo_ingest_memory_budget_kb) * 1024L,
+                maxDisplayDim * maxDisplayDim * 4 * 6,
+                new PhotoIngestExecutor.Committer() {
+                    @Override
+                    public void commit(List<PhotoIngestExecutor.Result> results) {
+                        commitPhotoIngestResults(results);
+                    }
+                });
+
         mContactsHelper = getDatabaseHelper(getContext());
         mDbHelper.set(mContactsHelper);
+        mContactsHelper.setCommitListener(new Runnable() {
+            @Override
+            public void run() {
+                mFilterSessionCache.invalidate();
+            }
+        });
 
 
         mContactDirectoryManager = new ContactDirectoryManager(this);
@@ -795,10 +901,12 @@ public class ScContactsProvider extends ContentProvider {
         // may get wrong status info
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_PROVIDER_STATUS);
         scheduleBackgroundTask(BACKGROUND_TASK_INITIALIZE);
+        scheduleBackgroundTask(BACKGROUND_TASK_BUILD_PHONE_LOOKUP_INDEX);
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_ACCOUNTS);
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_LOCALE);
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_SEARCH_INDEX);
         scheduleBackgroundTask(BACKGROUND_TASK_OPEN_WRITE_ACCESS);
+        scheduleBackgroundTask(BACKGROUND_TASK_MIGRATE_PHOTOS);
         scheduleBackgroundTask(BACKGROUND_TASK_CLEANUP_PHOTOS);
 
         return true;
@@ -814,6 +922,7 @@ public class ScContactsProvider extends ContentProvider {
         mPostalSplitter = new PostalSplitter(mCurrentLocale);
 //        mCommonNicknameCache = new CommonNicknameCache(mContactsHelper.getReadableDatabase());
         ContactLocaleUtils.getInstance().setLocale(mCurrentLocale);
+        NameNormalizer.setLocale(mCurrentLocale);
         mSimpleAggregator = new SimpleRawContactAggregator(this, mContactsHelper, mNameSplitter);
         mSearchIndexManager = new SearchIndexManager(this);
         mContactsPhotoStore = new PhotoStore(getContext().getFilesDir(), mContactsHelper);
@@ -862,10 +971,26 @@ public class ScContactsProvider extends ContentProvider {
     protected void setProviderStatus(int status) {
         if (mProviderStatus != status) {
             mProviderStatus = status;
+            if (status == ProviderStatus.STATUS_UPGRADING) {
+                mProviderStatusProgress = 0;
+            }
             getContext().getContentResolver().notifyChange(ProviderStatus.CONTENT_URI, null, false);
         }
     }
 
+    /**
+     * Sets the progress of a running upgrade in percent, reported in {@link ProviderStatus#DATA1}
+     * while the status is {@link ProviderStatus#STATUS_UPGRADING}.
+     */
+    protected void setProviderStatusProgress(int percent) {
+        if (mProviderStatusProgress != percent) {
+            mProviderStatusProgress = percent;
+            if (mProviderStatus == ProviderStatus.STATUS_UPGRADING) {
+                getContext().getContentResolver().notifyChange(ProviderStatus.CONTENT_URI, null, false);
+            }
+        }
+    }
+
     /**
      * Switches the provider's thread-local context variables to prepare for performing
      * a contacts operation.
@@ -962,7 +1087,7 @@ public class ScContactsProvider extends ContentProvider {
             initForDefaultLocale();
             db.setTransactionSuccessful();
         } finally {
-            db.endTransaction();
+            mContactsHelper.endWriterTransaction(db);
         }
         updateLocaleInBackground();
     }
@@ -1062,6 +1187,19 @@ public class ScContactsProvider extends ContentProvider {
             break;
         }
 
+        case BACKGROUND_TASK_MIGRATE_PHOTOS: {
+            // Move a chunk of files at a time, other background tasks run in between
+            if (mContactsPhotoStore.migrateLegacyFiles(PHOTO_MIGRATION_CHUNK_SIZE)) {
+                scheduleBackgroundTask(BACKGROUND_TASK_MIGRATE_PHOTOS);
+            }
+            break;
+        }
+
+        case BACKGROUND_TASK_BUILD_PHONE_LOOKUP_INDEX: {
+            mContactsHelper.buildPhoneLookupIndex();
+            break;
+        }
+
         case BACKGROUND_TASK_CLEANUP_PHOTOS: {
             // Check rate limit.
             long now = System.currentTimeMillis();
@@ -1099,85 +1237,106 @@ public class ScContactsProvider extends ContentProvider {
     }
 
     protected void cleanupPhotoStore() {
+        final long start = SystemClock.elapsedRealtime();
         final SQLiteDatabase db = mDbHelper.get().getDatabase(true);
-
-        // Assemble the set of photo store file IDs that are in use, and send those to the photo
-        // store.  Any photos that aren't in that set will be deleted, and any photos that no
-        // longer exist in the photo store will be returned for us to clear out in the DB.
-        long photoMimeTypeId = mDbHelper.get().getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
-        Cursor c = db.query(Views.DATA, new String[]{Data._ID, Photo.PHOTO_FILE_ID},
-                DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId + " AND "
-                        + Photo.PHOTO_FILE_ID + " IS NOT NULL", null, null, null, null);
-
-        Set<Long> usedPhotoFileIds = new HashSet<Long>();
-        Map<Long, Long> photoFileIdToDataId = new HashMap<Long, Long>();
+        final PhotoStore photoStore = mPhotoStore.get();
+        final String photoMimeTypeId = String.valueOf(mDbHelper.get().getMimeTypeId(Photo.CONTENT_ITEM_TYPE));
+
+        // Read the references and clean up the entries of the photo store in one transaction of
+        // the writer. Otherwise a row could start to use a photo between the queries and the
+        // cleanup, and the cleanup would remove the photo as unreferenced.
+        final LongArray usedPhotoFileIds;
+        final PhotoStore.Cleanup cleanup;
+        db.beginTransaction();
         try {
-            while (c.moveToNext()) {
-                long dataId = c.getLong(0);
-                long photoFileId = c.getLong(1);
-                usedPhotoFileIds.add(photoFileId);
-                photoFileIdToDataId.put(photoFileId, dataId);
+            // Assemble the sorted photo store file IDs that are in use, and send those to the photo
+            // store.  Any photos that aren't in use will be deleted.
+            Cursor c = db.query(Views.DATA, new String[]{Photo.PHOTO_FILE_ID},
+                    DataColumns.MIMETYPE_ID + "=? AND " + Photo.PHOTO_FILE_ID + " IS NOT NULL",
+                    new String[]{photoMimeTypeId}, null, null, null);
+            final LongArray dataPhotoFileIds = new LongArray(c.getCount());
+            try {
+                while (c.moveToNext()) {
+                    dataPhotoFileIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
             }
-        } finally {
-            c.close();
-        }
 
-        // Also query for all social stream item photos.
-        c = db.query(Tables.STREAM_ITEM_PHOTOS + " JOIN " + Tables.STREAM_ITEMS
-                + " ON " + StreamItemPhotos.STREAM_ITEM_ID + "=" + StreamItemsColumns.CONCRETE_ID,
-                new String[] {
-                    StreamItemPhotosColumns.CONCRETE_ID,
-                    StreamItemPhotosColumns.CONCRETE_STREAM_ITEM_ID,
-                    StreamItemPhotos.PHOTO_FILE_ID
-                },
-                null, null, null, null, null);
-        Map<Long, Long> photoFileIdToStreamItemPhotoId = new HashMap<Long, Long>();
-        Map<Long, Long> streamItemPhotoIdToStreamItemId = new HashMap<Long, Long>();
-        try {
-            while (c.moveToNext()) {
-                long streamItemPhotoId = c.getLong(0);
-                long streamItemId = c.getLong(1);
-                long photoFileId = c.getLong(2);
-                usedPhotoFileIds.add(photoFileId);
-                photoFileIdToStreamItemPhotoId.put(photoFileId, streamItemPhotoId);
-                streamItemPhotoIdToStreamItemId.put(streamItemPhotoId, streamItemId);
+            // Also query for all social stream item photos.
+            c = db.query(Tables.STREAM_ITEM_PHOTOS + " JOIN " + Tables.STREAM_ITEMS
+                    + " ON " + StreamItemPhotos.STREAM_ITEM_ID + "=" + StreamItemsColumns.CONCRETE_ID,
+                    new String[] {StreamItemPhotos.PHOTO_FILE_ID}, null, null, null, null, null);
+            usedPhotoFileIds = new LongArray(dataPhotoFileIds.size() + c.getCount());
+            try {
+                while (c.moveToNext()) {
+                    usedPhotoFileIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
             }
+            for (int i = 0; i < dataPhotoFileIds.size(); i++) {
+                usedPhotoFileIds.add(dataPhotoFileIds.get(i));
+            }
+            // Keep duplicates, the number of references to a photo file is its reference count
+            usedPhotoFileIds.sort();
+
+            cleanup = photoStore.cleanup(usedPhotoFileIds);
+            db.setTransactionSuccessful();
         } finally {
-            c.close();
+            db.endTransaction();
         }
 
-        // Run the photo store cleanup.
-        Set<Long> missingPhotoIds = mPhotoStore.get().cleanup(usedPhotoFileIds);
+        // The files of the removed entries are deleted after the commit, a rollback could not
+        // restore them. The disk I/O runs without holding up the writers.
+        final LongArray missingPhotoIds = photoStore.finishCleanup(cleanup);
 
         // If any of the keys we're using no longer exist, clean them up.  We need to do these
-        // using internal APIs or direct DB access to avoid permission errors.
+        // using internal APIs or direct DB access to avoid permission errors. The references are
+        // read again, rows may have changed since the cleanup transaction.
         if (!missingPhotoIds.isEmpty()) {
+            final String[] selectionArgs = new String[2];
+            final LongArray dataIds = new LongArray();
             try {
                 db.beginTransaction();
-                for (long missingPhotoId : missingPhotoIds) {
-                    if (photoFileIdToDataId.containsKey(missingPhotoId)) {
-                        long dataId = photoFileIdToDataId.get(missingPhotoId);
+                for (int m = 0; m < missingPhotoIds.size(); m++) {
+                    final String missingPhotoId = String.valueOf(missingPhotoIds.get(m));
+                    selectionArgs[0] = photoMimeTypeId;
+                    selectionArgs[1] = missingPhotoId;
+                    Cursor c = db.query(Tables.DATA, new String[]{Data._ID},
+                            DataColumns.MIMETYPE_ID + "=? AND " + Photo.PHOTO_FILE_ID + "=?",
+                            selectionArgs, null, null, null);
+                    dataIds.clear();
+                    try {
+                        while (c.moveToNext()) {
+                            dataIds.add(c.getLong(0));
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    for (int i = 0; i < dataIds.size(); i++) {
                         ContentValues updateValues = new ContentValues();
                         updateValues.putNull(Photo.PHOTO_FILE_ID);
-                        updateData(ContentUris.withAppendedId(Data.CONTENT_URI, dataId), updateValues, null, null, false);
-                    }
-                    if (photoFileIdToStreamItemPhotoId.containsKey(missingPhotoId)) {
-                        // For missing photos that were in stream item photos, just delete the
-                        // stream item photo.
-                        long streamItemPhotoId = photoFileIdToStreamItemPhotoId.get(missingPhotoId);
-                        db.delete(Tables.STREAM_ITEM_PHOTOS, StreamItemPhotos._ID + "=?",
-                                new String[]{String.valueOf(streamItemPhotoId)});
+                        updateData(ContentUris.withAppendedId(Data.CONTENT_URI, dataIds.get(i)), updateValues, null, null, false);
                     }
+
+                    // For missing photos that were in stream item photos, just delete the
+                    // stream item photo.
+                    db.delete(Tables.STREAM_ITEM_PHOTOS, StreamItemPhotos.PHOTO_FILE_ID + "=?",
+                            new String[]{missingPhotoId});
                 }
                 db.setTransactionSuccessful();
             } catch (Exception e) {
                 // Cleanup failure is not a fatal problem.  We'll try again later.
                 Log.e(TAG, "Failed to clean up outdated photo references", e);
             } finally {
-                db.endTransaction();
+                mDbHelper.get().endWriterTransaction(db);
             }
         }
+        Log.i(TAG, "Photo store cleanup: " + usedPhotoFileIds.size() + " photo references, "
+                + missingPhotoIds.size() + " missing, " + (SystemClock.elapsedRealtime() - start) + "ms");
     }
+
     /**
      * If the given URI is reading stream items or stream photos, this will run a permission check
      * for the android.permission.READ_SOCIAL_STREAM permission - otherwise it will do nothing.
@@ -1222,8 +1381,43 @@ public class ScContactsProvider extends ContentProvider {
     }
 
     protected void notifyChange(boolean syncToNetwork) {
-        if (doNotify)
+        if (doNotify) {
             getContext().getContentResolver().notifyChange(ScContactsContract.AUTHORITY_URI, null, syncToNetwork);
+            mBackgroundHandler.removeMessages(BACKGROUND_TASK_BUILD_PHONE_LOOKUP_INDEX);
+            mBackgroundHandler.sendEmptyMessageDelayed(BACKGROUND_TASK_BUILD_PHONE_LOOKUP_INDEX,
+                    PHONE_LOOKUP_INDEX_REBUILD_DELAY);
+        }
+    }
+
+    /**
+     * Called when an insert, update or delete is done. Outside of a batch its writes committed
+     * already, the caches derived from the committed contacts data are dropped.
+     */
+    private void onWriteDone() {
+        final ScContactsDatabaseHelper dbHelper = mDbHelper.get();
+        dbHelper.onWriteCommitted(dbHelper.getDatabase(true));
+    }
+
+    /**
+     * Returns the phone lookup index if it can answer a phone lookup with the given parameters.
+     *
+     * The index only knows the default sort order and the committed state, it cannot answer
+     * lookups inside a write transaction. If there is no index this schedules a build unless a
+     * build is pending already.
+     */
+    private PhoneLookupIndex getPhoneLookupIndex(SQLiteDatabase db, String sortOrder, String limit) {
+        final ScContactsDatabaseHelper dbHelper = mDbHelper.get();
+        final PhoneLookupIndex index = dbHelper.getPhoneLookupIndex();
+        if (index == null) {
+            if (dbHelper.isReady() && !mBackgroundHandler.hasMessages(BACKGROUND_TASK_BUILD_PHONE_LOOKUP_INDEX)) {
+                scheduleBackgroundTask(BACKGROUND_TASK_BUILD_PHONE_LOOKUP_INDEX);
+            }
+            return null;
+        }
+        if (!TextUtils.isEmpty(sortOrder) || limit != null || db.isDbLockedByCurrentThread()) {
+            return null;
+        }
+        return index;
     }
 
     @Override
@@ -1233,25 +1427,104 @@ public class ScContactsProvider extends ContentProvider {
 
         switchToContactMode();
         final SQLiteDatabase db = mDbHelper.get().getDatabase(true);
+        final TransactionContext txContext = mTransactionContext.get();
+        final boolean bulkInsert = isBulkInsertBatch(operations);
         db.beginTransaction();
         try {
             final int numOperations = operations.size();
             final ContentProviderResult[] results = new ContentProviderResult[numOperations];
             doNotify = false;
+            txContext.setBulkInsert(bulkInsert);
 
+            int operationsSinceYield = 0;
             for (int i = 0; i < numOperations; i++) {
                 final ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed() && operationsSinceYield >= MIN_OPERATIONS_PER_YIELD_POINT) {
+                    operationsSinceYield = 0;
+                    if (txContext.isBulkInsert()) {
+                        // Only commit raw contacts with their derived data
+                        finishBulkInsert(db, txContext);
+                    }
+                    db.yieldIfContendedSafely();
+                }
                 results[i] = operation.apply(this, results, i);
+                operationsSinceYield++;
+            }
+            if (txContext.isBulkInsert()) {
+                finishBulkInsert(db, txContext);
             }
             db.setTransactionSuccessful();
             return results;
         } finally {
-            db.endTransaction();
+            if (bulkInsert) {
+                txContext.setBulkInsert(false);
+                txContext.clearDisplayNameUpdates();
+            }
+            mDbHelper.get().endWriterTransaction(db);
             doNotify = true;
             notifyChange(false);
         }
     }
 
+    /**
+     * Checks if a batch only writes raw contacts and data rows.
+     *
+     * Such batches are created by the vCard import and when saving a new contact, they usually
+     * insert a raw contact followed by its data rows. The operation type is not public, thus check
+     * for write operations on the raw contacts and data URIs. An update or delete in such a batch
+     * ends the bulk insert mode, see {@link #endBulkInsert()}, thus only inserts take the deferred path.
+     */
+    private boolean isBulkInsertBatch(ArrayList<ContentProviderOperation> operations) {
+        if (operations.size() < 2) {
+            return false;
+        }
+        for (ContentProviderOperation operation : operations) {
+            if (!operation.isWriteOperation()) {
+                return false;
+            }
+            switch (sUriMatcher.match(operation.getUri())) {
+                case RAW_CONTACTS:
+                case RAW_CONTACTS_ID_DATA:
+                case DATA:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ends the bulk insert mode of the current batch before an update or delete. Such an operation
+     * may depend on the derived data of the rows inserted before, it runs on the regular path and
+     * so do all following operations of the batch.
+     */
+    private void endBulkInsert() {
+        final TransactionContext txContext = mTransactionContext.get();
+        if (txContext.isBulkInsert()) {
+            finishBulkInsert(mDbHelper.get().getDatabase(true), txContext);
+            txContext.setBulkInsert(false);
+        }
+    }
+
+    /**
+     * Computes the data that the bulk insert deferred, once per raw contact instead of once per row.
+     */
+    private void finishBulkInsert(SQLiteDatabase db, TransactionContext txContext) {
+        final ScContactsDatabaseHelper dbHelper = mDbHelper.get();
+        for (Long rawContactId : txContext.getStaleDisplayNameRawContactIds()) {
+            dbHelper.updateRawContactDisplayName(db, rawContactId);
+        }
+        txContext.clearDisplayNameUpdates();
+
+        invalidateFastScrollingIndexCache();
+        if (mProviderStatusUpdateNeeded) {
+            updateProviderStatus();
+            mProviderStatusUpdateNeeded = false;
+        }
+        updateSearchIndexInTransaction();
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         if (DEBUG) {
@@ -1266,6 +1539,7 @@ public class ScContactsProvider extends ContentProvider {
         switchToContactMode();
 
         final boolean callerIsSyncAdapter = readBooleanQueryParameter(uri, ScContactsContract.CALLER_IS_SYNCADAPTER, false);
+        final boolean bulkInsert = mTransactionContext.get().isBulkInsert();
 
         final int match = sUriMatcher.match(uri);
         long id = 0;
@@ -1277,7 +1551,8 @@ public class ScContactsProvider extends ContentProvider {
 //
             case RAW_CONTACTS:
                 {
-                invalidateFastScrollingIndexCache();
+                if (!bulkInsert)
+                    invalidateFastScrollingIndexCache();
                 id = insertRawContact(uri, values, callerIsSyncAdapter);
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 break;
@@ -1285,7 +1560,6 @@ public class ScContactsProvider extends ContentProvider {
 
             case RAW_CONTACTS_ID_DATA:
                 {
-                invalidateFastScrollingIndexCache();
                 int segment = match == RAW_CONTACTS_ID_DATA ? 1 : 2;
                 values.put(Data.RAW_CONTACT_ID, uri.getPathSegments().get(segment));
                 id = insertData(values, callerIsSyncAdapter);
@@ -1302,7 +1576,6 @@ public class ScContactsProvider extends ContentProvider {
 
             case DATA:
             {
-                invalidateFastScrollingIndexCache();
                 id = insertData(values, callerIsSyncAdapter);
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 break;
@@ -1351,11 +1624,15 @@ public class ScContactsProvider extends ContentProvider {
         if (id < 0) {
             return null;
         }
-        if (mProviderStatusUpdateNeeded) {
-            updateProviderStatus();
-            mProviderStatusUpdateNeeded = false;
+        // A bulk insert updates provider status and search index in finishBulkInsert
+        if (!bulkInsert) {
+            if (mProviderStatusUpdateNeeded) {
+                updateProviderStatus();
+                mProviderStatusUpdateNeeded = false;
+            }
+            updateSearchIndexInTransaction();
         }
-        updateSearchIndexInTransaction();
+        onWriteDone();
         notifyChange(false);
         return ContentUris.withAppendedId(uri, id);
     }
@@ -1374,7 +1651,9 @@ public class ScContactsProvider extends ContentProvider {
 
         final SQLiteDatabase db = mDbHelper.get().getDatabase(true);
 
-        long rawContactId = db.insert(Tables.RAW_CONTACTS, RawContacts.DISPLAY_NAME_PRIMARY, mValues);
+        long rawContactId = mTransactionContext.get().isBulkInsert()
+                ? mDbHelper.get().insertWithCachedStatement(Tables.RAW_CONTACTS, RawContacts.DISPLAY_NAME_PRIMARY, mValues)
+                : db.insert(Tables.RAW_CONTACTS, RawContacts.DISPLAY_NAME_PRIMARY, mValues);
         if (!callerIsSyncAdapter) {
 //            addAutoAddMembership(rawContactId);     // TODO Group membership
             final Long starred = values.getAsLong(RawContacts.STARRED);
@@ -1417,7 +1696,10 @@ public class ScContactsProvider extends ContentProvider {
 
         DataRowHandler rowHandler = getDataRowHandler(mimeType);
         final SQLiteDatabase db = mDbHelper.get().getDatabase(true);
-        id = rowHandler.insert(db, mTransactionContext.get(), rawContactId, mValues);
+        final TransactionContext txContext = mTransactionContext.get();
+        if (!txContext.isBulkInsert())
+            invalidateFastScrollingIndexCache(mimeType);
+        id = rowHandler.insert(db, txContext, rawContactId, mValues);
         return id;
     }
 
@@ -1633,6 +1915,26 @@ public class ScContactsProvider extends ContentProvider {
         mFastScrollingIndexCache.invalidate();
     }
 
+    /**
+     * Invalidates the fast scrolling indexes that a change of a data row of this mimetype can change.
+     *
+     * Names, phone numbers, emails and organizations feed the raw contact display name and group
+     * memberships filter the raw contact lists, thus these change every index. All other data rows
+     * only change the indexes of the data lists.
+     */
+    private void invalidateFastScrollingIndexCache(String mimeType) {
+        if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)
+                || Phone.CONTENT_ITEM_TYPE.equals(mimeType)
+                || Email.CONTENT_ITEM_TYPE.equals(mimeType)
+                || Organization.CONTENT_ITEM_TYPE.equals(mimeType)
+                || GroupMembership.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            mFastScrollingIndexCache.invalidate();
+        }
+        else {
+            mFastScrollingIndexCache.invalidate(Data.CONTENT_URI);
+        }
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         if (DEBUG) {
@@ -1646,6 +1948,7 @@ public class ScContactsProvider extends ContentProvider {
         waitForAccess(mWriteAccessLatch);
 
         switchToContactMode();
+        endBulkInsert();
 
         int ret = deleteLocal(uri, selection, selectionArgs);
         if (mProviderStatusUpdateNeeded) {
@@ -1653,6 +1956,7 @@ public class ScContactsProvider extends ContentProvider {
             mProviderStatusUpdateNeeded = false;
         }
         updateSearchIndexInTransaction();
+        onWriteDone();
         notifyChange(false);
         return ret;        
     }
@@ -1689,7 +1993,6 @@ public class ScContactsProvider extends ContentProvider {
 
         case DATA:
         {
-            invalidateFastScrollingIndexCache();
             mSyncToNetwork |= !callerIsSyncAdapter;
             return deleteData(selection, selectionArgs, callerIsSyncAdapter);
         }
@@ -1700,7 +2003,6 @@ public class ScContactsProvider extends ContentProvider {
         case CALLABLES_ID:
         case POSTALS_ID:
         {
-            invalidateFastScrollingIndexCache();
             long dataId = ContentUris.parseId(uri);
             mSyncToNetwork |= !callerIsSyncAdapter;
             mSelectionArgs1[0] = String.valueOf(dataId);
@@ -1841,6 +2143,7 @@ public class ScContactsProvider extends ContentProvider {
         try {
             while(c.moveToNext()) {
                 String mimeType = c.getString(DataRowHandler.DataDeleteQuery.MIMETYPE);
+                invalidateFastScrollingIndexCache(mimeType);
                 DataRowHandler rowHandler = getDataRowHandler(mimeType);
                 count += rowHandler.delete(db, mTransactionContext.get(), c);
             }
@@ -1924,6 +2227,7 @@ public class ScContactsProvider extends ContentProvider {
 
         waitForAccess(mWriteAccessLatch);
         switchToContactMode();
+        endBulkInsert();
 
         int count = 0;
 
@@ -1948,7 +2252,6 @@ public class ScContactsProvider extends ContentProvider {
 //
         case RAW_CONTACTS_ID_DATA:
         {
-            invalidateFastScrollingIndexCache();
             int segment = match == RAW_CONTACTS_ID_DATA ? 1 : 2;
             final String rawContactId = uri.getPathSegments().get(segment);
             String selectionWithId = (Data.RAW_CONTACT_ID + "=" + rawContactId + " ")
@@ -1961,7 +2264,6 @@ public class ScContactsProvider extends ContentProvider {
 
         case DATA:
         {
-            invalidateFastScrollingIndexCache();
             count = updateData(uri, values, selection, selectionArgs, callerIsSyncAdapter);
             if (count > 0) {
                 mSyncToNetwork |= !callerIsSyncAdapter;
@@ -1975,7 +2277,6 @@ public class ScContactsProvider extends ContentProvider {
         case CALLABLES_ID:
         case POSTALS_ID:
         {
-            invalidateFastScrollingIndexCache();
             count = updateData(uri, values, selection, selectionArgs, callerIsSyncAdapter);
             if (count > 0) {
                 mSyncToNetwork |= !callerIsSyncAdapter;
@@ -2100,6 +2401,7 @@ public class ScContactsProvider extends ContentProvider {
         }
         }
         updateSearchIndexInTransaction();
+        onWriteDone();
         notifyChange(false);
         return count;
     }
@@ -2238,6 +2540,7 @@ public class ScContactsProvider extends ContentProvider {
         final SQLiteDatabase db = mDbHelper.get().getDatabase(true);
 
         final String mimeType = c.getString(DataRowHandler.DataUpdateQuery.MIMETYPE);
+        invalidateFastScrollingIndexCache(mimeType);
         DataRowHandler rowHandler = getDataRowHandler(mimeType);
         boolean updated = rowHandler.update(db, mTransactionContext.get(), values, c, callerIsSyncAdapter);
         if (Photo.CONTENT_ITEM_TYPE.equals(mimeType)) {
@@ -2482,7 +2785,8 @@ public class ScContactsProvider extends ContentProvider {
             String[] selectionArgs, String sortOrder, final long directoryId
             /*, final CancellationSignal cancellationSignal*/) {
 
-        final SQLiteDatabase db = mDbHelper.get().getDatabase(false);
+        // Uses a pooled read connection unless called inside a write transaction of this thread
+        final SQLiteDatabase db = mDbHelper.get().getQueryDatabase();
 
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         String groupBy = null;
@@ -2490,6 +2794,12 @@ public class ScContactsProvider extends ContentProvider {
         String limit = getLimit(uri);
         boolean snippetDeferred = false;
 
+        // State of a filter session, see FILTER_SESSION_PARAM_KEY
+        String filterSessionKey = null;
+        FilterSessionCache.Filter sessionFilter = null;
+        int filterSessionGeneration = 0;
+        long[] refinedRawContactIds = null;
+
         // The expression used in bundleLetterCountExtras() to get count.
         String addressBookIndexerCountExpression = null;
 
@@ -2514,7 +2824,26 @@ public class ScContactsProvider extends ContentProvider {
             // If the query consists of a single word, we can do snippetizing after-the-fact for
             // a performance boost.  Otherwise, we can't defer.
             snippetDeferred = isSingleWordQuery(filterParam)  && deferredSnipRequested && snippetNeeded(projection);
-            setTablesAndProjectionMapForContactsWithSnippet(qb, uri, projection, filterParam, directoryId, snippetDeferred);
+
+            filterSessionKey = getQueryParameter(uri, FILTER_SESSION_PARAM_KEY);
+            if (!TextUtils.isEmpty(filterSessionKey) && canRefineFilter(db, projection, filterParam, selection,
+                    limit, directoryId, snippetDeferred)) {
+                sessionFilter = FilterSessionCache.Filter.parse(filterParam.trim());
+            }
+            if (sessionFilter != null) {
+                filterSessionGeneration = mFilterSessionCache.getGeneration();
+                final long[] candidates = mFilterSessionCache.getCandidates(filterSessionKey, sessionFilter);
+                if (candidates != null) {
+                    refinedRawContactIds = sessionFilter.match(db, candidates);
+                    if (VERBOSE_DEBUG) Log.v(TAG, "Filter session " + filterSessionKey + ": refined "
+                            + candidates.length + " candidates to " + refinedRawContactIds.length);
+                }
+            }
+            if (refinedRawContactIds != null) {
+                setTablesAndProjectionMapForRefinedFilter(qb, projection, filterParam.trim(), refinedRawContactIds);
+            } else {
+                setTablesAndProjectionMapForContactsWithSnippet(qb, uri, projection, filterParam, directoryId, snippetDeferred);
+            }
             break;
         }
         case RAW_CONTACTS_ID_PHOTO: {
@@ -2573,6 +2902,13 @@ public class ScContactsProvider extends ContentProvider {
                         new Object[] {getMaxDisplayPhotoDim(), getMaxThumbnailDim()});
             }
 
+        case PHOTO_THUMBNAILS: {
+            qb.setTables(Tables.PHOTO_THUMBNAILS + " JOIN " + Tables.DATA + " ON ("
+                    + PhotoThumbnailsColumns.CONCRETE_DATA_ID + "=" + DataColumns.CONCRETE_ID + ")");
+            qb.setProjectionMap(sPhotoThumbnailsProjectionMap);
+            break;
+        }
+
         case PHONES:
         case CALLABLES:
         {
@@ -2930,6 +3266,7 @@ public class ScContactsProvider extends ContentProvider {
             // Phone lookup cannot be combined with a selection
             selection = null;
             selectionArgs = null;
+            final PhoneLookupIndex index = getPhoneLookupIndex(db, sortOrder, limit);
             if (readBooleanQueryParameter(uri, PhoneLookup.QUERY_PARAMETER_SIP_ADDRESS, false)) {
                 if (TextUtils.isEmpty(sortOrder)) {
                     // Default the sort order to something reasonable so we get consistent
@@ -2938,6 +3275,12 @@ public class ScContactsProvider extends ContentProvider {
                 }
 
                 String sipAddress = uri.getPathSegments().size() > 1 ? Uri.decode(uri.getLastPathSegment()) : "";
+                if (index != null) {
+                    Cursor cursor = index.querySip(projection, sipAddress);
+                    if (cursor != null) {
+                        return cursor;
+                    }
+                }
                 setTablesAndProjectionMapForData(qb, uri, null, false, true);
                 StringBuilder sb = new StringBuilder();
                 selectionArgs = mDbHelper.get().buildSipContactQuery(sb, sipAddress);
@@ -2956,6 +3299,22 @@ public class ScContactsProvider extends ContentProvider {
                 String number = uri.getPathSegments().size() > 1 ? uri.getLastPathSegment() : "";
                 String numberE164 = PhoneNumberHelper.formatNumberToE164(number, mDbHelper.get().getCurrentCountryIso());
                 String normalizedNumber = PhoneNumberHelper.normalizeNumber(number);
+
+                // The index does the comparison of the first query below. If it has no match but
+                // knows numbers with the same min match only the loose comparison of the fallback
+                // query may find one.
+                if (index != null) {
+                    Cursor cursor = index.queryPhone(projection, normalizedNumber, numberE164);
+                    if (cursor != null) {
+                        if (cursor.getCount() > 0 || !index.hasPhoneCandidates(number)) {
+                            return cursor;
+                        }
+                        cursor.close();
+                        mDbHelper.get().buildFallbackPhoneLookupAndContactQuery(qb, number);
+                        qb.setProjectionMap(sPhoneLookupProjectionMap);
+                        break;
+                    }
+                }
                 mDbHelper.get().buildPhoneLookupAndContactQuery(qb, normalizedNumber, numberE164);
                 qb.setProjectionMap(sPhoneLookupProjectionMap);
 
@@ -3076,7 +3435,8 @@ public class ScContactsProvider extends ContentProvider {
             case PROVIDER_STATUS: {
                 return buildSingleRowResult(projection,
                         new String[] {ProviderStatus.STATUS, ProviderStatus.DATA1},
-                        new Object[] {mProviderStatus, mEstimatedStorageRequirement});
+                        new Object[] {mProviderStatus, mProviderStatus == ProviderStatus.STATUS_UPGRADING
+                                ? mProviderStatusProgress : mEstimatedStorageRequirement});
             }
 
             case DIRECTORIES : {
@@ -3109,6 +3469,11 @@ public class ScContactsProvider extends ContentProvider {
         if (readBooleanQueryParameter(uri, ScContactsContract.ContactCounts.ADDRESS_BOOK_INDEX_EXTRAS, false)) {
             bundleFastScrollingIndexExtras(cursor, uri, db, qb, selection, selectionArgs, sortOrder, addressBookIndexerCountExpression);
         }
+        if (sessionFilter != null) {
+            final long[] matches = refinedRawContactIds != null ? refinedRawContactIds
+                    : cursor != null ? collectRawContactIds(cursor) : null;
+            mFilterSessionCache.put(filterSessionKey, filterSessionGeneration, sessionFilter, matches);
+        }
         if (snippetDeferred) {
             cursor = addDeferredSnippetingExtra(cursor);
         }
@@ -3543,6 +3908,78 @@ public class ScContactsProvider extends ContentProvider {
         sb.append(" ON (" + RawContacts._ID + "=" + SNIPPET_CONTACT_ID + ")");
     }
 
+    /**
+     * Checks if the matches of a filter query can be kept in its filter session and if the query
+     * can be answered from the previous matches of the session.
+     *
+     * Only name filters of the local directory take part, without a selection or limit that would
+     * hide matches, outside of a write transaction and with a deferred snippet if any. A real
+     * snippet needs the full text query.
+     */
+    private boolean canRefineFilter(SQLiteDatabase db, String[] projection, String filter, String selection,
+            String limit, long directoryId, boolean snippetDeferred) {
+        if (directoryId != -1 && directoryId != Directory.DEFAULT) {
+            return false;
+        }
+        if (!TextUtils.isEmpty(selection) || limit != null || db.isDbLockedByCurrentThread()) {
+            return false;
+        }
+        if (snippetNeeded(projection) && !snippetDeferred) {
+            return false;
+        }
+        filter = filter.trim();
+        return !TextUtils.isEmpty(filter) && filter.indexOf('@') == -1 && !isPhoneNumber(filter);
+    }
+
+    /**
+     * Like {@link #setTablesAndProjectionMapForContactsWithSnippet} for a name filter, but joins the
+     * search index rows of the raw contacts the filter session already matched instead of running
+     * the full text query. The snippet is the deferred snippet of {@link #appendSearchIndexJoin}.
+     */
+    private void setTablesAndProjectionMapForRefinedFilter(SQLiteQueryBuilder qb, String[] projection, String filter,
+            long[] rawContactIds) {
+
+        final String SNIPPET_CONTACT_ID = "snippet_contact_id";
+        StringBuilder sb = new StringBuilder();
+        sb.append(Views.RAW_CONTACTS);
+        sb.append(" JOIN (SELECT " + SearchIndexColumns.DOCID + " AS " + SNIPPET_CONTACT_ID);
+        if (snippetNeeded(projection)) {
+            sb.append(", ");
+            sb.append(TextUtils.isEmpty(NameNormalizer.normalize(filter)) ? "NULL" : SearchIndexColumns.CONTENT);
+            sb.append(" AS " + SearchSnippetColumns.SNIPPET);
+        }
+        sb.append(" FROM " + Tables.SEARCH_INDEX);
+        sb.append(" WHERE " + SearchIndexColumns.DOCID + " IN (");
+        FilterSessionCache.appendIds(sb, rawContactIds);
+        sb.append("))");
+        sb.append(" ON (" + RawContacts._ID + "=" + SNIPPET_CONTACT_ID + ")");
+        qb.setTables(sb.toString());
+        qb.setProjectionMap(sContactsProjectionWithSnippetMap);
+    }
+
+    /**
+     * Returns the raw contact ids of a filter query result for its filter session, or {@code null}
+     * if the result has no id column or too many rows. Leaves the cursor before the first row.
+     */
+    private static long[] collectRawContactIds(Cursor cursor) {
+        final int column = cursor.getColumnIndex(RawContacts._ID);
+        if (column < 0) {
+            return null;
+        }
+        final int count = cursor.getCount();
+        if (count > FilterSessionCache.MAX_CANDIDATES) {
+            return null;
+        }
+        final long[] ids = new long[count];
+        int i = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext() && i < count) {
+            ids[i++] = cursor.getLong(column);
+        }
+        cursor.moveToPosition(-1);
+        return i == count ? ids : null;
+    }
+
     private static String sanitizeMatch(String filter) {
         return filter.replace("'", "").replace("*", "").replace("-", "").replace("\"", "");
     }
@@ -3701,6 +4138,7 @@ public class ScContactsProvider extends ContentProvider {
             case RAW_CONTACTS_ID:
                 return RawContacts.CONTENT_ITEM_TYPE;
             case DATA:
+            case PHOTO_THUMBNAILS:
                 return Data.CONTENT_TYPE;
             case DATA_ID:
                 // We need db access for this.
@@ -4054,43 +4492,29 @@ public class ScContactsProvider extends ContentProvider {
 
             case RAW_CONTACTS_AS_VCARD: {
                 // When opening a contact as file, we pass back contents as a
-                // vCard-encoded stream. We build into a local buffer first,
-                // then pipe into MemoryFile once the exact size is known.
-                final ByteArrayOutputStream localStream = new ByteArrayOutputStream();
-                outputRawContactsAsVCard(uri, localStream, null, null);
-                return buildAssetFileDescriptor(localStream);
-            }
-
-//            case CONTACTS_AS_MULTI_VCARD: {
-//                final String lookupKeys = uri.getPathSegments().get(2);
-//                final String[] loopupKeyList = lookupKeys.split(":");
-//                final StringBuilder inBuilder = new StringBuilder();
-//                Uri queryUri = Contacts.CONTENT_URI;
-//                int index = 0;
-//
-//                // SQLite has limits on how many parameters can be used
-//                // so the IDs are concatenated to a query string here instead
-//                for (String lookupKey : loopupKeyList) {
-//                    if (index == 0) {
-//                        inBuilder.append("(");
-//                    } else {
-//                        inBuilder.append(",");
-//                    }
-//                    // TODO: Figure out what to do if the profile contact is in the list.
-//                    long contactId = lookupContactIdByLookupKey(db, lookupKey);
-//                    inBuilder.append(contactId);
-//                    index++;
-//                }
-//                inBuilder.append(')');
-//                final String selection = Contacts._ID + " IN " + inBuilder.toString();
-//
-//                // When opening a contact as file, we pass back contents as a
-//                // vCard-encoded stream. We build into a local buffer first,
-//                // then pipe into MemoryFile once the exact size is known.
-//                final ByteArrayOutputStream localStream = new ByteArrayOutputStream();
-//                outputRawContactsAsVCard(queryUri, localStream, selection, null);
-//                return buildAssetFileDescriptor(localStream);
-//            }
+                // vCard-encoded stream written into a pipe.
+                final String rawContactId = String.valueOf(Long.parseLong(uri.getPathSegments().get(2)));
+                return openVCardPipe(uri, RawContacts._ID + "=?", new String[] {rawContactId});
+            }
+
+            case RAW_CONTACTS_AS_MULTI_VCARD: {
+                // The raw contact ids are joined with the colon (":") separator
+                final String[] rawContactIds = uri.getPathSegments().get(2).split(":");
+                final StringBuilder inBuilder = new StringBuilder();
+
+                // SQLite has limits on how many parameters can be used
+                // so the IDs are concatenated to a query string here instead
+                try {
+                    for (String rawContactId : rawContactIds) {
+                        inBuilder.append(inBuilder.length() == 0 ? '(' : ',');
+                        inBuilder.append(Long.parseLong(rawContactId));
+                    }
+                } catch (NumberFormatException e) {
+                    throw new FileNotFoundException(mDbHelper.get().exceptionMessage("Invalid raw contact id", uri));
+                }
+                inBuilder.append(')');
+                return openVCardPipe(uri, RawContacts._ID + " IN " + inBuilder.toString(), null);
+            }
 
             default:
                 throw new FileNotFoundException(mDbHelper.get().exceptionMessage("File does not exist", uri));
@@ -4149,6 +4573,38 @@ public class ScContactsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns a read-only buffer with the display photo of a {@code display_photo/#} Uri for callers
+     * in the provider's process, without a file descriptor and pipe per read. The buffer maps the
+     * photo file and the photo store keeps the recently used mappings open.
+     *
+     * @param uri the display photo Uri
+     * @return the buffer or {@code null} if this is not a display photo Uri, the provider is not
+     *     initialized or not yet readable, or the photo does not exist. The caller then reads the
+     *     photo through the ContentResolver.
+     */
+    public static ByteBuffer mapDisplayPhoto(Uri uri) {
+        final ScContactsProvider provider = sLocalInstance;
+        if (provider == null || uri == null || !ScContactsContract.AUTHORITY.equals(uri.getAuthority())
+                || sUriMatcher.match(uri) != DISPLAY_PHOTO_ID) {
+            return null;
+        }
+        if (provider.mReadAccessLatch != null || !provider.getDatabaseHelper().isReady()) {
+            return null;
+        }
+        final long photoFileId = ContentUris.parseId(uri);
+        try {
+            ByteBuffer buffer = provider.mContactsPhotoStore.map(photoFileId);
+            if (buffer == null) {
+                provider.scheduleBackgroundTask(BACKGROUND_TASK_CLEANUP_PHOTOS);
+            }
+            return buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot map photo file " + photoFileId + ": " + e);
+            return null;
+        }
+    }
+
     /**
      * Opens a file descriptor for a photo to be written.  
      * 
@@ -4167,85 +4623,153 @@ public class ScContactsProvider extends ContentProvider {
      *     raw contact.
      */
     private AssetFileDescriptor openDisplayPhotoForWrite(long rawContactId, long dataId, Uri uri, String mode) {
+        // Back-pressure: a writer waits here briefly while the photo ingest queue is full
+        final int callerUid = Binder.getCallingUid();
+        if (!mPhotoIngestExecutor.acquireSlot(callerUid, PHOTO_INGEST_WAIT_MILLIS)) {
+            Log.w(TAG, "Photo ingest queue full, rejecting photo write for raw contact " + rawContactId);
+            return null;
+        }
+        ParcelFileDescriptor[] pipeFds;
         try {
-            ParcelFileDescriptor[] pipeFds = ParcelFileDescriptor.createPipe();
-            PipeMonitor pipeMonitor = new PipeMonitor(rawContactId, dataId, pipeFds[0]);
-            pipeMonitor.execute((Object[]) null); // executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Object[]) null);
-            return new AssetFileDescriptor(pipeFds[1], 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+            pipeFds = ParcelFileDescriptor.createPipe();
         } catch (IOException ioe) {
+            mPhotoIngestExecutor.releaseSlot(callerUid);
             Log.e(TAG, "Could not create temp image file in mode " + mode);
             return null;
         }
+        mPhotoIngestExecutor.execute(callerUid, new PhotoIngestTask(rawContactId, dataId, pipeFds[0]));
+        return new AssetFileDescriptor(pipeFds[1], 0, AssetFileDescriptor.UNKNOWN_LENGTH);
     }
 
     /**
-     * Async task that monitors the given file descriptor (the read end of a pipe) for
-     * the writer finishing.  If the data from the pipe contains a valid image, the image
-     * is either inserted into the given raw contact or updated in the given data row.
+     * Task that reads the given file descriptor (the read end of a pipe) until the writer
+     * finishes.  If the data from the pipe contains a valid image, the image is stored in the
+     * photo store and handed to the photo ingest committer, which either inserts it into the
+     * given raw contact or updates the given data row.
      */
-    private class PipeMonitor extends AsyncTask<Object, Object, Object> {
+    private class PhotoIngestTask implements Runnable {
         private final ParcelFileDescriptor mDescriptor;
         private final long mRawContactId;
         private final long mDataId;
-        private PipeMonitor(long rawContactId, long dataId, ParcelFileDescriptor descriptor) {
+
+        private PhotoIngestTask(long rawContactId, long dataId, ParcelFileDescriptor descriptor) {
             mRawContactId = rawContactId;
             mDataId = dataId;
             mDescriptor = descriptor;
         }
 
         @Override
-        protected Object doInBackground(Object... params) {
+        public void run() {
             AutoCloseInputStream is = new AutoCloseInputStream(mDescriptor);
             try {
-                Bitmap b = BitmapFactory.decodeStream(is);
-                if (b != null) {
-                    waitForAccess(mWriteAccessLatch);
-                    PhotoProcessor processor = new PhotoProcessor(b, getMaxDisplayPhotoDim(), getMaxThumbnailDim());
-
-                    // Store the compressed photo in the photo store.
-                    PhotoStore photoStore = mContactsPhotoStore; 
-                    long photoFileId = photoStore.insert(processor);
-
-                    // Depending on whether we already had a data row to attach the photo
-                    // to, do an update or insert.
-                    if (mDataId != 0) {
-                        // Update the data record with the new photo.
-                        ContentValues updateValues = new ContentValues();
+                // Reads the encoded photo and decodes it once, sampled down near the display photo size
+                PhotoProcessor processor;
+                try {
+                    processor = new PhotoProcessor(is, getMaxDisplayPhotoDim(), getMaxThumbnailDim());
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not decode photo from pipe: " + e);
+                    return;
+                } finally {
+                    is.close();
+                }
+                waitForAccess(mWriteAccessLatch);
 
-                        // Signal that photo processing has already been handled.
-                        updateValues.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
+                // Store the compressed photo in the photo store.
+                long photoFileId = mContactsPhotoStore.insert(processor);
+                mPhotoIngestExecutor.submitResult(new PhotoIngestExecutor.Result(mRawContactId, mDataId,
+                        photoFileId, processor.getThumbnailPhotoBytes()));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not process photo for raw contact " + mRawContactId, e);
+            }
+        }
+    }
 
-                        if (photoFileId != 0) {
-                            updateValues.put(Photo.PHOTO_FILE_ID, photoFileId);
-                        }
-                        updateValues.put(Photo.PHOTO, processor.getThumbnailPhotoBytes());
-                        update(ContentUris.withAppendedId(Data.CONTENT_URI, mDataId),
-                                updateValues, null, null);
-                    }
-                    else {
-                        // Insert a new primary data record with the photo.
-                        ContentValues insertValues = new ContentValues();
+    /**
+     * Stores a batch of processed photos in one transaction.
+     *
+     * Depending on whether we already had a data row to attach a photo to, this does an update
+     * or an insert. If the batch fails, for example because a raw contact was deleted in the
+     * meantime, each photo is stored on its own. The photo store reference of a photo that no data
+     * row stores is released.
+     */
+    private void commitPhotoIngestResults(List<PhotoIngestExecutor.Result> results) {
+        final int size = results.size();
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(size);
+        for (PhotoIngestExecutor.Result result : results) {
+            operations.add(buildPhotoIngestOperation(result));
+        }
+        ContentProviderResult[] stored = null;
+        try {
+            stored = applyBatch(operations);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Could not store " + size + " processed photos in one batch: " + e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not store " + size + " processed photos in one batch: " + e);
+        }
+        if (stored != null) {
+            for (int i = 0; i < size; i++) {
+                if (!isPhotoStored(stored[i])) {
+                    releasePhotoIngestResult(results.get(i));
+                }
+            }
+            return;
+        }
 
-                        // Signal that photo processing has already been handled.
-                        insertValues.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
+        // The batch was rolled back, a failing photo must not drop the other photos
+        final ArrayList<ContentProviderOperation> single = new ArrayList<ContentProviderOperation>(1);
+        for (int i = 0; i < size; i++) {
+            final PhotoIngestExecutor.Result result = results.get(i);
+            single.clear();
+            single.add(operations.get(i));
+            ContentProviderResult[] singleStored = null;
+            try {
+                singleStored = applyBatch(single);
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "Could not store processed photo for raw contact " + result.rawContactId, e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not store processed photo for raw contact " + result.rawContactId, e);
+            }
+            if (singleStored == null || !isPhotoStored(singleStored[0])) {
+                releasePhotoIngestResult(result);
+            }
+        }
+    }
 
-                        insertValues.put(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
-                        insertValues.put(Data.IS_PRIMARY, 1);
-                        if (photoFileId != 0) {
-                            insertValues.put(Photo.PHOTO_FILE_ID, photoFileId);
-                        }
-                        insertValues.put(Photo.PHOTO, processor.getThumbnailPhotoBytes());
-                        insert(RawContacts.CONTENT_URI.buildUpon()
-                                .appendPath(String.valueOf(mRawContactId))
-                                .appendPath(RawContacts.Data.CONTENT_DIRECTORY).build(),
-                                insertValues);
-                    }
+    private static ContentProviderOperation buildPhotoIngestOperation(PhotoIngestExecutor.Result result) {
+        ContentValues values = new ContentValues();
 
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            return null;
+        // Signal that photo processing has already been handled.
+        values.put(DataRowHandlerForPhoto.SKIP_PROCESSING_KEY, true);
+        if (result.photoFileId != 0) {
+            values.put(Photo.PHOTO_FILE_ID, result.photoFileId);
+        }
+        values.put(Photo.PHOTO, result.thumbnail);
+
+        if (result.dataId != 0) {
+            // Update the data record with the new photo.
+            return ContentProviderOperation.newUpdate(ContentUris.withAppendedId(Data.CONTENT_URI, result.dataId))
+                    .withValues(values).build();
+        }
+        // Insert a new primary data record with the photo.
+        values.put(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
+        values.put(Data.IS_PRIMARY, 1);
+        return ContentProviderOperation.newInsert(RawContacts.CONTENT_URI.buildUpon()
+                .appendPath(String.valueOf(result.rawContactId))
+                .appendPath(RawContacts.Data.CONTENT_DIRECTORY).build())
+                .withValues(values).build();
+    }
+
+    /**
+     * Returns true if an insert created the photo data row or an update found its data row.
+     */
+    private static boolean isPhotoStored(ContentProviderResult result) {
+        return result != null && (result.uri != null || (result.count != null && result.count > 0));
+    }
+
+    private void releasePhotoIngestResult(PhotoIngestExecutor.Result result) {
+        Log.w(TAG, "Dropped processed photo for raw contact " + result.rawContactId);
+        if (result.photoFileId != 0) {
+            mContactsPhotoStore.release(result.photoFileId);
         }
     }
 
@@ -4253,6 +4777,10 @@ public class ScContactsProvider extends ContentProvider {
      * Output {@link RawContacts} matching the requested selection in the vCard
      * format to the given {@link OutputStream}. This method returns silently if
      * any errors encountered.
+     *
+     * The vCards are created one raw contact at a time from the {@link RawContactsEntity} cursor
+     * and written to the stream immediately, thus the memory use does not depend on the number
+     * of raw contacts.
      */
     private void outputRawContactsAsVCard(Uri uri, OutputStream stream, String selection, String[] selectionArgs) {
 
@@ -4263,32 +4791,29 @@ public class ScContactsProvider extends ContentProvider {
         }
         final VCardComposer composer = new VCardComposer(context, vcardconfig, false);
         Writer writer = null;
-        final Uri rawContactsUri;
-        rawContactsUri = RawContactsEntity.CONTENT_URI;
+        EntityIterator entityIterator = null;
 
         try {
             writer = new BufferedWriter(new OutputStreamWriter(stream));
-            if (!composer.init(uri, selection, selectionArgs, null, rawContactsUri)) {
-                Log.w(TAG, "Failed to init VCardComposer");
+
+            // Create the EntityIterator here and build the vCards directly from its entities
+            // to avoid some permission problems when sharing contacts via Bluetooth and others.
+            // Sorted by raw contact id the iterator returns one entity per raw contact.
+            Cursor cursor = query(RawContactsEntity.CONTENT_URI, null, selection, selectionArgs, RawContacts._ID);
+            if (cursor == null) {
+                Log.w(TAG, "Failed to query raw contact entities for vCard");
                 return;
             }
-
-            // Create the EntityIterator here and hand it to the composer to avoid some
-            // permission problems when sharing contacts via Bluetooth and others.
-            //
-            // **** NOTE: this work for single vCards only, multiple vCard request don't work this way
-            String contactId = uri.getPathSegments().get(2);
-            final String selectionEntity = Data._ID + "=?";
-            final String[] selectionArgsEntity = new String[] {contactId};
-            Cursor cursor = query(rawContactsUri, null, selectionEntity, selectionArgsEntity, null);
-
-            EntityIterator entityIterator = RawContacts.newEntityIterator(cursor);
-            while (!composer.isAfterLast()) {
-                writer.write(composer.createOneEntryWithIterator(entityIterator));
+            entityIterator = RawContacts.newEntityIterator(cursor);
+            while (entityIterator.hasNext()) {
+                writer.write(composer.buildVCard(entityIterator.next()));
             }
         } catch (IOException e) {
             Log.e(TAG, "IOException: " + e);
         } finally {
+            if (entityIterator != null) {
+                entityIterator.close();
+            }
             composer.terminate();
             if (writer != null) {
                 try {
@@ -4301,32 +4826,55 @@ public class ScContactsProvider extends ContentProvider {
     }
 
     /**
-     * Returns an {@link AssetFileDescriptor} backed by the
-     * contents of the given {@link ByteArrayOutputStream}.
+     * Returns an {@link AssetFileDescriptor} for the read end of a pipe. A thread of the
+     * vCard stream executor writes the matching raw contacts as vCards into the pipe.
      */
-    private AssetFileDescriptor buildAssetFileDescriptor(ByteArrayOutputStream stream) {
+    private AssetFileDescriptor openVCardPipe(final Uri uri, final String selection, final String[] selectionArgs)
+            throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
         try {
-            stream.flush();
-
-            ByteArrayInputStream bIn = new ByteArrayInputStream(stream.toByteArray());
-
-            ParcelFileDescriptor[] pipe=null;
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception opening pipe", e);
+            throw new FileNotFoundException("Could not open pipe for VCard");
+        }
+        try {
+            mVCardStreamExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    outputRawContactsAsVCard(uri, new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]),
+                            selection, selectionArgs);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many pending vCard requests");
+            closeQuietly(pipe[0]);
+            closeQuietly(pipe[1]);
+            throw new FileNotFoundException("Too many pending vCard requests");
+        }
+        return makeAssetFileDescriptor(pipe[0]);
+    }
 
-            try {
-              pipe = ParcelFileDescriptor.createPipe();
-              new TransferThread(bIn, new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])).start();
-            }
-            catch (IOException e) {
-              Log.e(getClass().getSimpleName(), "Exception opening pipe", e);
-              throw new FileNotFoundException("Could not open pipe for VCard");
-            }
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        try {
+            fd.close();
+        } catch (IOException ignored) {
+        }
+    }
 
-            return makeAssetFileDescriptor(pipe[0]);
+    private static ThreadPoolExecutor createVCardStreamExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(VCARD_STREAM_THREADS, VCARD_STREAM_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(VCARD_STREAM_QUEUE_SIZE),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
 
-        } catch (IOException e) {
-            Log.w(TAG, "Problem writing stream into an ParcelFileDescriptor: " + e.toString());
-            return null;
-        }
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "VCardStream #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     private AssetFileDescriptor makeAssetFileDescriptor(ParcelFileDescriptor fd) {
@@ -4367,33 +4915,4 @@ public class ScContactsProvider extends ContentProvider {
         }
         return c;
     }
-
-    // Thread that write out data
-    static class TransferThread extends Thread {
-        InputStream in;
-        OutputStream out;
-
-        TransferThread(InputStream in, OutputStream out) {
-            this.in = in;
-            this.out = out;
-        }
-
-        @Override
-        public void run() {
-            byte[] buf = new byte[8192];
-            int len;
-
-            try {
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
-                }
-
-                in.close();
-                out.flush();
-                out.close();
-            } catch (IOException e) {
-                Log.e(getClass().getSimpleName(), "Exception transferring file", e);
-            }
-        }
-    }
 }
@@ -48,7 +48,6 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.silentcircle.contacts.providers;
 
-import android.content.ContentValues;
 import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 import android.os.SystemClock;
@@ -57,6 +56,7 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -68,6 +68,7 @@ import com.silentcircle.silentcontacts.ScContactsContract.CommonDataKinds.Struct
 import com.silentcircle.silentcontacts.ScContactsContract.Data;
 import com.silentcircle.silentcontacts.ScContactsContract.ProviderStatus;
 import com.silentcircle.silentcontacts.ScContactsContract.RawContacts;
+import com.silentcircle.contacts.utils.DbQueryUtils;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.DataColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.MimetypesColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.RawContactsColumns;
@@ -85,7 +86,20 @@ public class SearchIndexManager {
     private static final boolean VERBOSE_LOGGING = false;  // Log.isLoggable(TAG, Log.VERBOSE);
 
     public static final String PROPERTY_SEARCH_INDEX_VERSION = "search_index";
-    private static final int SEARCH_INDEX_VERSION = 1;
+    // 2: the docid of a row is its raw contact id
+    private static final int SEARCH_INDEX_VERSION = 2;
+
+    /**
+     * Checkpoint of a running rebuild: "<search index version>:<last indexed raw contact id>".
+     * Missing or empty if no rebuild is running.
+     */
+    public static final String PROPERTY_SEARCH_INDEX_REBUILD = "search_index_rebuild";
+
+    /** Number of raw contacts indexed in one transaction during a rebuild */
+    private static final int REBUILD_CHUNK_SIZE = 500;
+
+    /** Maximum number of raw contact ids in one delete and rebuild pass of an update */
+    private static final int UPDATE_BATCH_SIZE = 500;
 
     private static final class ContactIndexQuery {
         public static final String[] COLUMNS = {
@@ -269,7 +283,6 @@ public class SearchIndexManager {
     private final ScContactsDatabaseHelper mDbHelper;
     private StringBuilder mSb = new StringBuilder();
     private IndexBuilder mIndexBuilder = new IndexBuilder();
-    private ContentValues mValues = new ContentValues();
     private String[] mSelectionArgs1 = new String[1];
 
     public SearchIndexManager(ScContactsProvider contactsProvider) {
@@ -280,39 +293,105 @@ public class SearchIndexManager {
     public void updateIndex(boolean force) {
         if (force) {
             setSearchIndexVersion(0);
+            setRebuildCheckpoint(-1);
         } else {
             if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
                 return;
             }
         }
-        SQLiteDatabase db = mDbHelper.getDatabase(true);
-        db.beginTransaction();
-        try {
-            // We do a version check again, because the version might have been modified after
-            // the first check.  We need to do the check again in a transaction to make sure.
-            if (getSearchIndexVersion() != SEARCH_INDEX_VERSION) {
-                rebuildIndex(db);
-                setSearchIndexVersion(SEARCH_INDEX_VERSION);
-                db.setTransactionSuccessful();
-            }
-        } finally {
-            db.endTransaction();
-        }
+        rebuildIndex(mDbHelper.getDatabase(true));
     }
 
+    /**
+     * Rebuilds the index in chunks of raw contacts, each chunk in its own transaction.
+     *
+     * Other threads may use the database between two chunks. Each chunk stores its last raw
+     * contact id as checkpoint, thus an interrupted rebuild continues after the last committed
+     * chunk. Raw contacts changed during the rebuild are indexed by {@link #updateIndexForRawContacts}
+     * as usual, a chunk replaces their rows if it was not yet processed.
+     */
     private void rebuildIndex(SQLiteDatabase db) {
         mContactsProvider.setProviderStatus(ProviderStatus.STATUS_UPGRADING);
         final long start = SystemClock.elapsedRealtime();
         int count = 0;
+        int chunks = 0;
         try {
-            mDbHelper.createSearchIndexTable(db, true);
-            count = buildAndInsertIndex(db, null);
+            long lastId;
+            db.beginTransaction();
+            try {
+                // We do a version check again, because the version might have been modified after
+                // the first check.  We need to do the check again in a transaction to make sure.
+                if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
+                    return;
+                }
+                lastId = getRebuildCheckpoint();
+                if (lastId < 0) {
+                    mDbHelper.createSearchIndexTable(db, true);
+                    lastId = 0;
+                    setRebuildCheckpoint(lastId);
+                }
+                else {
+                    Log.i(TAG, "Resume contact search index rebuild after raw contact " + lastId);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                mDbHelper.endWriterTransaction(db);
+            }
+            final long total = DbQueryUtils.queryNumEntries(db, Tables.RAW_CONTACTS);
+            long done = DbQueryUtils.queryNumEntries(db, Tables.RAW_CONTACTS,
+                    RawContacts._ID + "<=" + lastId);
+
+            while (true) {
+                mContactsProvider.setProviderStatusProgress(total > 0 ? (int)(Math.min(done, total) * 100 / total) : 0);
+                db.beginTransaction();
+                try {
+                    long chunkEnd = getChunkEnd(db, lastId);
+                    if (chunkEnd < 0) {
+                        setSearchIndexVersion(SEARCH_INDEX_VERSION);
+                        setRebuildCheckpoint(-1);
+                        db.setTransactionSuccessful();
+                        break;
+                    }
+                    final String selection = RawContactsColumns.CONCRETE_ID + ">" + lastId
+                            + " AND " + RawContactsColumns.CONCRETE_ID + "<=" + chunkEnd;
+                    db.delete(Tables.SEARCH_INDEX, SearchIndexColumns.DOCID + ">" + lastId
+                            + " AND " + SearchIndexColumns.DOCID + "<=" + chunkEnd, null);
+                    count += buildAndInsertIndex(db, selection);
+                    setRebuildCheckpoint(chunkEnd);
+                    db.setTransactionSuccessful();
+                    lastId = chunkEnd;
+                } finally {
+                    mDbHelper.endWriterTransaction(db);
+                }
+                done += REBUILD_CHUNK_SIZE;
+                chunks++;
+            }
         } finally {
             mContactsProvider.setProviderStatus(ProviderStatus.STATUS_NORMAL);
 
             final long end = SystemClock.elapsedRealtime();
             Log.i(TAG, "Rebuild contact search index in " + (end - start) + "ms, "
-                    + count + " contacts");
+                    + count + " contacts, " + chunks + " chunks"
+                    + (count > 0 ? ", " + ((end - start) * 1000 / count) + "us per contact" : ""));
+        }
+    }
+
+    /**
+     * Returns the id of the last raw contact of the next chunk or -1 if no raw contact follows
+     * {@code lastId}.
+     */
+    private long getChunkEnd(SQLiteDatabase db, long lastId) {
+        Cursor cursor = db.rawQuery("SELECT MAX(" + RawContacts._ID + "), COUNT(*) FROM (SELECT "
+                + RawContacts._ID + " FROM " + Tables.RAW_CONTACTS
+                + " WHERE " + RawContacts._ID + ">" + lastId
+                + " ORDER BY " + RawContacts._ID + " LIMIT " + REBUILD_CHUNK_SIZE + ")", null);
+        try {
+            if (cursor.moveToFirst() && cursor.getInt(1) > 0) {
+                return cursor.getLong(0);
+            }
+            return -1;
+        } finally {
+            cursor.close();
         }
     }
 
@@ -320,35 +399,32 @@ public class SearchIndexManager {
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "Updating search index for " + rawContactIds.size() + " raw contacts");
         }
-        StringBuilder sb = new StringBuilder();
-        sb.append("(");
+        if (rawContactIds.isEmpty()) {
+            return;
+        }
+        final SQLiteDatabase db = mDbHelper.getDatabase(true);
+        final StringBuilder sb = new StringBuilder();
+        final Iterator<Long> iterator = rawContactIds.iterator();
+        int count = 0;
 
-        if (!rawContactIds.isEmpty()) {
-            sb.append(RawContactsColumns.CONCRETE_ID + " IN (");
-            for (Long rawContactId : rawContactIds) {
-                sb.append(rawContactId).append(",");
+        while (iterator.hasNext()) {
+            sb.setLength(0);
+            sb.append(" IN (");
+            for (int i = 0; i < UPDATE_BATCH_SIZE && iterator.hasNext(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(iterator.next());
             }
-            sb.setLength(sb.length() - 1);
             sb.append(')');
-        }
-
-        sb.append(")");
+            final String inIds = sb.toString();
 
-        // The selection to select raw_contacts.
-        final String rawContactsSelection = sb.toString();
+            // Remove affected search_index rows, the docid is the raw contact id.
+            db.delete(Tables.SEARCH_INDEX, SearchIndexColumns.DOCID + inIds, null);
 
-        // Remove affected search_index rows.
-        final SQLiteDatabase db = mDbHelper.getDatabase(true);
-        final int deleted = db.delete(Tables.SEARCH_INDEX,
-                SearchIndexColumns.RAW_CONTACT_ID + " IN (SELECT " +
-                    RawContacts._ID +
-                    " FROM " + Tables.RAW_CONTACTS +
-                    " WHERE " + rawContactsSelection +
-                    ")"
-                , null);
-
-        // Then rebuild index for them.
-        final int count = buildAndInsertIndex(db, rawContactsSelection);
+            // Then rebuild index for them.
+            count += buildAndInsertIndex(db, RawContactsColumns.CONCRETE_ID + inIds);
+        }
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "Updated search index for " + count + " contacts");
         }
@@ -383,7 +459,7 @@ public class SearchIndexManager {
                 long contactId = cursor.getLong(0);
                 if (contactId != currentContactId) {
                     if (currentContactId != -1) {
-                        insertIndexRow(db, currentContactId, mIndexBuilder);
+                        insertIndexRow(currentContactId, mIndexBuilder);
                         count++;
                     }
                     currentContactId = contactId;
@@ -397,7 +473,7 @@ public class SearchIndexManager {
                 }
             }
             if (currentContactId != -1) {
-                insertIndexRow(db, currentContactId, mIndexBuilder);
+                insertIndexRow(currentContactId, mIndexBuilder);
                 count++;
             }
         } finally {
@@ -406,14 +482,10 @@ public class SearchIndexManager {
         return count;
     }
 
-    private void insertIndexRow(SQLiteDatabase db, long contactId, IndexBuilder builder) {
-        mValues.clear();
-        mValues.put(SearchIndexColumns.CONTENT, builder.getContent());
-        mValues.put(SearchIndexColumns.NAME, builder.getName());
-        mValues.put(SearchIndexColumns.TOKENS, builder.getTokens());
-        mValues.put(SearchIndexColumns.RAW_CONTACT_ID, contactId);
-        db.insert(Tables.SEARCH_INDEX, null, mValues);
+    private void insertIndexRow(long contactId, IndexBuilder builder) {
+        mDbHelper.insertSearchIndex(contactId, builder.getContent(), builder.getName(), builder.getTokens());
     }
+
     private int getSearchIndexVersion() {
         return Integer.parseInt(mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_VERSION, "0"));
     }
@@ -422,6 +494,30 @@ public class SearchIndexManager {
         mDbHelper.setProperty(PROPERTY_SEARCH_INDEX_VERSION, String.valueOf(version));
     }
 
+    /**
+     * Returns the last raw contact id of a running rebuild, -1 if none is running or if the
+     * checkpoint belongs to an other index version.
+     */
+    private long getRebuildCheckpoint() {
+        final String checkpoint = mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_REBUILD, null);
+        if (TextUtils.isEmpty(checkpoint)) {
+            return -1;
+        }
+        final int colon = checkpoint.indexOf(':');
+        try {
+            if (colon < 0 || Integer.parseInt(checkpoint.substring(0, colon)) != SEARCH_INDEX_VERSION) {
+                return -1;
+            }
+            return Long.parseLong(checkpoint.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void setRebuildCheckpoint(long lastId) {
+        mDbHelper.setProperty(PROPERTY_SEARCH_INDEX_REBUILD, lastId < 0 ? "" : SEARCH_INDEX_VERSION + ":" + lastId);
+    }
+
     /**
      * Token separator that matches SQLite's "simple" tokenizer.
      * - Unicode codepoints >= 128: Everything
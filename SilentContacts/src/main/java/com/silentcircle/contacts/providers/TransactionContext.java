@@ -67,6 +67,9 @@ public class TransactionContext  {
 //    private HashSet<Long> mDirtyRawContacts;
     private HashSet<Long> mStaleSearchIndexRawContacts;
     private HashSet<Long> mStaleSearchIndexContacts;
+    /** Raw contacts whose display name is derived at the end of a bulk insert */
+    private HashSet<Long> mStaleDisplayNameRawContacts;
+    private boolean mBulkInsert;
 //    private HashMap<Long, Object> mUpdatedSyncStates;
 
     public TransactionContext(boolean forProfile) {
@@ -77,6 +80,34 @@ public class TransactionContext  {
         return mForProfile;
     }
 
+    /**
+     * Marks the start or the end of a bulk insert batch.
+     *
+     * During a bulk insert the data row handlers insert through cached statements and record the raw
+     * contacts with a stale display name instead of deriving it row by row.
+     */
+    public void setBulkInsert(boolean bulkInsert) {
+        mBulkInsert = bulkInsert;
+    }
+
+    public boolean isBulkInsert() {
+        return mBulkInsert;
+    }
+
+    public void invalidateDisplayNameForRawContact(long rawContactId) {
+        if (mStaleDisplayNameRawContacts == null) mStaleDisplayNameRawContacts = new HashSet<Long>();
+        mStaleDisplayNameRawContacts.add(rawContactId);
+    }
+
+    public Set<Long> getStaleDisplayNameRawContactIds() {
+        if (mStaleDisplayNameRawContacts == null) mStaleDisplayNameRawContacts = new HashSet<Long>();
+        return mStaleDisplayNameRawContacts;
+    }
+
+    public void clearDisplayNameUpdates() {
+        mStaleDisplayNameRawContacts = null;
+    }
+
 //    public void rawContactInserted(long rawContactId, long accountId) {
 //        if (mInsertedRawContactsAccounts == null) mInsertedRawContactsAccounts = new HashMap<Long, Long>();
 //        mInsertedRawContactsAccounts.put(rawContactId, accountId);
@@ -162,5 +193,7 @@ public class TransactionContext  {
     public void clearAll() {
 //        clearExceptSearchIndexUpdates();
         clearSearchIndexUpdates();
+        clearDisplayNameUpdates();
+        mBulkInsert = false;
     }
 }
@@ -36,6 +36,7 @@ package com.silentcircle.contacts.providers.aggregation;
 import com.silentcircle.contacts.providers.NameSplitter;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.DataColumns;
+import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.PhotoThumbnailsColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.RawContactsColumns;
 import com.silentcircle.contacts.providers.ScContactsDatabaseHelper.Tables;
 import com.silentcircle.contacts.providers.ScContactsProvider;
@@ -117,7 +118,9 @@ public class SimpleRawContactAggregator {
         String tables = Tables.RAW_CONTACTS
                 + " JOIN " + Tables.DATA + " ON("
                 + DataColumns.CONCRETE_RAW_CONTACT_ID + "=" + RawContactsColumns.CONCRETE_ID
-                + " AND (" + DataColumns.MIMETYPE_ID + "=" + photoMimeType + " AND " + Photo.PHOTO + " NOT NULL))";
+                + " AND " + DataColumns.MIMETYPE_ID + "=" + photoMimeType + ")"
+                + " JOIN " + Tables.PHOTO_THUMBNAILS + " ON ("
+                + PhotoThumbnailsColumns.CONCRETE_DATA_ID + "=" + DataColumns.CONCRETE_ID + ")";
 
         mSelectionArgs1[0] = String.valueOf(rawContactId);
         final Cursor c = db.query(tables, PhotoIdQuery.COLUMNS, RawContactsColumns.CONCRETE_ID + "=?", mSelectionArgs1, null, null, null);
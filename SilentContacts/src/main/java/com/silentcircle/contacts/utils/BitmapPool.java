@@ -0,0 +1,208 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may
+      be used to endorse or promote products derived from this software
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.silentcircle.contacts.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * A size bucketed pool of mutable bitmaps that the decoder can reuse through
+ * {@link BitmapFactory.Options#inBitmap}.
+ *
+ * Before KitKat the decoder can reuse a bitmap only if it has exactly the size of the decoded
+ * image and if no sampling is applied, thus the pool keeps one bucket per width and height.
+ * The pool holds only ARGB_8888 bitmaps, the config the decoder uses by default. Before
+ * Honeycomb the pool does nothing and all decodes allocate a new bitmap.
+ *
+ * The caller must make sure that a bitmap it puts into the pool is not referenced anymore,
+ * neither by a drawable nor by a cache.
+ */
+public class BitmapPool {
+
+    private static final boolean CAN_REUSE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+
+    private final int mMaxSize;
+    private final SparseArray<ArrayList<Bitmap>> mBuckets = new SparseArray<ArrayList<Bitmap>>();
+    private int mSize;
+
+    private int mAllocationCount;
+    private int mReuseCount;
+    private int mSessionAllocationCount;
+    private int mSessionReuseCount;
+    private int mDropCount;
+
+    /**
+     * @param maxSize maximum number of bytes of all pooled bitmaps
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Decodes the bitmap with the given sample size, reuses a pooled bitmap if possible.
+     *
+     * @return the bitmap or {@code null} if the bytes cannot be decoded
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public Bitmap decodeBitmapFromBytes(byte[] bytes, int sampleSize) {
+        if (!CAN_REUSE) {
+            recordDecode(false);
+            return BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        if (sampleSize > 1) {
+            options.inSampleSize = sampleSize;
+        }
+        else {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            options.inJustDecodeBounds = false;
+            if (options.outWidth > 0 && options.outHeight > 0) {
+                options.inBitmap = get(options.outWidth, options.outHeight);
+            }
+        }
+        Bitmap bitmap = null;
+        if (options.inBitmap != null) {
+            try {
+                bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            } catch (IllegalArgumentException e) {
+                // The decoder cannot reuse this bitmap (different format), decode into a new one
+            }
+            if (bitmap == null) {
+                // Keep the pooled bitmap, the decode below does not use it
+                put(options.inBitmap);
+                options.inBitmap = null;
+            }
+        }
+        if (bitmap == null) {
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            recordDecode(false);
+        }
+        else {
+            recordDecode(true);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns an ARGB_8888 bitmap of the given size and removes it from the pool.
+     *
+     * @return the bitmap or {@code null} if the pool has no such bitmap
+     */
+    public synchronized Bitmap get(int width, int height) {
+        final ArrayList<Bitmap> bucket = mBuckets.get(bucketKey(width, height));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        mSize -= byteCount(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Adds a bitmap to the pool. Immutable, recycled or not ARGB_8888 bitmaps and bitmaps that
+     * don't fit into the pool anymore are left to the garbage collector.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!CAN_REUSE || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        final int size = byteCount(bitmap);
+        if (mSize + size > mMaxSize) {
+            mDropCount++;
+            return;
+        }
+        final int key = bucketKey(bitmap.getWidth(), bitmap.getHeight());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mSize += size;
+    }
+
+    /**
+     * Removes all bitmaps from the pool.
+     */
+    public synchronized void clear() {
+        mBuckets.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Returns the allocation and reuse counts since the last call and starts a new session.
+     */
+    public synchronized String takeSessionStats() {
+        final String stats = "allocated=" + mSessionAllocationCount + ", reused=" + mSessionReuseCount;
+        mSessionAllocationCount = 0;
+        mSessionReuseCount = 0;
+        return stats;
+    }
+
+    public synchronized boolean hasSessionActivity() {
+        return mSessionAllocationCount != 0 || mSessionReuseCount != 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + ((mSize + 1023) / 1024) + "K/" + ((mMaxSize + 1023) / 1024)
+                + "K, allocated=" + mAllocationCount + ", reused=" + mReuseCount + ", dropped=" + mDropCount + "]";
+    }
+
+    private synchronized void recordDecode(boolean reused) {
+        if (reused) {
+            mReuseCount++;
+            mSessionReuseCount++;
+        }
+        else {
+            mAllocationCount++;
+            mSessionAllocationCount++;
+        }
+    }
+
+    private static int bucketKey(int width, int height) {
+        return (width << 16) | (height & 0xffff);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
+    private static int byteCount(Bitmap bitmap) {
+        return (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR1) ?
+                bitmap.getRowBytes() * bitmap.getHeight() : bitmap.getByteCount();
+    }
+}
@@ -264,6 +264,22 @@ public class DbQueryUtils {
         return longForQuery(db, "select count(*) from " + table);
     }
 
+    /**
+     * Query the table for the number of rows in the table that match the selection.
+     *
+     * @param db the database the table is in
+     * @param table the name of the table to query
+     * @param selection a filter declaring which rows to count, formatted as an SQL WHERE clause
+     *            (excluding the WHERE itself). Passing null counts all rows.
+     * @return the number of rows in the table matching the selection
+     */
+    public static long queryNumEntries(SQLiteDatabase db, String table, String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return queryNumEntries(db, table);
+        }
+        return longForQuery(db, "select count(*) from " + table + " where " + selection);
+    }
+
     /**
      * Utility method to run the query on the db and return the value in the
      * first column of the first row.
@@ -0,0 +1,121 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may
+      be used to endorse or promote products derived from this software
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.silentcircle.contacts.utils;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive {@code long} values.
+ *
+ * Keeps ids without boxing every value into a {@link Long}. After {@link #sortUnique()} the
+ * array is a sorted set that supports {@link #binarySearch(long)} and merges with other
+ * sorted arrays in linear time.
+ *
+ * This class is not thread-safe.
+ */
+public class LongArray {
+    private static final long[] EMPTY = new long[0];
+
+    private long[] mValues;
+    private int mSize;
+
+    public LongArray() {
+        mValues = EMPTY;
+    }
+
+    public LongArray(int initialCapacity) {
+        mValues = initialCapacity > 0 ? new long[initialCapacity] : EMPTY;
+    }
+
+    public void add(long value) {
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, Math.max(16, mSize + (mSize >> 1)));
+        }
+        mValues[mSize++] = value;
+    }
+
+    public long get(int index) {
+        if (index >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mValues[index];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Sorts the values in ascending order, duplicates remain.
+     */
+    public void sort() {
+        if (mSize > 1) {
+            Arrays.sort(mValues, 0, mSize);
+        }
+    }
+
+    /**
+     * Sorts the values in ascending order and removes duplicates.
+     */
+    public void sortUnique() {
+        if (mSize < 2) {
+            return;
+        }
+        Arrays.sort(mValues, 0, mSize);
+        int last = 0;
+        for (int i = 1; i < mSize; i++) {
+            if (mValues[i] != mValues[last]) {
+                mValues[++last] = mValues[i];
+            }
+        }
+        mSize = last + 1;
+    }
+
+    /**
+     * Searches a value in a sorted array.
+     *
+     * @return the index of the value, a negative number if the array does not contain it
+     */
+    public int binarySearch(long value) {
+        return Arrays.binarySearch(mValues, 0, mSize, value);
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(mValues, mSize);
+    }
+}
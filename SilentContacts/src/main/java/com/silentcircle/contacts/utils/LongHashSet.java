@@ -0,0 +1,190 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may
+      be used to endorse or promote products derived from this software
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.silentcircle.contacts.utils;
+
+import java.util.Arrays;
+
+/**
+ * A hash set of primitive {@code long} values.
+ *
+ * Uses open addressing with linear probing in one {@code long[]}, thus adding, removing and
+ * looking up an id neither allocates a {@link Long} nor a map entry. The value {@code 0} marks
+ * a free slot in the table, the set tracks a contained zero separately.
+ *
+ * This class is not thread-safe.
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mTable;
+    private int mSize;            // number of non-zero values in mTable
+    private boolean mContainsZero;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        mTable = new long[tableSizeFor(expectedSize)];
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        // keep the load factor below 0.5, linear probing degrades fast above it
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private int indexOf(long value) {
+        final int mask = mTable.length - 1;
+        int index = hash(value) & mask;
+        while (mTable[index] != 0) {
+            if (mTable[index] == value) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -(index + 1);
+    }
+
+    /**
+     * @return true if the set did not already contain the value
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            final boolean added = !mContainsZero;
+            mContainsZero = true;
+            return added;
+        }
+        int index = indexOf(value);
+        if (index >= 0) {
+            return false;
+        }
+        if ((mSize + 1) * 2 > mTable.length) {
+            rehash(mTable.length << 1);
+            index = indexOf(value);
+        }
+        mTable[-(index + 1)] = value;
+        mSize++;
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return mContainsZero;
+        }
+        return indexOf(value) >= 0;
+    }
+
+    /**
+     * @return true if the set contained the value
+     */
+    public boolean remove(long value) {
+        if (value == 0) {
+            final boolean removed = mContainsZero;
+            mContainsZero = false;
+            return removed;
+        }
+        int index = indexOf(value);
+        if (index < 0) {
+            return false;
+        }
+        // Shift the following values of the probe sequence back, no tombstones needed
+        final int mask = mTable.length - 1;
+        int next = (index + 1) & mask;
+        while (mTable[next] != 0) {
+            final int home = hash(mTable[next]) & mask;
+            // move the value if its home slot is not within (index, next]
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                mTable[index] = mTable[next];
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mTable[index] = 0;
+        mSize--;
+        return true;
+    }
+
+    public int size() {
+        return mContainsZero ? mSize + 1 : mSize;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mTable, 0);
+            mSize = 0;
+        }
+        mContainsZero = false;
+    }
+
+    /**
+     * Returns the values in no particular order.
+     */
+    public long[] toArray() {
+        final long[] values = new long[size()];
+        int i = 0;
+        if (mContainsZero) {
+            values[i++] = 0;
+        }
+        for (long value : mTable) {
+            if (value != 0) {
+                values[i++] = value;
+            }
+        }
+        return values;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldTable = mTable;
+        mTable = new long[capacity];
+        final int mask = capacity - 1;
+        for (long value : oldTable) {
+            if (value != 0) {
+                int index = hash(value) & mask;
+                while (mTable[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                mTable[index] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+Copyright © 2013-2014, Silent Circle, LLC.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Any redistribution, use, or modification is done solely for personal 
+      benefit and not for any commercial purpose or for monetary gain
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name Silent Circle nor the names of its contributors may 
+      be used to endorse or promote products derived from this software 
+      without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL SILENT CIRCLE, LLC BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.silentcircle.contacts.vcard;
+
+import android.content.ContentProviderOperation;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.silentcircle.vcard.VCardConfig;
+import com.silentcircle.vcard.VCardEntry;
+import com.silentcircle.vcard.VCardEntryCommitter;
+import com.silentcircle.vcard.VCardEntryHandler;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports vCard entries in three pipelined stages.
+ *
+ * The parser thread (the caller of the {@link VCardEntryHandler} methods) hands each parsed entry
+ * to the build stage which creates the insert operations and collects them in batches. The
+ * commit stage applies the batches. Build and commit stage run on their own threads, bounded
+ * queues between the stages block a stage that runs ahead of the next one.
+ *
+ * Call {@link #start()} before parsing and {@link #finish()} after parsing, also if parsing failed.
+ */
+class ImportPipeline implements VCardEntryHandler {
+    private static final String LOG_TAG = "VCardImport";
+
+    private static final int ENTRY_QUEUE_SIZE = 64;
+    private static final int BATCH_QUEUE_SIZE = 4;
+    private static final long POLL_TIMEOUT_MS = 200;
+
+    private static final VCardEntry END_OF_ENTRIES = new VCardEntry();
+    private static final Batch END_OF_BATCHES = new Batch(null, 0);
+
+    private static class Batch {
+        final ArrayList<ContentProviderOperation> operations;
+        final int entryCount;
+
+        Batch(ArrayList<ContentProviderOperation> operations, int entryCount) {
+            this.operations = operations;
+            this.entryCount = entryCount;
+        }
+    }
+
+    /**
+     * Number of entries that passed each stage and the time since the pipeline started.
+     */
+    static class Counters {
+        final int parsed;
+        final int built;
+        final int committed;
+        final long elapsedMillis;
+
+        Counters(int parsed, int built, int committed, long elapsedMillis) {
+            this.parsed = parsed;
+            this.built = built;
+            this.committed = committed;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /** Returns the throughput of a stage in entries per second */
+        int perSecond(int count) {
+            return elapsedMillis > 0 ? (int)(count * 1000L / elapsedMillis) : 0;
+        }
+    }
+
+    private final VCardEntryCommitter mCommitter;
+    private final BlockingQueue<VCardEntry> mEntries = new ArrayBlockingQueue<VCardEntry>(ENTRY_QUEUE_SIZE);
+    private final BlockingQueue<Batch> mBatches = new ArrayBlockingQueue<Batch>(BATCH_QUEUE_SIZE);
+
+    private final AtomicInteger mParsed = new AtomicInteger();
+    private final AtomicInteger mBuilt = new AtomicInteger();
+    private final AtomicInteger mCommitted = new AtomicInteger();
+
+    private Thread mBuildThread;
+    private Thread mCommitThread;
+    private long mStartTime;
+
+    private volatile boolean mStopped;
+    private volatile RuntimeException mFailure;
+
+    ImportPipeline(VCardEntryCommitter committer) {
+        mCommitter = committer;
+    }
+
+    void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mBuildThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runStage(true);
+            }
+        }, "VCardImport-build");
+        mCommitThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runStage(false);
+            }
+        }, "VCardImport-commit");
+        mBuildThread.start();
+        mCommitThread.start();
+    }
+
+    /**
+     * Waits until the build and commit stages processed all parsed entries.
+     *
+     * @throws RuntimeException the exception that stopped a stage
+     */
+    void finish() {
+        put(mEntries, END_OF_ENTRIES);
+        try {
+            mBuildThread.join();
+            mCommitThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (VCardConfig.showPerformanceLog()) {
+            final Counters counters = getCounters();
+            Log.d(LOG_TAG, String.format("pipeline: %d parsed, %d built, %d committed in %d ms",
+                    counters.parsed, counters.built, counters.committed, counters.elapsedMillis));
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    /**
+     * Stops all stages, entries not yet committed are dropped.
+     */
+    void cancel() {
+        mStopped = true;
+    }
+
+    boolean isStopped() {
+        return mStopped;
+    }
+
+    Counters getCounters() {
+        return new Counters(mParsed.get(), mBuilt.get(), mCommitted.get(),
+                SystemClock.elapsedRealtime() - mStartTime);
+    }
+
+    @Override
+    public void onStart() {
+        // do nothing, see start()
+    }
+
+    @Override
+    public void onEnd() {
+        // do nothing, see finish()
+    }
+
+    @Override
+    public void onEntryCreated(VCardEntry entry) {
+        if (put(mEntries, entry)) {
+            mParsed.incrementAndGet();
+        }
+    }
+
+    private void runStage(boolean build) {
+        try {
+            if (build) {
+                buildBatches();
+            }
+            else {
+                commitBatches();
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "RuntimeException thrown in " + Thread.currentThread().getName(), e);
+            mFailure = e;
+            mStopped = true;
+        }
+    }
+
+    private void buildBatches() {
+        int entryCount = 0;
+        VCardEntry entry;
+        while ((entry = take(mEntries)) != null && entry != END_OF_ENTRIES) {
+            // A returned batch is complete and does not contain this entry
+            final ArrayList<ContentProviderOperation> operations = mCommitter.addToBatch(entry);
+            if (operations != null) {
+                if (!put(mBatches, new Batch(operations, entryCount))) {
+                    return;
+                }
+                entryCount = 0;
+            }
+            entryCount++;
+            mBuilt.incrementAndGet();
+        }
+        if (entry == null) {            // stopped
+            return;
+        }
+        final ArrayList<ContentProviderOperation> operations = mCommitter.takeBatch();
+        if (operations != null) {
+            put(mBatches, new Batch(operations, entryCount));
+        }
+        put(mBatches, END_OF_BATCHES);
+    }
+
+    private void commitBatches() {
+        Batch batch;
+        while ((batch = take(mBatches)) != null && batch != END_OF_BATCHES) {
+            mCommitter.commitBatch(batch.operations);
+            mCommitted.addAndGet(batch.entryCount);
+        }
+    }
+
+    /**
+     * Puts an item into the queue, waits while the queue is full.
+     *
+     * @return false if the pipeline was stopped
+     */
+    private <T> boolean put(BlockingQueue<T> queue, T item) {
+        try {
+            while (!mStopped) {
+                if (queue.offer(item, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mStopped = true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes an item from the queue, waits while the queue is empty.
+     *
+     * @return the item or null if the pipeline was stopped
+     */
+    private <T> T take(BlockingQueue<T> queue) {
+        try {
+            while (!mStopped) {
+                final T item = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    return item;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mStopped = true;
+        }
+        return null;
+    }
+}
@@ -90,6 +90,7 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     private final List<Uri> mFailedUris = new ArrayList<Uri>();
 
     private VCardParser mVCardParser;
+    private ImportPipeline mPipeline;
 
     private volatile boolean mCanceled;
     private volatile boolean mDone;
@@ -120,8 +121,17 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     @Override
     public void onEntryCreated(VCardEntry entry) {
         mCurrentCount++;
+        if (mPipeline.isStopped()) {
+            // A stage failed or the import was canceled, no need to parse the rest
+            synchronized (this) {
+                if (mVCardParser != null) {
+                    mVCardParser.cancel();
+                }
+            }
+            return;
+        }
         if (mListener != null) {
-            mListener.onImportParsed(mImportRequest, mJobId, entry, mCurrentCount, mTotalCount);
+            mListener.onImportParsed(mImportRequest, mJobId, entry, mCurrentCount, mTotalCount, mPipeline.getCounters());
         }
     }
 
@@ -183,11 +193,21 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
 
         final VCardEntryConstructor constructor = new VCardEntryConstructor(estimatedVCardType, account);
         final VCardEntryCommitter committer = new VCardEntryCommitter(mResolver);
-        constructor.addEntryHandler(committer);
+        final ImportPipeline pipeline = new ImportPipeline(committer);
+        synchronized (this) {
+            mPipeline = pipeline;
+            if (isCancelled()) {
+                pipeline.cancel();
+            }
+        }
+        // The pipeline builds and commits the entries on its own threads while this thread parses
+        constructor.addEntryHandler(pipeline);
         constructor.addEntryHandler(this);
+        pipeline.start();
 
         InputStream is = null;
         boolean successful = false;
+        boolean parsed = false;
         try {
             if (uri != null) {
                 Log.i(LOG_TAG, "start importing one vCard (Uri: " + uri + ")");
@@ -201,11 +221,14 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             if (is != null) {
                 successful = readOneVCard(is, estimatedVCardType, estimatedCharset, constructor, possibleVCardVersions);
             }
+            parsed = true;
         }
         catch (IOException e) {
             successful = false;
+            parsed = true;
         }
         finally {
+            // Close the stream first, finish() may throw the failure of a stage
             if (is != null) {
                 try {
                     is.close();
@@ -214,6 +237,18 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
                     // ignore
                 }
             }
+            if (parsed) {
+                pipeline.finish();
+            }
+            else {
+                // The parse failure propagates, a stage failure must not replace it
+                try {
+                    pipeline.finish();
+                }
+                catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "vCard import stage failed after the parse failed", e);
+                }
+            }
         }
 
         mService.handleFinishImportNotification(mJobId, successful);
@@ -332,6 +367,9 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             if (mVCardParser != null) {
                 mVCardParser.cancel();
             }
+            if (mPipeline != null) {
+                mPipeline.cancel();
+            }
         }
         return true;
     }
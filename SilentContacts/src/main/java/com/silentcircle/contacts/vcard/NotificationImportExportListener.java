@@ -122,7 +122,8 @@ public class NotificationImportExportListener implements VCardImportExportListen
     }
 
     @Override
-    public void onImportParsed(ImportRequest request, int jobId, VCardEntry entry, int currentCount, int totalCount) {
+    public void onImportParsed(ImportRequest request, int jobId, VCardEntry entry, int currentCount, int totalCount,
+            ImportPipeline.Counters counters) {
         if (entry.isIgnorable()) {
             return;
         }
@@ -131,9 +132,14 @@ public class NotificationImportExportListener implements VCardImportExportListen
         final String tickerText = mContext.getString(R.string.progress_notifier_message, String.valueOf(currentCount),
                 totalCountString, entry.getDisplayName());
         final String description = mContext.getString(R.string.importing_vcard_description, entry.getDisplayName());
+        final String stageCounters = mContext.getString(R.string.vcard_import_stage_counters,
+                String.valueOf(counters.parsed), String.valueOf(counters.perSecond(counters.parsed)),
+                String.valueOf(counters.built), String.valueOf(counters.perSecond(counters.built)),
+                String.valueOf(counters.committed), String.valueOf(counters.perSecond(counters.committed)));
 
         final Notification notification = constructProgressNotification(mContext.getApplicationContext(),
-                VCardService.TYPE_IMPORT, description, tickerText, jobId, request.displayName, totalCount, currentCount);
+                VCardService.TYPE_IMPORT, description, tickerText, jobId, request.displayName, totalCount, currentCount,
+                stageCounters);
         mNotificationManager.notify(DEFAULT_NOTIFICATION_TAG, jobId, notification);
     }
 
@@ -213,6 +219,16 @@ public class NotificationImportExportListener implements VCardImportExportListen
      */
     static Notification constructProgressNotification(Context context, int type, String description,
             String tickerText, int jobId, String displayName, int totalCount, int currentCount) {
+        return constructProgressNotification(context, type, description, tickerText, jobId, displayName,
+                totalCount, currentCount, null);
+    }
+
+    /**
+     * Same as {@link #constructProgressNotification(Context, int, String, String, int, String, int, int)}, shows
+     * an additional status line, for example the throughput of the import stages.
+     */
+    static Notification constructProgressNotification(Context context, int type, String description,
+            String tickerText, int jobId, String displayName, int totalCount, int currentCount, String status) {
         // Note: We cannot use extra values here (like setIntExtra()), as PendingIntent doesn't
         // preserve them across multiple Notifications. PendingIntent preserves the first extras
         // (when flag is not set), or update them when PendingIntent#getActivity() is called
@@ -236,8 +252,17 @@ public class NotificationImportExportListener implements VCardImportExportListen
                 .setSmallIcon(type == VCardService.TYPE_IMPORT ? android.R.drawable.stat_sys_download
                         : android.R.drawable.stat_sys_upload)
                 .setContentIntent(PendingIntent.getActivity(context, 0, intent, 0));
-        if (totalCount > 0) {
-            builder.setContentText(context.getString(R.string.percentage, String.valueOf(currentCount * 100 / totalCount)));
+        final String percentage = totalCount > 0
+                ? context.getString(R.string.percentage, String.valueOf(currentCount * 100 / totalCount)) : null;
+        if (status != null) {
+            // The content info field is too small for the status line, it only shows the percentage
+            builder.setContentText(status)
+                    .setStyle(new NotificationCompat.BigTextStyle().bigText(status));
+            if (percentage != null) {
+                builder.setContentInfo(percentage);
+            }
+        } else if (percentage != null) {
+            builder.setContentText(percentage);
         }
         return builder.getNotification();
     }
@@ -56,7 +56,7 @@ import com.silentcircle.vcard.VCardEntry;
 interface VCardImportExportListener {
     void onImportProcessed(ImportRequest request, int jobId, int sequence);
     void onImportParsed(ImportRequest request, int jobId, VCardEntry entry, int currentCount,
-            int totalCount);
+            int totalCount, ImportPipeline.Counters counters);
     void onImportFinished(ImportRequest request, int jobId, Uri uri);
     void onImportFailed(ImportRequest request);
     void onImportCanceled(ImportRequest request, int jobId);
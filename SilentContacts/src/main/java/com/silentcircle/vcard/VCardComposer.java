@@ -567,19 +567,7 @@ public class VCardComposer {
             }
 
             while (entityIterator.hasNext()) {
-                Entity entity = entityIterator.next();
-                for (NamedContentValues namedContentValues : entity.getSubValues()) {
-                    ContentValues contentValues = namedContentValues.values;
-                    String key = contentValues.getAsString(Data.MIMETYPE);
-                    if (key != null) {
-                        List<ContentValues> contentValuesList = contentValuesListMap.get(key);
-                        if (contentValuesList == null) {
-                            contentValuesList = new ArrayList<ContentValues>();
-                            contentValuesListMap.put(key, contentValuesList);
-                        }
-                        contentValuesList.add(contentValues);
-                    }
-                }
+                addEntityValues(contentValuesListMap, entityIterator.next());
             }
         } finally {
             try {
@@ -591,6 +579,35 @@ public class VCardComposer {
         return buildVCard(contentValuesListMap);
     }
 
+    private static void addEntityValues(final Map<String, List<ContentValues>> contentValuesListMap,
+            final Entity entity) {
+        for (NamedContentValues namedContentValues : entity.getSubValues()) {
+            ContentValues contentValues = namedContentValues.values;
+            String key = contentValues.getAsString(Data.MIMETYPE);
+            if (key != null) {
+                List<ContentValues> contentValuesList = contentValuesListMap.get(key);
+                if (contentValuesList == null) {
+                    contentValuesList = new ArrayList<ContentValues>();
+                    contentValuesListMap.put(key, contentValuesList);
+                }
+                contentValuesList.add(contentValues);
+            }
+        }
+    }
+
+    /**
+     * Builds and returns the vCard of a single raw contact entity, for example one entity
+     * of an iterator from {@link RawContacts#newEntityIterator(Cursor)}.
+     *
+     * This does not use the cursor set up by the init() variants, thus callers may stream
+     * many raw contacts from one entity cursor without calling init().
+     */
+    public String buildVCard(final Entity entity) {
+        final Map<String, List<ContentValues>> contentValuesListMap = new HashMap<String, List<ContentValues>>();
+        addEntityValues(contentValuesListMap, entity);
+        return buildVCard(contentValuesListMap);
+    }
+
     private VCardPhoneNumberTranslationCallback mPhoneTranslationCallback;
     /**
      * <p>
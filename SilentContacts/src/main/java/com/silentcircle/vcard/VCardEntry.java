@@ -1642,6 +1642,46 @@ public class VCardEntry {
         }
     }
 
+    /**
+     * Estimates the operations and bytes that {@link VCardEntry#constructInsertOperations} creates.
+     * Only photos are counted with their real size, other elements are small.
+     */
+    private static class InsertSizeIterator implements EntryElementIterator {
+        private static final int ELEMENT_BYTES = 256;
+
+        private int mOperations = 1;            // the raw contact insert
+        private int mBytes = ELEMENT_BYTES;
+
+        @Override
+        public void onIterationStarted() {
+        }
+
+        @Override
+        public void onIterationEnded() {
+        }
+
+        @Override
+        public void onElementGroupStarted(EntryLabel label) {
+        }
+
+        @Override
+        public void onElementGroupEnded() {
+        }
+
+        @Override
+        public boolean onElement(EntryElement elem) {
+            if (!elem.isEmpty()) {
+                mOperations++;
+                mBytes += ELEMENT_BYTES;
+                if (elem instanceof PhotoData) {
+                    final byte[] bytes = ((PhotoData) elem).getBytes();
+                    mBytes += bytes != null ? bytes.length : 0;
+                }
+            }
+            return true;
+        }
+    }
+
     private class ToStringIterator implements EntryElementIterator {
         private StringBuilder mBuilder;
 
@@ -2528,6 +2568,31 @@ public class VCardEntry {
         return iterator.getResult();
     }
 
+    /**
+     * The estimated size of the operations {@link #constructInsertOperations} appends for an entry.
+     */
+    public static final class InsertSize {
+        /** Number of operations */
+        public final int operations;
+        /** Size in bytes, photos dominate the size */
+        public final int bytes;
+
+        InsertSize(int operations, int bytes) {
+            this.operations = operations;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @return the estimated number of operations and bytes {@link #constructInsertOperations} appends for this
+     *         object, computed in one pass over the data.
+     */
+    public InsertSize getEstimatedInsertSize() {
+        InsertSizeIterator iterator = new InsertSizeIterator();
+        iterateAllData(iterator);
+        return new InsertSize(iterator.mOperations, iterator.mBytes);
+    }
+
     /**
      * Constructs the list of insert operation for this object. When the operationList argument is null, this method creates a new
      * ArrayList and return it. The returned object is filled with new insert operations for this object. When operationList
@@ -2564,6 +2629,8 @@ public class VCardEntry {
         // builder.withValue(RawContacts.ACCOUNT_TYPE, null);
         // }
         builder.withValue(RawContacts.DISPLAY_NAME, null);
+        // The provider may commit the batch so far before an entry, but never inside of it
+        builder.withYieldAllowed(true);
         operationList.add(builder.build());
 
         int start = operationList.size();
@@ -74,9 +74,19 @@ import com.silentcircle.silentcontacts.ScContactsContract;
 public class VCardEntryCommitter implements VCardEntryHandler {
     public static String LOG_TAG = VCardConstants.LOG_TAG;
 
+    /**
+     * Limits of one batch. The provider applies a batch in one transaction and the batch must fit
+     * into one binder transaction, thus entries with large photos get small batches.
+     */
+    private static final int MAX_OPERATIONS_PER_BATCH = 400;
+    private static final int MAX_BYTES_PER_BATCH = 256 * 1024;
+
     private final ContentResolver mContentResolver;
+    private long mTimeToBuild;
     private long mTimeToCommit;
     private int mCounter;
+    private int mOperationCount;
+    private int mByteCount;
     private ArrayList<ContentProviderOperation> mOperationList;
     private final ArrayList<Uri> mCreatedUris = new ArrayList<Uri>();
 
@@ -90,26 +100,79 @@ public class VCardEntryCommitter implements VCardEntryHandler {
 
     @Override
     public void onEnd() {
-        if (mOperationList != null) {
-            mCreatedUris.add(pushIntoContentResolver(mOperationList));
+        final ArrayList<ContentProviderOperation> batch = takeBatch();
+        if (batch != null) {
+            commitBatch(batch);
         }
 
         if (VCardConfig.showPerformanceLog()) {
+            Log.d(LOG_TAG, String.format("time to build entries: %d ms", mTimeToBuild));
             Log.d(LOG_TAG, String.format("time to commit entries: %d ms", mTimeToCommit));
         }
     }
 
     @Override
     public void onEntryCreated(final VCardEntry vcardEntry) {
+        final ArrayList<ContentProviderOperation> batch = addToBatch(vcardEntry);
+        if (batch != null) {
+            commitBatch(batch);
+        }
+    }
+
+    /**
+     * Appends the insert operations of the entry to the current batch.
+     *
+     * The methods to build batches ({@link #addToBatch(VCardEntry)}, {@link #takeBatch()}) and
+     * {@link #commitBatch(ArrayList)} may run on different threads, but each group on one thread only.
+     *
+     * @return the previous batch if the entry did not fit into it and the batch should be
+     *         committed, null otherwise. The returned batch does not contain the entry.
+     */
+    public ArrayList<ContentProviderOperation> addToBatch(final VCardEntry vcardEntry) {
         final long start = System.currentTimeMillis();
+        final VCardEntry.InsertSize entrySize = vcardEntry.getEstimatedInsertSize();
+        final int entryOperations = entrySize.operations;
+        final int entryBytes = entrySize.bytes;
+
+        // Start a new batch if the entry does not fit into the current one. An entry that
+        // exceeds a limit on its own gets a batch of its own.
+        ArrayList<ContentProviderOperation> batch = null;
+        if (mCounter > 0 && (mOperationCount + entryOperations > MAX_OPERATIONS_PER_BATCH
+                || mByteCount + entryBytes > MAX_BYTES_PER_BATCH)) {
+            batch = takeBatch();
+        }
         mOperationList = vcardEntry.constructInsertOperations(mContentResolver, mOperationList);
         mCounter++;
-        if (mCounter >= 20) {
-            mCreatedUris.add(pushIntoContentResolver(mOperationList));
-            mCounter = 0;
-            mOperationList = null;
+        mOperationCount = mOperationList.size();
+        mByteCount += entryBytes;
+        mTimeToBuild += System.currentTimeMillis() - start;
+        return batch;
+    }
+
+    /**
+     * Returns the current, incomplete batch, null if it is empty, and starts a new batch.
+     */
+    public ArrayList<ContentProviderOperation> takeBatch() {
+        final ArrayList<ContentProviderOperation> batch = mOperationList;
+        mCounter = 0;
+        mOperationCount = 0;
+        mByteCount = 0;
+        mOperationList = null;
+        return (batch == null || batch.isEmpty()) ? null : batch;
+    }
+
+    /**
+     * Applies one batch of operations and records the Uri of its first raw contact.
+     */
+    public void commitBatch(ArrayList<ContentProviderOperation> batch) {
+        final long start = System.currentTimeMillis();
+        mCreatedUris.add(pushIntoContentResolver(batch));
+        final long latency = System.currentTimeMillis() - start;
+        mTimeToCommit += latency;
+
+        if (VCardConfig.showPerformanceLog()) {
+            Log.d(LOG_TAG, String.format("batch of %d operations committed in %d ms", batch.size(), latency));
         }
-        mTimeToCommit += System.currentTimeMillis() - start;
     }
 
     private Uri pushIntoContentResolver(ArrayList<ContentProviderOperation> operationList) {